@@ -0,0 +1,108 @@
+package com.davidfornesm.simpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One benchmark per phase of a run, each over every workload.
+ * Every phase starts from the output of the previous one, prepared once
+ * in setup, so a regression shows up in the phase that caused it.
+ * Return values are handed back to JMH so nothing is dead-code eliminated.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    @Param({"fibo", "triangle", "example", "deepLoop", "straightLine"})
+    public String workload;
+
+    private String source;
+    private List<Token> tokens;
+    private ProgramStatement parsed;
+    private ProgramStatement program;
+    private SymbolTable symbols;
+    private Jit jit;
+    private Vm vm;
+
+    @Setup
+    public void setup() {
+        source = Workloads.source(workload);
+        tokens = new Lexer(source).scanTokens();
+        parsed = new Parser(tokens).parse();
+        program = parsed.fold();
+        symbols = new SymbolTable();
+        program.resolve(symbols);
+        jit = Jit.compile(program, symbols);
+        vm = Vm.compile(program);
+    }
+
+    @Benchmark
+    public Object lex() {
+        return new Lexer(source).scanTokens();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public Object fold() {
+        return parsed.fold();
+    }
+
+    @Benchmark
+    public Object interpret() {
+        return program.eval(new State(symbols));
+    }
+
+    @Benchmark
+    public Object specialize() {
+        State state = new State(symbols);
+        Node.build(program).exec(state);
+        return state;
+    }
+
+    @Benchmark
+    public Object vmLower() {
+        return Vm.compile(program);
+    }
+
+    @Benchmark
+    public Object vmEval() {
+        return vm.eval(new State(symbols));
+    }
+
+    @Benchmark
+    public Object jitCompile() {
+        return Jit.compile(program, symbols);
+    }
+
+    @Benchmark
+    public Object jitEval() {
+        return jit.eval(new State(symbols));
+    }
+
+    @Benchmark
+    public Object compileC() throws IOException {
+        StringBuilder out = new StringBuilder();
+        App.writeC(program, symbols, out);
+        return out;
+    }
+}
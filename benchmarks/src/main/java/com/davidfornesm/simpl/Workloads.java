@@ -0,0 +1,67 @@
+package com.davidfornesm.simpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SIMP sources the benchmarks run on.
+ * The bundled examples are packaged as resources; the large workloads are
+ * generated so their size can be tuned without checking in huge files.
+ */
+final class Workloads {
+    static final int LOOP_BOUND = 300;
+    static final int STRAIGHT_LINE_STATEMENTS = 5000;
+
+    private Workloads() {
+    }
+
+    static String source(String name) {
+        switch (name) {
+            case "fibo": return resource("fibo.imp");
+            case "triangle": return resource("triangle.imp");
+            case "example": return resource("example.imp");
+            case "deepLoop": return deepLoop(LOOP_BOUND);
+            case "straightLine": return straightLine(STRAIGHT_LINE_STATEMENTS);
+            default: throw new IllegalArgumentException("unknown workload " + name);
+        }
+    }
+
+    /** Two nested loops, bound * bound inner iterations. */
+    static String deepLoop(int bound) {
+        return "i := 0;\n" +
+                "result := 0;\n" +
+                "while i <= " + bound + " do (\n" +
+                "    j := 0;\n" +
+                "    while j <= " + bound + " do (\n" +
+                "        result := result + i * j;\n" +
+                "        j := j + 1\n" +
+                "    );\n" +
+                "    i := i + 1\n" +
+                ")";
+    }
+
+    /** One assignment per line over a rotating set of 64 variables. */
+    static String straightLine(int statements) {
+        StringBuilder source = new StringBuilder();
+        for (int v = 0; v < 64; v++)
+            source.append("v").append(v).append(" := ").append(v).append(";\n");
+        for (int i = 0; i < statements; i++) {
+            int v = i % 64;
+            source.append("v").append(v).append(" := v").append((v + 1) % 64)
+                    .append(" + ").append(i).append(" * 3;\n");
+        }
+        return source.append("result := v0").toString();
+    }
+
+    private static String resource(String file) {
+        try (InputStream in = Workloads.class.getResourceAsStream("/workloads/" + file)) {
+            if (in == null)
+                throw new IllegalStateException("missing workload " + file);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package com.davidfornesm.simpl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
@@ -14,102 +17,409 @@ import java.util.Scanner;
  * Here is the entry point.
  * This class cannot be instantiated and contains only static
  * methods to drive the most abstract layers and application startup.
+ * Everything a run depends on is passed in through its {@link Options}.
  */
 public abstract class App
 {
-    static boolean hadError = true;
-    static boolean debug = false;
-    static boolean compile = false;
+    private static final int CACHE_SIZE = 1024;
+    /** Source name the prompt's programs are recorded under. */
+    private static final String PROMPT = "<prompt>";
 
     public static void main( String[] args ) throws IOException
     {
         //TODO: argument parsing with structure schemas (maybe some regex)
-        if (args.length > 2) {
-            System.err.println("Usage: \n\t- simpl\n\t- simpl debug\n\t- simpl [file]\n\t- simpl [file] compile\n\t- simpl [file] debug");
-            System.exit(64);
+        if (args.length > 1 && args[0].equals("batch")) {
+            Options options = new Options();
+            List<String> paths = Batch.parseArgs(Arrays.copyOfRange(args, 2, args.length), options);
+            if (paths == null || paths.isEmpty()) usage();
+            if (Batch.run(Paths.get(args[1]), paths, options) > 0)
+                System.exit(65);
+        } else if (args.length > 0 && args[0].equals("serve")) {
+            try {
+                Server.serve(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IllegalArgumentException e) {
+                usage();
+            }
         } else if (args.length > 0 && !args[0].equals("debug")) {
-            debug = args.length == 2 && args[1].equals("debug");
-            compile = args.length == 2 && args[1].equals("compile");
-            runFile(args[0]);
+            Options options = new Options();
+            for (int i = 1; i < args.length; i++) {
+                if (!options.apply(args[i])) usage();
+            }
+            if (!options.consistent()) usage();
+            if (runFile(args[0], options))
+                System.exit(65);
+        } else if (args.length > 1) {
+            usage();
         } else {
-            debug = args.length == 1;
-            runPrompt();
+            Options options = new Options();
+            options.debug = args.length == 1;
+            runPrompt(options);
         }
     }
 
-    private static void runPrompt() throws IOException {
+    private static void usage() {
+        System.err.println("Usage: \n\t- simpl\n\t- simpl debug\n\t- simpl [file]\n\t- simpl [file] compile\n\t- simpl [file] compile=[output]\n\t- simpl [file] debug" +
+                "\n\t- simpl [file] jit\n\t- simpl [file] vm\n\t- simpl [file] specialize\n\t- simpl [file] noopt" +
+                "\n\t- simpl [file] precompile\n\t- simpl [file] profile\n\t- simpl [file] flat\n\t- simpl [file] footprint\n\t- simpl [file] exact\n\t- simpl [file] known=[variable]:[value],...\n\t- simpl [file] live\n\t- simpl [file] live=[variable],... (removed statements on stderr)\n\t- simpl [file] fuel=[iterations] timeout=[ms]\n\t- simpl [file] sweep=[variable]:[from]..[to]\n\t- simpl batch [output] [dir | file | @list]..." +
+                "\n\t- simpl serve [port] [workers=[n]] [queue=[n]] [maxbody=[bytes]]");
+        System.exit(64);
+    }
+
+    private static void runPrompt(Options options) {
         State state = new State();
+        ProgramCache cache = new ProgramCache(CACHE_SIZE);
         Scanner scanner = new Scanner(System.in);
 
-        System.out.println("Run 'quit()' to exit CLI.");
+        System.out.println("Run 'quit()' to exit CLI, 'stats()' for cache statistics.");
 
         while (true) {
             System.out.print(">> ");
             String line = scanner.nextLine();
             if (line.equals("quit()")) break;
+            if (line.equals("stats()")) {
+                System.out.println(cache);
+                continue;
+            }
             try {
-                run(line, state);
-            } catch (RuntimeException e) {
+                List<String> errors = new ArrayList<>();
+                ProgramStatement program = cache.get(line, source -> {
+                    Events.Lex lex = new Events.Lex();
+                    lex.begin();
+                    Lexer lexer = new Lexer(source);
+                    List<Token> tokens = lexer.scanTokens();
+                    lex.finish(PROMPT, tokens.size());
+                    errors.addAll(lexer.errors());
+                    report(errors);
+                    return prepare(PROMPT, TokenStream.of(tokens), state, options, System.out);
+                });
+                // Lines with lexer errors are not kept, so entering one again reports them again.
+                if (!errors.isEmpty()) cache.remove(line);
+                run(PROMPT, program, state, options, System.out);
+            } catch (RuntimeException | IOException e) {
                 System.err.println(e);
                 System.err.println("Error: " + e.getMessage());
             }
         }
+        if (options.debug) System.out.println(cache);
     }
 
+    /**
+     * Files are memory-mapped and lexed into a packed token stream, unless a
+     * precompiled image of the same source sits next to them.
+     * Returns whether any error was reported.
+     */
+    private static boolean runFile(String path, Options options) throws IOException {
+        Path file = Paths.get(path);
+        State state = new State();
+        if (options.flat || options.footprint) {
+            return runFlat(path, ByteSource.map(file), state, options);
+        }
+        try {
+            return runTree(path, file, state, options);
+        } catch (LimitExceededException e) {
+            reportStopped(e);
+            return true;
+        }
+    }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()), null);
-        if (hadError)
-            System.exit(65);
+    /**
+     * Runs a tree program, from source or an image. The limits count from when it is prepared,
+     * as specializing it already runs its loops.
+     */
+    private static boolean runTree(String path, Path file, State state, Options options) throws IOException {
+        if (path.endsWith(ProgramImage.EXTENSION)) {
+            ProgramStatement program;
+            try {
+                ProgramImage.Loaded loaded = ProgramImage.read(file, state.symbols());
+                state.limit(options.limits());
+                program = prepare(path, loaded, state, options, System.out);
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                return true;
+            }
+            execute(path, program, state, options);
+            return false;
+        }
+        ByteSource source = ByteSource.map(file);
+        byte[] hash = ProgramImage.hash(source.bytes());
+        Path image = ProgramImage.pathFor(file);
+        // an image holds the program before it is rewritten, and loading it is not worth a second pass
+        ProgramStatement program = options.precompile || options.rewrites() ? null
+                : ProgramImage.load(image, hash, options.optimize, state.symbols());
+        boolean hadError = false;
+        if (program == null) {
+            Events.Lex lex = new Events.Lex();
+            lex.begin();
+            Lexer lexer = new Lexer(source);
+            PackedTokens tokens = lexer.scanPacked();
+            lex.finish(path, tokens.size());
+            hadError = report(lexer.errors());
+            state.limit(options.limits());
+            program = prepare(path, tokens, state, options, System.out);
+        } else {
+            state.limit(options.limits());
+            requireInts(program, options);
+            if (options.debug) System.out.println("loaded " + image);
+        }
+        if (options.precompile) {
+            ProgramImage.write(image, program, state.symbols(), hash, options.optimize);
+            System.out.println("wrote " + image);
+            return hadError;
+        }
+        execute(path, program, state, options);
+        return hadError;
+    }
+
+    /** Runs a prepared program in the mode the options ask for, within the limits of the state. */
+    private static void execute(String path, ProgramStatement program, State state, Options options)
+            throws IOException {
+        if (options.sweep != null)
+            sweep(program, state.symbols(), options, System.out);
+        else if (options.profile)
+            profile(program, state, Paths.get(path), System.out);
+        else
+            run(path, program, state, options, System.out);
+    }
+
+    private static void reportStopped(LimitExceededException e) {
+        System.err.println("Error: " + e.getMessage());
+        for (String name : e.state().keys())
+            System.err.println("\t" + name + " := " + e.state().value(name));
     }
 
-    private static void run(String source, State state) {
-        if (state == null) state = new State();
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
+    /**
+     * Parses the source straight into its flat form and runs, translates or
+     * measures that; images, optimizations and engines do not apply.
+     */
+    private static boolean runFlat(String path, ByteSource source, State state, Options options)
+            throws IOException {
+        // nothing is folded away, so names can go into the state's symbols as they are lexed
+        Lexer lexer = new Lexer(source, state.symbols());
+        PackedTokens tokens = lexer.scanPacked();
+        boolean hadError = report(lexer.errors());
+        if (options.debug) emitDebug(tokens, System.out);
+        FlatProgram program = new Parser(tokens).parseFlat(state.symbols());
+        if (options.debug) System.out.println("program: " + program);
+        if (options.footprint) {
+            System.out.print(program.footprint(new Parser(tokens).parse()));
+            return hadError;
+        }
+        if (options.compile) {
+            translate(out -> writeC(program, out), options, System.out);
+            return hadError;
+        }
+        state.limit(options.limits());
+        try {
+            System.out.println("result := " + program.eval(state).lookup("result"));
+        } catch (LimitExceededException e) {
+            reportStopped(e);
+            return true;
+        }
+        return hadError;
+    }
+
+    /**
+     * Parses, optimizes and resolves a program against the symbols of the state it will run on.
+     * Specializing it already runs loop iterations, within the limits of that state.
+     */
+    static ProgramStatement prepare(String source, TokenStream tokens, State state, Options options,
+                                    PrintStream out) {
+        if (options.debug) emitDebug(tokens, out);
+        Events.Parse parse = new Events.Parse();
+        parse.begin();
         Parser parser = new Parser(tokens);
         ProgramStatement program = parser.parse();
-        State finalState = program.eval(state);
-        Integer result = finalState.lookup("result");
+        parse.finish(source, tokens.size(), program);
+        requireInts(program, options);
+        if (options.optimize) {
+            Events.Optimize optimize = new Events.Optimize();
+            optimize.begin();
+            ProgramStatement folded = program.fold();
+            optimize.finish(source, program, folded);
+            program = folded;
+        }
+        program = rewrite(source, program, state, options);
+        program.resolve(state.symbols());
+        return program;
+    }
 
-        if (debug) emitDebug(tokens, program);
-        if (!compile) System.out.println("result := " + result);
-        if (compile) compileSourceCode(program);
+    /** Only exact runs can take literals too large for an int; the other engines and passes cannot. */
+    static void requireInts(ProgramStatement program, Options options) {
+        if (options.exact) return;
+        BigInteger n = Exact.bigLiteral(program);
+        if (n != null) throw ArithmeticExp.BigNumericExp.tooLarge(n);
     }
 
-    private static void emitDebug(List<Token> tokens, ProgramStatement program) {
-        for (Token token : tokens) {
-            System.out.println(token);
+    /**
+     * Prepares a program read from an image against the symbols of the state it will run on.
+     * Folding wraps around, so an image that was folded cannot be run exactly.
+     */
+    static ProgramStatement prepare(String source, ProgramImage.Loaded image, State state, Options options,
+                                    PrintStream out) throws IOException {
+        if (options.exact && image.folded)
+            throw new IOException(source + " was precompiled with folding; precompile it with noopt to run it exactly.");
+        requireInts(image.program, options);
+        ProgramStatement program = rewrite(source, image.program, state, options);
+        program.resolve(state.symbols());
+        return program;
+    }
+
+    /**
+     * Specializes the program against the known variables of the options, then removes the stores
+     * that cannot reach their live variables, if they ask for either. The removed statements are
+     * listed on stderr, apart from the output of the program.
+     */
+    static ProgramStatement rewrite(String source, ProgramStatement program, State state, Options options) {
+        if (!options.rewrites()) return program;
+        Events.Optimize event = new Events.Optimize();
+        event.begin();
+        ProgramStatement rewritten = program;
+        if (options.known != null)
+            rewritten = PartialEvaluator.specialize(rewritten, options.known, state);
+        if (options.live != null) {
+            List<ProgramStatement> removed = new ArrayList<>();
+            rewritten = Liveness.eliminate(rewritten, options.live, removed);
+            emitRemoved(removed, System.err);
         }
-        System.out.println("program: " + program.toString());
+        event.finish(source, program, rewritten);
+        return rewritten;
+    }
+
+    private static void run(String source, ProgramStatement program, State state, Options options, PrintStream out)
+            throws IOException {
+        State finalState = eval(source, program, state, options);
+        Number result = finalState.value("result");
+
+        if (options.debug) emitProgram(program, out);
+        if (!options.compile) out.println("result := " + result);
+        if (options.compile) compileSourceCode(source, program, state.symbols(), options, out);
+    }
+
+    /** Runs the program on the engine of the options, or exactly on the interpreter if they ask for that. */
+    static State eval(String source, ProgramStatement program, State state, Options options) {
+        if (options.exact)
+            return eval(source, Exact.instrument(program, state.symbols()), state, Engine.INTERPRETER);
+        return eval(source, program, state, options.engine);
+    }
+
+    /** Runs the program on the engine, recorded as an eval event whether it finishes or fails. */
+    static State eval(String source, ProgramStatement program, State state, Engine engine) {
+        Events.Eval event = new Events.Eval(state);
+        event.begin();
+        try {
+            return engine.eval(program, state);
+        } finally {
+            event.finish(source, engine.name(), program, state);
+        }
+    }
+
+    /** Runs the program once per value of the swept variable, all values at once on lanes. */
+    private static void sweep(ProgramStatement program, SymbolTable symbols, Options options, PrintStream out)
+            throws IOException {
+        int[] inputs = new int[options.sweepTo - options.sweepFrom + 1];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = options.sweepFrom + i;
+        Lanes lanes = new Lanes(symbols, inputs.length);
+        lanes.set(options.sweep, inputs);
+        lanes.limit(options.limits());
+        Integer[] results = lanes.eval(program).lookup("result");
+
+        if (options.debug) emitProgram(program, out);
+        for (int i = 0; i < inputs.length; i++) {
+            String error = lanes.error(i);
+            out.println(options.sweep + " = " + inputs[i] + ": " +
+                    (error == null ? "result := " + results[i] : "Error: " + error));
+        }
+    }
+
+    /** Runs the program under the profiler, printing the hot spots and writing the full profile next to the source. */
+    private static void profile(ProgramStatement program, State state, Path file, PrintStream out)
+            throws IOException {
+        Profiler profiler = new Profiler();
+        State finalState = profiler.eval(program, state);
+        out.println("result := " + finalState.lookup("result"));
+        profiler.report(out);
+        Path dump = Paths.get(file + ".profile.tsv");
+        try (Writer writer = Files.newBufferedWriter(dump)) {
+            profiler.dump(writer);
+        }
+        out.println("wrote " + dump);
+    }
+
+    private static void emitDebug(TokenStream tokens, PrintStream out) {
+        for (int i = 0; i < tokens.size(); i++) {
+            out.println(tokens.token(i));
+        }
+    }
+
+    private static void emitRemoved(List<ProgramStatement> removed, PrintStream out) {
+        for (ProgramStatement c : removed)
+            out.println("removed line " + c.line + ": " + c);
+        out.println(removed.size() + " dead statements removed");
+    }
+
+    private static void emitProgram(ProgramStatement program, PrintStream out) throws IOException {
+        out.print("program: ");
+        program.dump(out);
+        out.println();
+    }
+
+    private static void compileSourceCode(String source, ProgramStatement program, SymbolTable symbols,
+                                          Options options, PrintStream out) throws IOException {
+        Events.Compile event = new Events.Compile();
+        event.begin();
+        if (options.exact)
+            translate(c -> Exact.writeC(program, symbols, c), options, out);
+        else
+            translate(c -> writeC(program, symbols, c), options, out);
+        event.finish(source, program, symbols);
+    }
+
+    /** Writes a C translation somewhere. */
+    private interface Translation {
+        void writeTo(Appendable out) throws IOException;
     }
 
     //TODO: proper experimental toggle with arguments
-    private static void compileSourceCode(ProgramStatement program) {
-        System.out.println("====================");
-        System.out.println("Experimental Feature");
-        System.out.println("====================");
+    private static void translate(Translation translation, Options options, PrintStream out) throws IOException {
+        out.println("====================");
+        out.println("Experimental Feature");
+        out.println("====================");
 
-        State compileState = new State();
-        String compileSource = program.compile(compileState);
-        StringBuilder compileVars = new StringBuilder();
-        for (String k :
-                compileState.keys()) {
-            compileVars.append("int ").append(k).append(";\n");
+        if (options.compileOutput == null) {
+            translation.writeTo(out);
+            out.println();
+            return;
         }
-        System.out.println("#include <stdio.h>\n" +
-                "int main() {\n" + compileVars.toString() + compileSource + " " +
-                "printf(\"result := %d\\n\", result);" +
-                "}");
+        try (Writer writer = Files.newBufferedWriter(Paths.get(options.compileOutput))) {
+            translation.writeTo(writer);
+            writer.write('\n');
+        }
+        out.println("wrote " + options.compileOutput);
+    }
+
+    /** Streams the C translation; variables are declared from the symbols the program was resolved against. */
+    static void writeC(ProgramStatement program, SymbolTable symbols, Appendable out) throws IOException {
+        writeC(symbols, program::compile, out);
+    }
+
+    /** Streams the C translation of the flat form, which is the same as that of the object tree. */
+    static void writeC(FlatProgram program, Appendable out) throws IOException {
+        writeC(program.symbols(), program::compile, out);
     }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+    private static void writeC(SymbolTable symbols, Translation body, Appendable out) throws IOException {
+        out.append("#include <stdio.h>\nint main() {\n");
+        for (int slot = 0; slot < symbols.size(); slot++)
+            out.append("int ").append(symbols.name(slot)).append(";\n");
+        body.writeTo(out);
+        out.append(" printf(\"result := %d\\n\", result);}");
     }
 
-    private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+    /** Prints scanning errors, returning whether there were any. */
+    private static boolean report(List<String> errors) {
+        for (String error : errors)
+            System.err.println(error);
+        return !errors.isEmpty();
     }
 }
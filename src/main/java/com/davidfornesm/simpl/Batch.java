@@ -0,0 +1,154 @@
+package com.davidfornesm.simpl;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many programs in one JVM, in parallel on a ForkJoinPool.
+ * Every program gets its own State and is lexed, parsed and evaluated
+ * independently; one tab separated line per program is written to the
+ * output as soon as it finishes:
+ * <pre>
+ *   path  ok     result   micros
+ *   path  error  message  micros
+ * </pre>
+ */
+class Batch {
+
+    private Batch() {
+    }
+
+    /**
+     * Splits batch arguments into flags, applied to the options, and paths.
+     * Returns null when a flag that only makes sense for a single file is given.
+     */
+    static List<String> parseArgs(String[] args, Options options) {
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (!options.apply(arg)) paths.add(arg);
+        }
+        if (options.debug || options.compile || options.precompile || options.profile || options.sweep != null
+                || options.flat || options.footprint || !options.consistent()) return null;
+        return paths;
+    }
+
+    /**
+     * Expands directories (recursively, to their .imp files) and @list files
+     * (one path per line), then runs every program. Returns the error count.
+     */
+    static int run(Path output, List<String> args, Options options) throws IOException {
+        List<Path> programs = new ArrayList<>();
+        for (String arg : args)
+            expand(arg, programs);
+
+        AtomicInteger errors = new AtomicInteger();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (BufferedWriter out = Files.newBufferedWriter(output)) {
+            out.write("path\tstatus\tvalue\tmicros");
+            out.newLine();
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(programs.size());
+            for (Path program : programs) {
+                tasks.add(pool.submit(() -> {
+                    String line = runOne(program, options, errors);
+                    synchronized (out) {
+                        try {
+                            out.write(line);
+                            out.newLine();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks)
+                task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println(programs.size() + " programs, " + errors.get() + " errors in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms, written to " + output);
+        return errors.get();
+    }
+
+    private static void expand(String arg, List<Path> programs) throws IOException {
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                if (!line.isBlank()) programs.add(Paths.get(line.strip()));
+            }
+            return;
+        }
+        Path path = Paths.get(arg);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                programs.addAll(files.filter(file -> file.toString().endsWith(".imp") && Files.isRegularFile(file))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        } else {
+            programs.add(path);
+        }
+    }
+
+    /** Runs one program; errors are recorded in its line instead of being thrown. */
+    static String runOne(Path path, Options options, AtomicInteger errors) {
+        long start = System.nanoTime();
+        String outcome;
+        try {
+            State state = new State();
+            ProgramStatement program = load(path, options, state);
+            Number result = App.eval(path.toString(), program, state, options).value("result");
+            outcome = "ok\t" + result;
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            errors.incrementAndGet();
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            outcome = "error\t" + message.replace('\t', ' ').replace('\n', ' ');
+        }
+        return path + "\t" + outcome + "\t" + (System.nanoTime() - start) / 1000;
+    }
+
+    /**
+     * Uses an up-to-date precompiled image when there is one, like a single file run.
+     * The limits of the options count from when the program is prepared.
+     */
+    private static ProgramStatement load(Path path, Options options, State state) throws IOException {
+        if (path.toString().endsWith(ProgramImage.EXTENSION)) {
+            ProgramImage.Loaded loaded = ProgramImage.read(path, state.symbols());
+            state.limit(options.limits());
+            return App.prepare(path.toString(), loaded, state, options, System.out);
+        }
+        ByteSource source = ByteSource.map(path);
+        Path image = ProgramImage.pathFor(path);
+        if (!options.rewrites() && Files.isRegularFile(image)) {
+            ProgramStatement program = ProgramImage.load(image, ProgramImage.hash(source.bytes()),
+                    options.optimize, state.symbols());
+            if (program != null) {
+                state.limit(options.limits());
+                App.requireInts(program, options);
+                return program;
+            }
+        }
+        Events.Lex lex = new Events.Lex();
+        lex.begin();
+        Lexer lexer = new Lexer(source);
+        PackedTokens tokens = lexer.scanPacked();
+        lex.finish(path.toString(), tokens.size());
+        if (!lexer.errors().isEmpty())
+            throw new RuntimeException(lexer.errors().get(0));
+        state.limit(options.limits());
+        return App.prepare(path.toString(), tokens, state, options, System.out);
+    }
+}
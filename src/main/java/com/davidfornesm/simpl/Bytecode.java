@@ -0,0 +1,282 @@
+package com.davidfornesm.simpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file assembler.
+ * Builds a final class holding a single static method whose locals are
+ * its reference parameters followed by int variables, which is all the
+ * JIT needs.
+ * Every label gets a full stack map frame, so the operand stack must be
+ * empty whenever control reaches one.
+ */
+class Bytecode {
+    static final int ILOAD = 0x15, ISTORE = 0x36, IALOAD = 0x2e, IASTORE = 0x4f;
+    static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68;
+    static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c;
+    static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1,
+            IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7, IRETURN = 0xac;
+
+    private static final int ALOAD = 0x19, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, WIDE = 0xc4,
+            INVOKESTATIC = 0xb8;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+    private final List<int[]> fixups = new ArrayList<>();
+
+    private final String[] referenceLocals;
+    private final int intLocals;
+
+    /** The reference locals are given by their internal class names, such as {@code [I}. */
+    Bytecode(String[] referenceLocals, int intLocals) {
+        this.referenceLocals = referenceLocals;
+        this.intLocals = intLocals;
+    }
+
+    int newLabel() {
+        if (labelCount == labels.length)
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    void bind(int label) {
+        labels[label] = length;
+    }
+
+    void loadReference(int local) {
+        op(ALOAD, 1);
+        u1(local);
+    }
+
+    void loadInt(int local) {
+        localOp(ILOAD, local);
+        stack++;
+        track();
+    }
+
+    void storeInt(int local) {
+        localOp(ISTORE, local);
+        stack--;
+    }
+
+    void pushInt(int n) {
+        if (n >= -1 && n <= 5) {
+            op(0x03 + n, 1);
+        } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            u1(n);
+        } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            u2(n);
+        } else {
+            op(LDC_W, 1);
+            u2(constant("I" + n, 3, n));
+        }
+    }
+
+    /** Arithmetic and array opcodes, with the net effect they have on the stack. */
+    void insn(int opcode) {
+        switch (opcode) {
+            case IADD: case ISUB: case IMUL: case IALOAD: op(opcode, -1); break;
+            case IASTORE: op(opcode, -3); break;
+            case IRETURN: op(opcode, -1); break;
+            default: throw new IllegalArgumentException("unsupported opcode " + opcode);
+        }
+    }
+
+    void jump(int opcode, int label) {
+        switch (opcode) {
+            case GOTO: op(opcode, 0); break;
+            case IFEQ: case IFNE: case IFLT: case IFGE: op(opcode, -1); break;
+            default: op(opcode, -2);
+        }
+        fixups.add(new int[]{length - 1, length, label});
+        u2(0);
+        if (opcode == GOTO)
+            bind(newLabel());
+    }
+
+    /** Calls a static method of a class the generated one can access, with the net effect it has on the stack. */
+    void invokeStatic(String owner, String name, String descriptor, int delta) {
+        int nameAndType = constant("N" + name + descriptor, 12, new int[]{utf8(name), utf8(descriptor)});
+        int method = constant("M" + owner + "." + name + descriptor, 10,
+                new int[]{classConstant(owner), nameAndType});
+        op(INVOKESTATIC, delta);
+        u2(method);
+    }
+
+    byte[] toClass(String className, String methodName, String descriptor) {
+        for (int[] fixup : fixups) {
+            int offset = labels[fixup[2]] - fixup[0];
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                throw new Jit.Unsupported("program too large for the JIT.");
+            code[fixup[1]] = (byte) (offset >> 8);
+            code[fixup[1] + 1] = (byte) offset;
+        }
+        if (length > 65535)
+            throw new Jit.Unsupported("program too large for the JIT.");
+
+        int thisClass = classConstant(className);
+        int superClass = classConstant("java/lang/Object");
+        int name = utf8(methodName);
+        int type = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+        int frameAttribute = utf8("StackMapTable");
+        byte[] frames = frames();
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(0x0010 | 0x0020);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(0x0008);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + length + 6 + frames.length);
+            out.writeShort(maxStack);
+            out.writeShort(referenceLocals.length + intLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(frameAttribute);
+            out.writeInt(frames.length);
+            out.write(frames);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] frames() {
+        int[] classes = new int[referenceLocals.length];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = classConstant(referenceLocals[i]);
+        int[] offsets = new int[labelCount];
+        int count = 0;
+        for (int i = 0; i < labelCount; i++) {
+            if (labels[i] >= 0 && labels[i] < length)
+                offsets[count++] = labels[i];
+        }
+        offsets = Arrays.stream(offsets, 0, count).sorted().distinct().toArray();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(offsets.length);
+            int previous = -1;
+            for (int offset : offsets) {
+                out.writeByte(255);
+                out.writeShort(offset - previous - 1);
+                out.writeShort(classes.length + intLocals);
+                for (int referenceClass : classes) {
+                    out.writeByte(7);
+                    out.writeShort(referenceClass);
+                }
+                for (int i = 0; i < intLocals; i++)
+                    out.writeByte(1);
+                out.writeShort(0);
+                previous = offset;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void localOp(int opcode, int local) {
+        if (local > 255) {
+            op(WIDE, 0);
+            u1(opcode);
+            u2(local);
+        } else {
+            op(opcode, 0);
+            u1(local);
+        }
+    }
+
+    private void op(int opcode, int delta) {
+        u1(opcode);
+        stack += delta;
+        track();
+    }
+
+    private void track() {
+        if (stack > maxStack)
+            maxStack = stack;
+    }
+
+    private void u1(int b) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) b;
+    }
+
+    private void u2(int s) {
+        u1(s >> 8);
+        u1(s);
+    }
+
+    private int utf8(String text) {
+        return constant("U" + text, 1, text);
+    }
+
+    private int classConstant(String name) {
+        int index = utf8(name);
+        return constant("C" + name, 7, index);
+    }
+
+    private int constant(String key, int tag, Object value) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            poolOut.writeByte(tag);
+            if (tag == 1) {
+                poolOut.writeUTF((String) value);
+            } else if (tag == 3) {
+                poolOut.writeInt((Integer) value);
+            } else if (value instanceof int[] pair) {
+                poolOut.writeShort(pair[0]);
+                poolOut.writeShort(pair[1]);
+            } else {
+                poolOut.writeShort((Integer) value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+}
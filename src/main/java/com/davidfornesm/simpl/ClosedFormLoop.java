@@ -0,0 +1,339 @@
+package com.davidfornesm.simpl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * While loop that jumps straight to its final state when it is a simple
+ * counting loop, such as
+ * <pre>
+ *   while i &lt;= n do (acc := acc + i * k; i := i + 1)
+ * </pre>
+ * The body may only be assignments {@code x := x + e} or {@code x := x - e},
+ * each variable assigned once. Induction variables step by a loop
+ * invariant amount; accumulators step by an affine combination of
+ * induction variables. The condition compares an induction variable with
+ * an invariant bound using {@code <=} or {@code >}.
+ *
+ * The trip count is computed exactly, and the loop runs normally when the
+ * counter would wrap around before the condition fails, or when anything
+ * it reads is undefined so that it fails at the same point. Final values
+ * are computed modulo 2^32, which gives the same results as int arithmetic.
+ * Other engines see an ordinary {@link ProgramStatement.WhileStmt}.
+ */
+class ClosedFormLoop extends ProgramStatement.WhileStmt {
+
+    /** An assignment {@code x := x + step} of the body, in body order. */
+    private static final class Update {
+        final ProgramStatement.AssignmentStmt assign;
+        final boolean induction;
+        /** Constant part of the step, and coefficients of induction variables by position. */
+        final ArithmeticExp constant;
+        final ArithmeticExp[] coefficients;
+
+        Update(ProgramStatement.AssignmentStmt assign, boolean induction,
+               ArithmeticExp constant, ArithmeticExp[] coefficients) {
+            this.assign = assign;
+            this.induction = induction;
+            this.constant = constant;
+            this.coefficients = coefficients;
+        }
+    }
+
+    private final Update[] updates;
+    private final Update counter;
+    private final ArithmeticExp bound;
+    /** True for a condition {@code counter <= bound + offset}, false for {@code counter >= bound + offset}. */
+    private final boolean upward;
+    private final int offset;
+    private final ArithmeticExp.VariableExp[] reads;
+
+    private ClosedFormLoop(BooleanExp b, ProgramStatement c, Update[] updates, Update counter,
+                           ArithmeticExp bound, boolean upward, int offset, ArithmeticExp.VariableExp[] reads) {
+        super(b, c);
+        this.updates = updates;
+        this.counter = counter;
+        this.bound = bound;
+        this.upward = upward;
+        this.offset = offset;
+        this.reads = reads;
+    }
+
+    /** Returns a closed form loop if the loop has the right shape, otherwise a plain one. */
+    static ProgramStatement.WhileStmt of(BooleanExp b, ProgramStatement c) {
+        ClosedFormLoop loop = Analysis.analyze(b, c);
+        return loop != null ? loop : new ProgramStatement.WhileStmt(b, c);
+    }
+
+    @Override
+    public State eval(State s) {
+        for (ArithmeticExp.VariableExp read : reads) {
+            if (!(read.slot < 0 ? s.contains(read.name) : s.isDefined(read.slot)))
+                return super.eval(s);
+        }
+        long tripCount = tripCount(s);
+        // a loop that would run out of fuel stops where the plain loop does
+        if (tripCount < 0 || s.iterations + tripCount > s.fuel())
+            return super.eval(s);
+        if (tripCount == 0)
+            return s;
+
+        int[] initial = new int[updates.length];
+        int[] steps = new int[updates.length];
+        for (int i = 0; i < updates.length; i++) {
+            initial[i] = get(s, updates[i].assign);
+            if (updates[i].induction)
+                steps[i] = updates[i].constant.eval(s);
+        }
+        long triangle = tripCount % 2 == 0 ? tripCount / 2 * (tripCount - 1) : (tripCount - 1) / 2 * tripCount;
+        for (int i = 0; i < updates.length; i++) {
+            Update update = updates[i];
+            long total;
+            if (update.induction) {
+                total = tripCount * steps[i];
+            } else {
+                // the step in iteration t is first + t * slope
+                int first = update.constant.eval(s);
+                int slope = 0;
+                for (int j = 0; j < updates.length; j++) {
+                    if (update.coefficients[j] == null) continue;
+                    int m = update.coefficients[j].eval(s);
+                    first += m * (j < i ? initial[j] + steps[j] : initial[j]);
+                    slope += m * steps[j];
+                }
+                total = tripCount * first + triangle * slope;
+            }
+            set(s, update.assign, (int) (initial[i] + total));
+        }
+        s.iterations += tripCount;
+        return s;
+    }
+
+    /** The number of iterations, or -1 if the counter would wrap around first. */
+    private long tripCount(State s) {
+        long start = get(s, counter.assign);
+        long step = counter.constant.eval(s);
+        long limit = (long) bound.eval(s) + offset;
+        if (upward) {
+            if (start > limit) return 0;
+            if (step <= 0) return -1;
+            long count = (limit - start) / step + 1;
+            return start + count * step > Integer.MAX_VALUE ? -1 : count;
+        }
+        if (start < limit) return 0;
+        if (step >= 0) return -1;
+        long count = (start - limit) / -step + 1;
+        return start + count * step < Integer.MIN_VALUE ? -1 : count;
+    }
+
+    private static int get(State s, ProgramStatement.AssignmentStmt assign) {
+        return assign.slot < 0 ? s.get(assign.x) : s.get(assign.slot);
+    }
+
+    private static void set(State s, ProgramStatement.AssignmentStmt assign, int n) {
+        if (assign.slot < 0)
+            s.setNewBinding(assign.x, n);
+        else
+            s.set(assign.slot, n);
+    }
+
+    /** Matches the loop shape and builds the step of every update from the body. */
+    private static final class Analysis {
+        private final Map<String, Integer> positions = new HashMap<>();
+        private final Map<String, ArithmeticExp.VariableExp> reads = new LinkedHashMap<>();
+        private Update[] updates;
+
+        static ClosedFormLoop analyze(BooleanExp b, ProgramStatement c) {
+            return new Analysis().loop(b, c);
+        }
+
+        private ClosedFormLoop loop(BooleanExp b, ProgramStatement c) {
+            List<ProgramStatement.AssignmentStmt> body = new ArrayList<>();
+            ProgramStatement[] statements = c instanceof ProgramStatement.BlockStmt block
+                    ? block.statements : new ProgramStatement[] {c};
+            for (ProgramStatement statement : statements) {
+                if (!(statement instanceof ProgramStatement.AssignmentStmt assign)) return null;
+                body.add(assign);
+            }
+            if (body.isEmpty()) return null;
+            for (int i = 0; i < body.size(); i++) {
+                if (positions.put(body.get(i).x, i) != null) return null;
+            }
+
+            // induction variables first, since accumulator steps are built from them
+            updates = new Update[body.size()];
+            ArithmeticExp[] steps = new ArithmeticExp[body.size()];
+            boolean[] subtract = new boolean[body.size()];
+            for (int i = 0; i < body.size(); i++) {
+                ProgramStatement.AssignmentStmt assign = body.get(i);
+                ArithmeticExp self;
+                if (assign.a instanceof ArithmeticExp.AdditionExp add && isVariable(add.a1, assign.x)) {
+                    self = add.a1;
+                    steps[i] = add.a2;
+                } else if (assign.a instanceof ArithmeticExp.AdditionExp add && isVariable(add.a2, assign.x)) {
+                    self = add.a2;
+                    steps[i] = add.a1;
+                } else if (assign.a instanceof ArithmeticExp.SubtractionExp sub && isVariable(sub.a1, assign.x)) {
+                    self = sub.a1;
+                    steps[i] = sub.a2;
+                    subtract[i] = true;
+                } else {
+                    return null;
+                }
+                collectReads(self);
+                if (isInvariant(steps[i])) {
+                    ArithmeticExp step = subtract[i]
+                            ? new ArithmeticExp.SubtractionExp(new ArithmeticExp.NumericExp(0), steps[i]) : steps[i];
+                    updates[i] = new Update(assign, true, step, null);
+                }
+            }
+            for (int i = 0; i < body.size(); i++) {
+                if (updates[i] != null) continue;
+                Affine step = affine(steps[i]);
+                if (step == null) return null;
+                if (subtract[i]) step = step.negate();
+                updates[i] = new Update(body.get(i), false, step.constant, step.coefficients);
+            }
+            for (ArithmeticExp step : steps)
+                collectReads(step);
+
+            boolean upward;
+            int offset;
+            ArithmeticExp.VariableExp var;
+            ArithmeticExp limit;
+            if (b instanceof BooleanExp.LeqExp leq) {
+                if (leq.a1 instanceof ArithmeticExp.VariableExp v && isInduction(v)) {
+                    var = v; limit = leq.a2; upward = true; offset = 0;
+                } else if (leq.a2 instanceof ArithmeticExp.VariableExp v && isInduction(v)) {
+                    var = v; limit = leq.a1; upward = false; offset = 0;
+                } else {
+                    return null;
+                }
+            } else if (b instanceof BooleanExp.BiggerThanExp gt) {
+                if (gt.a1 instanceof ArithmeticExp.VariableExp v && isInduction(v)) {
+                    var = v; limit = gt.a2; upward = false; offset = 1;
+                } else if (gt.a2 instanceof ArithmeticExp.VariableExp v && isInduction(v)) {
+                    var = v; limit = gt.a1; upward = true; offset = -1;
+                } else {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+            if (!isInvariant(limit)) return null;
+            collectReads(limit);
+
+            return new ClosedFormLoop(b, c, updates, updates[positions.get(var.name)], limit,
+                    upward, offset, reads.values().toArray(new ArithmeticExp.VariableExp[0]));
+        }
+
+        private boolean isInduction(ArithmeticExp.VariableExp v) {
+            Integer position = positions.get(v.name);
+            return position != null && updates[position] != null && updates[position].induction;
+        }
+
+        private boolean isVariable(ArithmeticExp a, String name) {
+            return a instanceof ArithmeticExp.VariableExp v && v.name.equals(name);
+        }
+
+        private boolean isInvariant(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.VariableExp v)
+                return !positions.containsKey(v.name);
+            if (a instanceof ArithmeticExp.AdditionExp add)
+                return isInvariant(add.a1) && isInvariant(add.a2);
+            if (a instanceof ArithmeticExp.SubtractionExp sub)
+                return isInvariant(sub.a1) && isInvariant(sub.a2);
+            if (a instanceof ArithmeticExp.ProductExp prod)
+                return isInvariant(prod.a1) && isInvariant(prod.a2);
+            return true;
+        }
+
+        private void collectReads(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.VariableExp v) {
+                reads.putIfAbsent(v.name, v);
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                collectReads(add.a1);
+                collectReads(add.a2);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                collectReads(sub.a1);
+                collectReads(sub.a2);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                collectReads(prod.a1);
+                collectReads(prod.a2);
+            }
+        }
+
+        /** The expression as constant + sum of coefficient * induction variable, or null if it is not affine. */
+        private Affine affine(ArithmeticExp a) {
+            if (isInvariant(a))
+                return new Affine(a, new ArithmeticExp[updates.length]);
+            if (a instanceof ArithmeticExp.VariableExp v) {
+                if (!isInduction(v)) return null;
+                Affine affine = new Affine(new ArithmeticExp.NumericExp(0), new ArithmeticExp[updates.length]);
+                affine.coefficients[positions.get(v.name)] = new ArithmeticExp.NumericExp(1);
+                return affine;
+            }
+            if (a instanceof ArithmeticExp.AdditionExp add) {
+                Affine l = affine(add.a1);
+                Affine r = affine(add.a2);
+                return l == null || r == null ? null : l.plus(r);
+            }
+            if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                Affine l = affine(sub.a1);
+                Affine r = affine(sub.a2);
+                return l == null || r == null ? null : l.plus(r.negate());
+            }
+            if (a instanceof ArithmeticExp.ProductExp prod) {
+                if (isInvariant(prod.a1)) {
+                    Affine r = affine(prod.a2);
+                    return r == null ? null : r.times(prod.a1);
+                }
+                if (isInvariant(prod.a2)) {
+                    Affine l = affine(prod.a1);
+                    return l == null ? null : l.times(prod.a2);
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Affine combination whose constant and coefficients are loop invariant expressions. */
+    private static final class Affine {
+        final ArithmeticExp constant;
+        final ArithmeticExp[] coefficients;
+
+        Affine(ArithmeticExp constant, ArithmeticExp[] coefficients) {
+            this.constant = constant;
+            this.coefficients = coefficients;
+        }
+
+        Affine plus(Affine other) {
+            ArithmeticExp[] sum = new ArithmeticExp[coefficients.length];
+            for (int i = 0; i < sum.length; i++) {
+                if (coefficients[i] == null)
+                    sum[i] = other.coefficients[i];
+                else if (other.coefficients[i] == null)
+                    sum[i] = coefficients[i];
+                else
+                    sum[i] = new ArithmeticExp.AdditionExp(coefficients[i], other.coefficients[i]);
+            }
+            return new Affine(new ArithmeticExp.AdditionExp(constant, other.constant), sum);
+        }
+
+        Affine negate() {
+            return times(new ArithmeticExp.NumericExp(-1));
+        }
+
+        Affine times(ArithmeticExp factor) {
+            ArithmeticExp[] product = new ArithmeticExp[coefficients.length];
+            for (int i = 0; i < product.length; i++) {
+                if (coefficients[i] != null)
+                    product[i] = new ArithmeticExp.ProductExp(factor, coefficients[i]);
+            }
+            return new Affine(new ArithmeticExp.ProductExp(factor, constant), product);
+        }
+    }
+}
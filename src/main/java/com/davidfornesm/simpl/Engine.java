@@ -0,0 +1,45 @@
+package com.davidfornesm.simpl;
+
+/**
+ * Execution engines that can run a resolved program.
+ * All of them must leave the same final state behind.
+ */
+enum Engine {
+    INTERPRETER {
+        @Override
+        State eval(ProgramStatement program, State s) {
+            return program.eval(s);
+        }
+    },
+    JIT {
+        @Override
+        State eval(ProgramStatement program, State s) {
+            // a program is resolved against one symbol table, so what it compiled to holds for every run
+            Jit jit = program.jit;
+            if (jit == null) {
+                try {
+                    jit = Jit.compile(program, s.symbols());
+                } catch (Jit.Unsupported e) {
+                    jit = Jit.UNSUPPORTED;
+                }
+                program.jit = jit;
+            }
+            return jit == Jit.UNSUPPORTED ? program.eval(s) : jit.eval(s);
+        }
+    },
+    VM {
+        @Override
+        State eval(ProgramStatement program, State s) {
+            return Vm.compile(program).eval(s);
+        }
+    },
+    SPECIALIZING {
+        @Override
+        State eval(ProgramStatement program, State s) {
+            Node.build(program).exec(s);
+            return s;
+        }
+    };
+
+    abstract State eval(ProgramStatement program, State s);
+}
@@ -0,0 +1,183 @@
+package com.davidfornesm.simpl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the phases of a run, so they can be
+ * lined up with GC and CPU samples in a recording. Each event is begun
+ * before its phase and finished with the facts about it; the facts that
+ * cost a tree walk are only gathered when the event is actually recorded.
+ */
+final class Events {
+
+    private Events() {
+    }
+
+    @Name("simpl.Lex")
+    @Label("SIMP Lex")
+    @Category("SIMP")
+    @Description("Scanning a source into tokens")
+    static final class Lex extends Event {
+        @Label("Source")
+        String source;
+        @Label("Tokens")
+        int tokens;
+
+        void finish(String source, int tokens) {
+            end();
+            if (!shouldCommit()) return;
+            this.source = source;
+            this.tokens = tokens;
+            commit();
+        }
+    }
+
+    @Name("simpl.Parse")
+    @Label("SIMP Parse")
+    @Category("SIMP")
+    @Description("Parsing tokens into a program")
+    static final class Parse extends Event {
+        @Label("Source")
+        String source;
+        @Label("Tokens")
+        int tokens;
+        @Label("Nodes")
+        int nodes;
+
+        void finish(String source, int tokens, ProgramStatement program) {
+            end();
+            if (!shouldCommit()) return;
+            this.source = source;
+            this.tokens = tokens;
+            this.nodes = nodes(program);
+            commit();
+        }
+    }
+
+    @Name("simpl.Optimize")
+    @Label("SIMP Optimize")
+    @Category("SIMP")
+    @Description("Constant folding, closed form loop detection, specialization and dead store elimination")
+    static final class Optimize extends Event {
+        @Label("Source")
+        String source;
+        @Label("Nodes Before")
+        int nodesBefore;
+        @Label("Nodes")
+        int nodes;
+
+        void finish(String source, ProgramStatement before, ProgramStatement after) {
+            end();
+            if (!shouldCommit()) return;
+            this.source = source;
+            this.nodesBefore = nodes(before);
+            this.nodes = nodes(after);
+            commit();
+        }
+    }
+
+    @Name("simpl.Eval")
+    @Label("SIMP Eval")
+    @Category("SIMP")
+    @Description("Running a program on one of the engines")
+    static final class Eval extends Event {
+        @Label("Source")
+        String source;
+        @Label("Engine")
+        String engine;
+        @Label("Nodes")
+        int nodes;
+        @Label("Variables")
+        int variables;
+        @Label("Loop Iterations")
+        long iterations;
+
+        /** The iteration count of the state when the run began, subtracted on finish. */
+        private transient long start;
+
+        Eval(State s) {
+            start = s.iterations;
+        }
+
+        void finish(String source, String engine, ProgramStatement program, State s) {
+            end();
+            if (!shouldCommit()) return;
+            this.source = source;
+            this.engine = engine;
+            this.nodes = nodes(program);
+            this.variables = s.symbols().size();
+            this.iterations = s.iterations - start;
+            commit();
+        }
+    }
+
+    @Name("simpl.Compile")
+    @Label("SIMP Compile")
+    @Category("SIMP")
+    @Description("Translating a program to C")
+    static final class Compile extends Event {
+        @Label("Source")
+        String source;
+        @Label("Nodes")
+        int nodes;
+        @Label("Variables")
+        int variables;
+
+        void finish(String source, ProgramStatement program, SymbolTable symbols) {
+            end();
+            if (!shouldCommit()) return;
+            this.source = source;
+            this.nodes = nodes(program);
+            this.variables = symbols.size();
+            commit();
+        }
+    }
+
+    /** Statements and expressions in the program. */
+    static int nodes(ProgramStatement c) {
+        int count = 0;
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            for (ProgramStatement statement : block.statements)
+                count += nodes(statement);
+        }
+        if (c instanceof ProgramStatement.AssignmentStmt assign)
+            return count + 1 + nodes(assign.a);
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse)
+            return count + 1 + nodes(ifThenElse.b) + nodes(ifThenElse.c1) + nodes(ifThenElse.c2);
+        if (c instanceof ProgramStatement.WhileStmt loop)
+            return count + 1 + nodes(loop.b) + nodes(loop.c);
+        if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            for (ProgramStatement branch : parallel.branches)
+                count += nodes(branch);
+        }
+        return count + 1;
+    }
+
+    private static int nodes(BooleanExp b) {
+        if (b instanceof BooleanExp.NotExp not)
+            return 1 + nodes(not.b);
+        if (b instanceof BooleanExp.OrExp or)
+            return 1 + nodes(or.b1) + nodes(or.b2);
+        if (b instanceof BooleanExp.EqualExp eq)
+            return 1 + nodes(eq.a1) + nodes(eq.a2);
+        if (b instanceof BooleanExp.LeqExp leq)
+            return 1 + nodes(leq.a1) + nodes(leq.a2);
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return 1 + nodes(bigger.a1) + nodes(bigger.a2);
+        return 1;
+    }
+
+    private static int nodes(ArithmeticExp a) {
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return 1 + nodes(add.a1) + nodes(add.a2);
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return 1 + nodes(sub.a1) + nodes(sub.a2);
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return 1 + nodes(prod.a1) + nodes(prod.a2);
+        return 1;
+    }
+}
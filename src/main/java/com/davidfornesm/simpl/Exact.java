@@ -0,0 +1,539 @@
+package com.davidfornesm.simpl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Arithmetic that never wraps around. {@link #instrument} returns a copy
+ * of a program whose assignments and comparisons compute in tiers: first
+ * in int, with the same overflow tests {@code Math.addExact} and friends
+ * make, then in long, then in BigInteger. A tier gives up on the first
+ * overflow, or on reading a variable too wide for it, and the next one
+ * evaluates the expression again; expressions have no side effects, so
+ * that is safe. Results are stored in the narrowest type that holds them,
+ * so a program that never overflows stays on plain ints throughout.
+ * <p>
+ * Only the interpreter runs exact programs. Their C translation uses
+ * {@code long long} with checked builtins that stop the program rather
+ * than wrap, since C has no big integers of its own.
+ */
+final class Exact {
+
+    private Exact() {
+    }
+
+    /** Thrown without a stack trace when a value does not fit the tier computing it. */
+    private static final class Overflow extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Overflow() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Overflow OVERFLOW = new Overflow();
+    private static final BigInteger INT_MAX = BigInteger.valueOf(Integer.MAX_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    /** An exact copy of the program; variables are given slots in the symbols. Loops in closed form loop again. */
+    static ProgramStatement instrument(ProgramStatement c, SymbolTable symbols) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            ProgramStatement[] statements = new ProgramStatement[block.statements.length];
+            for (int i = 0; i < statements.length; i++)
+                statements[i] = instrument(block.statements[i], symbols);
+            return new ProgramStatement.BlockStmt(statements).at(c.line);
+        }
+        if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            List<ProgramStatement> branches = new ArrayList<>();
+            for (ProgramStatement branch : parallel.branches)
+                branches.add(instrument(branch, symbols));
+            return new ProgramStatement.ParallelStmt(branches).at(c.line);
+        }
+        if (c instanceof ProgramStatement.WhileStmt loop) {
+            return new ProgramStatement.WhileStmt(condition(loop.b, symbols), instrument(loop.c, symbols)).at(c.line);
+        }
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            return new ProgramStatement.IfThenElseStmt(condition(ifThenElse.b, symbols),
+                    instrument(ifThenElse.c1, symbols), instrument(ifThenElse.c2, symbols)).at(c.line);
+        }
+        if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            Assignment exact = new Assignment(assign.x, term(assign.a, symbols));
+            exact.slot = symbols.slot(assign.x, assign.symbol);
+            return exact.at(c.line);
+        }
+        return c;
+    }
+
+    private static BooleanExp condition(BooleanExp b, SymbolTable symbols) {
+        if (b instanceof BooleanExp.NotExp not)
+            return new BooleanExp.NotExp(condition(not.b, symbols));
+        if (b instanceof BooleanExp.OrExp or)
+            return new BooleanExp.OrExp(condition(or.b1, symbols), condition(or.b2, symbols));
+        if (b instanceof BooleanExp.EqualExp eq)
+            return new Comparison(Comparison.EQUAL, term(eq.a1, symbols), term(eq.a2, symbols));
+        if (b instanceof BooleanExp.LeqExp leq)
+            return new Comparison(Comparison.LEQ, term(leq.a1, symbols), term(leq.a2, symbols));
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return new Comparison(Comparison.BIGGER, term(bigger.a1, symbols), term(bigger.a2, symbols));
+        return b;
+    }
+
+    private static Term term(ArithmeticExp a, SymbolTable symbols) {
+        if (a instanceof ArithmeticExp.NumericExp num)
+            return new Literal(BigInteger.valueOf(num.n));
+        if (a instanceof ArithmeticExp.BigNumericExp num)
+            return new Literal(num.n);
+        if (a instanceof ArithmeticExp.VariableExp var)
+            return new Variable(var.name, symbols.slot(var.name, var.symbol));
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return new Add(term(add.a1, symbols), term(add.a2, symbols));
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return new Subtract(term(sub.a1, symbols), term(sub.a2, symbols));
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return new Multiply(term(prod.a1, symbols), term(prod.a2, symbols));
+        throw new IllegalStateException("cannot make exact " + a + ".");
+    }
+
+    /** The first literal of the program too large for an int, or null if there is none. */
+    static BigInteger bigLiteral(ProgramStatement c) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            for (ProgramStatement statement : block.statements) {
+                BigInteger n = bigLiteral(statement);
+                if (n != null) return n;
+            }
+        } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            for (ProgramStatement branch : parallel.branches) {
+                BigInteger n = bigLiteral(branch);
+                if (n != null) return n;
+            }
+        } else if (c instanceof ProgramStatement.WhileStmt loop) {
+            BigInteger n = bigLiteral(loop.b);
+            return n != null ? n : bigLiteral(loop.c);
+        } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            BigInteger n = bigLiteral(ifThenElse.b);
+            if (n == null) n = bigLiteral(ifThenElse.c1);
+            return n != null ? n : bigLiteral(ifThenElse.c2);
+        } else if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            return bigLiteral(assign.a);
+        }
+        return null;
+    }
+
+    private static BigInteger bigLiteral(BooleanExp b) {
+        if (b instanceof BooleanExp.NotExp not)
+            return bigLiteral(not.b);
+        if (b instanceof BooleanExp.OrExp or) {
+            BigInteger n = bigLiteral(or.b1);
+            return n != null ? n : bigLiteral(or.b2);
+        }
+        if (b instanceof BooleanExp.EqualExp eq)
+            return bigLiteral(eq.a1, eq.a2);
+        if (b instanceof BooleanExp.LeqExp leq)
+            return bigLiteral(leq.a1, leq.a2);
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return bigLiteral(bigger.a1, bigger.a2);
+        return null;
+    }
+
+    private static BigInteger bigLiteral(ArithmeticExp a1, ArithmeticExp a2) {
+        BigInteger n = bigLiteral(a1);
+        return n != null ? n : bigLiteral(a2);
+    }
+
+    private static BigInteger bigLiteral(ArithmeticExp a) {
+        if (a instanceof ArithmeticExp.BigNumericExp num)
+            return num.n;
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return bigLiteral(add.a1, add.a2);
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return bigLiteral(sub.a1, sub.a2);
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return bigLiteral(prod.a1, prod.a2);
+        return null;
+    }
+
+    /** Streams the C translation of the exact program, in checked long long arithmetic. */
+    static void writeC(ProgramStatement program, SymbolTable symbols, Appendable out) throws IOException {
+        out.append("#include <stdio.h>\n#include <stdlib.h>\n" +
+                "static long long simpl_overflow(void) { fputs(\"overflow\\n\", stderr); exit(70); }\n" +
+                "static long long simpl_add(long long a, long long b) " +
+                "{ long long r; return __builtin_add_overflow(a, b, &r) ? simpl_overflow() : r; }\n" +
+                "static long long simpl_sub(long long a, long long b) " +
+                "{ long long r; return __builtin_sub_overflow(a, b, &r) ? simpl_overflow() : r; }\n" +
+                "static long long simpl_mul(long long a, long long b) " +
+                "{ long long r; return __builtin_mul_overflow(a, b, &r) ? simpl_overflow() : r; }\n" +
+                "int main() {\n");
+        for (int slot = 0; slot < symbols.size(); slot++)
+            out.append("long long ").append(symbols.name(slot)).append(";\n");
+        instrument(program, symbols).compile(out);
+        out.append(" printf(\"result := %lld\\n\", result);}");
+    }
+
+    /** An expression computed in whichever tier its values fit. */
+    abstract static class Term extends ArithmeticExp {
+
+        /** The value as an int, throwing {@link Overflow} if it or any part of it does not fit one. */
+        public abstract int eval(State s);
+
+        /** The value as a long, throwing {@link Overflow} if it or any part of it does not fit one. */
+        abstract long evalLong(State s);
+
+        abstract BigInteger evalBig(State s);
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            return this;
+        }
+    }
+
+    static final class Literal extends Term {
+        final BigInteger n;
+        private final int small;
+        private final long large;
+        private final boolean fitsInt;
+        private final boolean fitsLong;
+
+        Literal(BigInteger n) {
+            this.n = n;
+            this.small = n.intValue();
+            this.large = n.longValue();
+            this.fitsInt = n.compareTo(INT_MAX) <= 0;
+            this.fitsLong = n.compareTo(LONG_MAX) <= 0;
+        }
+
+        public int eval(State s) {
+            if (!fitsInt) throw OVERFLOW;
+            return small;
+        }
+
+        long evalLong(State s) {
+            if (!fitsLong) throw OVERFLOW;
+            return large;
+        }
+
+        BigInteger evalBig(State s) {
+            return n;
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            if (fitsInt)
+                out.append(n.toString());
+            else if (fitsLong)
+                out.append(n.toString()).append("LL");
+            else
+                out.append("simpl_overflow()");
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            out.append("(num: ").append(n.toString()).append(')');
+        }
+    }
+
+    static final class Variable extends Term {
+        final String name;
+        final int slot;
+
+        Variable(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        public int eval(State s) {
+            if (s.isWide(slot)) throw OVERFLOW;
+            return s.get(slot);
+        }
+
+        long evalLong(State s) {
+            if (!s.isWide(slot)) return s.get(slot);
+            if (s.wide(slot) instanceof Long n) return n;
+            throw OVERFLOW;
+        }
+
+        BigInteger evalBig(State s) {
+            if (!s.isWide(slot)) return BigInteger.valueOf(s.get(slot));
+            Number n = s.wide(slot);
+            return n instanceof BigInteger big ? big : BigInteger.valueOf(n.longValue());
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            reads.add(name);
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            out.append(name);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            out.append("(var: ").append(name).append(')');
+        }
+    }
+
+    static final class Add extends Term {
+        final Term a1;
+        final Term a2;
+
+        Add(Term a1, Term a2) {
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        public int eval(State s) {
+            int x = a1.eval(s);
+            int y = a2.eval(s);
+            int r = x + y;
+            if (((x ^ r) & (y ^ r)) < 0) throw OVERFLOW;
+            return r;
+        }
+
+        long evalLong(State s) {
+            long x = a1.evalLong(s);
+            long y = a2.evalLong(s);
+            long r = x + y;
+            if (((x ^ r) & (y ^ r)) < 0) throw OVERFLOW;
+            return r;
+        }
+
+        BigInteger evalBig(State s) {
+            return a1.evalBig(s).add(a2.evalBig(s));
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            call("simpl_add", a1, a2, out);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            binary("add", a1, a2, out);
+        }
+    }
+
+    static final class Subtract extends Term {
+        final Term a1;
+        final Term a2;
+
+        Subtract(Term a1, Term a2) {
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        public int eval(State s) {
+            int x = a1.eval(s);
+            int y = a2.eval(s);
+            int r = x - y;
+            if (((x ^ y) & (x ^ r)) < 0) throw OVERFLOW;
+            return r;
+        }
+
+        long evalLong(State s) {
+            long x = a1.evalLong(s);
+            long y = a2.evalLong(s);
+            long r = x - y;
+            if (((x ^ y) & (x ^ r)) < 0) throw OVERFLOW;
+            return r;
+        }
+
+        BigInteger evalBig(State s) {
+            return a1.evalBig(s).subtract(a2.evalBig(s));
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            call("simpl_sub", a1, a2, out);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            binary("sub", a1, a2, out);
+        }
+    }
+
+    static final class Multiply extends Term {
+        final Term a1;
+        final Term a2;
+
+        Multiply(Term a1, Term a2) {
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        public int eval(State s) {
+            long r = (long) a1.eval(s) * a2.eval(s);
+            if ((int) r != r) throw OVERFLOW;
+            return (int) r;
+        }
+
+        long evalLong(State s) {
+            long x = a1.evalLong(s);
+            long y = a2.evalLong(s);
+            long high = Math.multiplyHigh(x, y);
+            long r = x * y;
+            if (high != (r >> 63)) throw OVERFLOW;
+            return r;
+        }
+
+        BigInteger evalBig(State s) {
+            return a1.evalBig(s).multiply(a2.evalBig(s));
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            call("simpl_mul", a1, a2, out);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            binary("prod", a1, a2, out);
+        }
+    }
+
+    private static void call(String function, Term a1, Term a2, Appendable out) throws IOException {
+        out.append(function).append('(');
+        a1.compile(out);
+        out.append(", ");
+        a2.compile(out);
+        out.append(')');
+    }
+
+    private static void binary(String label, Term a1, Term a2, Appendable out) throws IOException {
+        out.append('(').append(label).append(": ");
+        a1.dump(out);
+        out.append(", ");
+        a2.dump(out);
+        out.append(')');
+    }
+
+    /** A comparison of two terms, made in the first tier both fit. */
+    static final class Comparison extends BooleanExp {
+        static final int EQUAL = 0;
+        static final int LEQ = 1;
+        static final int BIGGER = 2;
+
+        final int kind;
+        final Term a1;
+        final Term a2;
+
+        Comparison(int kind, Term a1, Term a2) {
+            this.kind = kind;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        @Override
+        public boolean eval(State s) {
+            int order;
+            try {
+                order = Integer.compare(a1.eval(s), a2.eval(s));
+            } catch (Overflow e) {
+                try {
+                    order = Long.compare(a1.evalLong(s), a2.evalLong(s));
+                } catch (Overflow wider) {
+                    order = a1.evalBig(s).compareTo(a2.evalBig(s));
+                }
+            }
+            switch (kind) {
+                case EQUAL: return order == 0;
+                case LEQ: return order <= 0;
+                default: return order > 0;
+            }
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(kind == EQUAL ? ") == (" : kind == LEQ ? ") <= (" : ") > (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            binary(kind == EQUAL ? "equal" : kind == LEQ ? "leq" : "bigger", a1, a2, out);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public BooleanExp fold() {
+            return this;
+        }
+    }
+
+    /** An assignment that stores its value in the narrowest type it fits. */
+    static final class Assignment extends ProgramStatement.AssignmentStmt {
+        private final Term term;
+
+        Assignment(String name, Term term) {
+            super(name, term);
+            this.term = term;
+        }
+
+        @Override
+        public State eval(State s) {
+            try {
+                s.setExact(slot, term.eval(s));
+                return s;
+            } catch (Overflow e) {
+                // wider tiers below
+            }
+            try {
+                s.setExact(slot, term.evalLong(s));
+            } catch (Overflow e) {
+                s.setExact(slot, term.evalBig(s));
+            }
+            return s;
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            return this;
+        }
+    }
+}
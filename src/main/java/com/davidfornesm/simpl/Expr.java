@@ -1,43 +1,91 @@
 package com.davidfornesm.simpl;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.util.Set;
+
 abstract class ArithmeticExp {
 
     public abstract int eval(State s);
 
-    public abstract String compile(State s);
+    /** Writes the expression as C source. */
+    public abstract void compile(Appendable out) throws IOException;
+
+    /** Writes the AST dump that {@link #toString()} returns. */
+    public abstract void dump(Appendable out) throws IOException;
+
+    public abstract void resolve(SymbolTable symbols);
+
+    /** Adds the variables the expression reads to the set. */
+    public abstract void variables(Set<String> reads);
+
+    /** Returns an equivalent expression with constant subexpressions evaluated. */
+    public abstract ArithmeticExp fold();
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
 
     static class VariableExp extends ArithmeticExp {
-        private final String name;
+        final String name;
+        int slot = -1;
+        /** Id the lexer interned the name under, tried first when resolving. */
+        int symbol = -1;
 
         public VariableExp(String index) {
             name = index;
         }
 
         @Override
-        public String toString() {
-            return "(var: " + name + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(var: ").append(name).append(')');
         }
 
         public int eval(State s) {
-            return s.lookup(name);
+            if (slot < 0)
+                return s.get(name);
+            return s.get(slot);
         }
 
         @Override
-        public String compile(State s) {
-            return name;
+        public void compile(Appendable out) throws IOException {
+            out.append(name);
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            reads.add(name);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            slot = symbols.slot(name, symbol);
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            return this;
         }
     }
 
     static class NumericExp extends ArithmeticExp {
-        private final int n;
+        final int n;
 
         public NumericExp(int m) {
             n = m;
         }
 
         @Override
-        public String toString() {
-            return "(num: " + n + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(num: ").append(String.valueOf(n)).append(')');
         }
 
         public int eval(State s) {
@@ -45,14 +93,67 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String compile(State s) {
-            return String.valueOf(n);
+        public void compile(Appendable out) throws IOException {
+            out.append(String.valueOf(n));
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            return this;
+        }
+    }
+
+    /** A literal too large for an int, which only exact runs can evaluate. */
+    static class BigNumericExp extends ArithmeticExp {
+        final BigInteger n;
+
+        public BigNumericExp(BigInteger m) {
+            n = m;
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            out.append("(num: ").append(n.toString()).append(')');
+        }
+
+        public int eval(State s) {
+            throw tooLarge(n);
+        }
+
+        static ArithmeticException tooLarge(BigInteger n) {
+            return new ArithmeticException("number too large for an int: " + n + "; run with exact.");
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            out.append(n.toString());
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            return this;
         }
     }
 
     static class AdditionExp extends ArithmeticExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public AdditionExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -60,8 +161,12 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String toString() {
-            return "(add: "  + a1.toString() + ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(add: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public int eval(State s) {
@@ -69,14 +174,43 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")" + " + " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") + (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof NumericExp n1 && e2 instanceof NumericExp n2)
+                return new NumericExp(n1.n + n2.n);
+            if (e1 instanceof NumericExp n1 && n1.n == 0)
+                return e2;
+            if (e2 instanceof NumericExp n2 && n2.n == 0)
+                return e1;
+            return e1 == a1 && e2 == a2 ? this : new AdditionExp(e1, e2);
         }
     }
 
     static class SubtractionExp extends ArithmeticExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public SubtractionExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -84,8 +218,12 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String toString() {
-            return "(sub: " + a1.toString() + ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(sub: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public int eval(State s) {
@@ -93,14 +231,41 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")" + " - " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") - (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof NumericExp n1 && e2 instanceof NumericExp n2)
+                return new NumericExp(n1.n - n2.n);
+            if (e2 instanceof NumericExp n2 && n2.n == 0)
+                return e1;
+            return e1 == a1 && e2 == a2 ? this : new SubtractionExp(e1, e2);
         }
     }
 
     static class ProductExp extends ArithmeticExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public ProductExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -108,8 +273,12 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String toString() {
-            return "(prod: " + a1.toString() + ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(prod: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public int eval(State s) {
@@ -117,9 +286,37 @@ abstract class ArithmeticExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")"
-                    + " * " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") * (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public ArithmeticExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof NumericExp n1 && e2 instanceof NumericExp n2)
+                return new NumericExp(n1.n * n2.n);
+            if (e1 instanceof NumericExp n1 && n1.n == 1)
+                return e2;
+            if (e2 instanceof NumericExp n2 && n2.n == 1)
+                return e1;
+            return e1 == a1 && e2 == a2 ? this : new ProductExp(e1, e2);
         }
     }
 }
@@ -128,13 +325,36 @@ abstract class BooleanExp {
 
     public abstract boolean eval(State s);
 
-    public abstract String compile(State s);
+    /** Writes the expression as C source. */
+    public abstract void compile(Appendable out) throws IOException;
+
+    /** Writes the AST dump that {@link #toString()} returns. */
+    public abstract void dump(Appendable out) throws IOException;
+
+    public abstract void resolve(SymbolTable symbols);
+
+    /** Adds the variables the condition reads to the set. */
+    public abstract void variables(Set<String> reads);
+
+    /** Returns an equivalent expression with constant subexpressions evaluated. */
+    public abstract BooleanExp fold();
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
 
     static class TrueExp extends BooleanExp {
 
         @Override
-        public String toString() {
-            return "(true)";
+        public void dump(Appendable out) throws IOException {
+            out.append("(true)");
         }
 
         public boolean eval(State s) {
@@ -142,16 +362,29 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "1";
+        public void compile(Appendable out) throws IOException {
+            out.append('1');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public BooleanExp fold() {
+            return this;
         }
     }
 
     static class FalseExp extends BooleanExp {
 
         @Override
-        public String toString() {
-            return "(false)";
+        public void dump(Appendable out) throws IOException {
+            out.append("(false)");
         }
 
         public boolean eval(State s) {
@@ -159,14 +392,27 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "0";
+        public void compile(Appendable out) throws IOException {
+            out.append('0');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public BooleanExp fold() {
+            return this;
         }
     }
 
     static class EqualExp extends BooleanExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public EqualExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -174,8 +420,12 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String toString() {
-            return "(equal: " + a1.toString() +  ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(equal: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public boolean eval(State s) {
@@ -183,14 +433,39 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")" + " == " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") == (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public BooleanExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof ArithmeticExp.NumericExp n1 && e2 instanceof ArithmeticExp.NumericExp n2)
+                return n1.n == n2.n ? new TrueExp() : new FalseExp();
+            return e1 == a1 && e2 == a2 ? this : new EqualExp(e1, e2);
         }
     }
 
     static class LeqExp extends BooleanExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public LeqExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -198,8 +473,12 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String toString() {
-            return "(leq: " + a1.toString() + ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(leq: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public boolean eval(State s) {
@@ -207,14 +486,39 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")" + " <= " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") <= (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public BooleanExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof ArithmeticExp.NumericExp n1 && e2 instanceof ArithmeticExp.NumericExp n2)
+                return n1.n <= n2.n ? new TrueExp() : new FalseExp();
+            return e1 == a1 && e2 == a2 ? this : new LeqExp(e1, e2);
         }
     }
 
     static class BiggerThanExp extends BooleanExp {
-        private final ArithmeticExp a1;
-        private final ArithmeticExp a2;
+        final ArithmeticExp a1;
+        final ArithmeticExp a2;
 
         public BiggerThanExp(ArithmeticExp e1, ArithmeticExp e2) {
             a1 = e1;
@@ -222,8 +526,12 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String toString() {
-            return "(bigger: " + a1.toString() + ", " + a2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(bigger: ");
+            a1.dump(out);
+            out.append(", ");
+            a2.dump(out);
+            out.append(')');
         }
 
         public boolean eval(State s) {
@@ -231,22 +539,49 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + a1.compile(s) + ")" + " > " + "(" + a2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            a1.compile(out);
+            out.append(") > (");
+            a2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            a1.variables(reads);
+            a2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            a1.resolve(symbols);
+            a2.resolve(symbols);
+        }
+
+        @Override
+        public BooleanExp fold() {
+            ArithmeticExp e1 = a1.fold();
+            ArithmeticExp e2 = a2.fold();
+            if (e1 instanceof ArithmeticExp.NumericExp n1 && e2 instanceof ArithmeticExp.NumericExp n2)
+                return n1.n > n2.n ? new TrueExp() : new FalseExp();
+            return e1 == a1 && e2 == a2 ? this : new BiggerThanExp(e1, e2);
         }
     }
 
     static class NotExp extends BooleanExp {
 
-        private final BooleanExp b;
+        final BooleanExp b;
 
         public NotExp(BooleanExp e) {
             b = e;
         }
 
         @Override
-        public String toString() {
-            return "(not: " + b.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(not: ");
+            b.dump(out);
+            out.append(')');
         }
 
         public boolean eval(State s) {
@@ -254,15 +589,39 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "!(" + b.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append("!(");
+            b.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            b.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            b.resolve(symbols);
+        }
+
+        @Override
+        public BooleanExp fold() {
+            BooleanExp e = b.fold();
+            if (e instanceof TrueExp)
+                return new FalseExp();
+            if (e instanceof FalseExp)
+                return new TrueExp();
+            if (e instanceof NotExp not)
+                return not.b;
+            return e == b ? this : new NotExp(e);
         }
     }
 
     static class OrExp extends BooleanExp {
 
-        private final BooleanExp b1;
-        private final BooleanExp b2;
+        final BooleanExp b1;
+        final BooleanExp b2;
 
         public OrExp(BooleanExp e1, BooleanExp e2) {
             b1 = e1;
@@ -270,8 +629,12 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String toString() {
-            return "(or: " + b1.toString() + ", " + b2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(or: ");
+            b1.dump(out);
+            out.append(", ");
+            b2.dump(out);
+            out.append(')');
         }
 
         public boolean eval(State s) {
@@ -283,8 +646,41 @@ abstract class BooleanExp {
         }
 
         @Override
-        public String compile(State s) {
-            return "(" + b1.compile(s) + ")" + " || " + "(" + b2.compile(s) + ")";
+        public void compile(Appendable out) throws IOException {
+            out.append('(');
+            b1.compile(out);
+            out.append(") || (");
+            b2.compile(out);
+            out.append(')');
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            b1.variables(reads);
+            b2.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            b1.resolve(symbols);
+            b2.resolve(symbols);
+        }
+
+        /**
+         * A constant true on the right cannot replace the whole expression,
+         * since the left side still has to run and may fail.
+         */
+        @Override
+        public BooleanExp fold() {
+            BooleanExp e1 = b1.fold();
+            BooleanExp e2 = b2.fold();
+            if (e1 instanceof TrueExp)
+                return e1;
+            if (e1 instanceof FalseExp)
+                return e2;
+            if (e2 instanceof FalseExp)
+                return e1;
+            return e1 == b1 && e2 == b2 ? this : new OrExp(e1, e2);
         }
     }
 }
@@ -0,0 +1,484 @@
+package com.davidfornesm.simpl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Program held as parallel arrays instead of a tree of objects.
+ * Node {@code n} is {@code ops[n]} with up to three int operands, which are
+ * child node indices, a constant or a variable slot; blocks and parallel
+ * compositions keep their children as a run of {@link #lists}. The parser
+ * builds nodes children first, so a few million of them take a handful of
+ * arrays rather than a few million objects, laid out close to the order
+ * they run in. Slots are those of the symbol table the program was parsed
+ * against, and states it runs on must share that table.
+ */
+final class FlatProgram {
+    static final byte SKIP = 0;
+    static final byte ASSIGN = 1;       // slot, expression
+    static final byte BLOCK = 2;        // list offset, count
+    static final byte IF = 3;           // condition, then, else
+    static final byte WHILE = 4;        // condition, body
+    static final byte PARALLEL = 5;     // list offset, count
+    static final byte TRUE = 8;
+    static final byte FALSE = 9;
+    static final byte NOT = 10;         // operand
+    static final byte OR = 11;          // left, right
+    static final byte EQUAL = 12;       // left, right
+    static final byte LEQ = 13;         // left, right
+    static final byte BIGGER = 14;      // left, right
+    static final byte NUM = 16;         // constant
+    static final byte VAR = 17;         // slot
+    static final byte ADD = 18;         // left, right
+    static final byte SUB = 19;         // left, right
+    static final byte MUL = 20;         // left, right
+
+    private final SymbolTable symbols;
+    private byte[] ops = new byte[64];
+    private int[] first = new int[64];
+    private int[] second = new int[64];
+    private int[] third = new int[64];
+    private int[] lists = new int[16];
+    private int size;
+    private int listSize;
+    private int root = -1;
+
+    FlatProgram(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    SymbolTable symbols() {
+        return symbols;
+    }
+
+    /** Nodes in the program. */
+    int size() {
+        return size;
+    }
+
+    int node(byte op) {
+        return node(op, 0, 0, 0);
+    }
+
+    int node(byte op, int x) {
+        return node(op, x, 0, 0);
+    }
+
+    int node(byte op, int x, int y) {
+        return node(op, x, y, 0);
+    }
+
+    int node(byte op, int x, int y, int z) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            first = Arrays.copyOf(first, capacity);
+            second = Arrays.copyOf(second, capacity);
+            third = Arrays.copyOf(third, capacity);
+        }
+        ops[size] = op;
+        first[size] = x;
+        second[size] = y;
+        third[size] = z;
+        return size++;
+    }
+
+    /** A block or parallel node over the first count children; blocks splice in the children of nested blocks. */
+    int list(byte op, int[] children, int count) {
+        int start = listSize;
+        for (int i = 0; i < count; i++) {
+            int child = children[i];
+            if (op == BLOCK && ops[child] == BLOCK) {
+                for (int j = first[child]; j < first[child] + second[child]; j++)
+                    push(lists[j]);
+            } else {
+                push(child);
+            }
+        }
+        return node(op, start, listSize - start);
+    }
+
+    private void push(int child) {
+        if (listSize == lists.length)
+            lists = Arrays.copyOf(lists, listSize * 2);
+        lists[listSize++] = child;
+    }
+
+    /** Sets the node the program starts at and trims the arrays to their contents. */
+    FlatProgram finish(int root) {
+        this.root = root;
+        ops = Arrays.copyOf(ops, size);
+        first = Arrays.copyOf(first, size);
+        second = Arrays.copyOf(second, size);
+        third = Arrays.copyOf(third, size);
+        lists = Arrays.copyOf(lists, listSize);
+        return this;
+    }
+
+    State eval(State s) {
+        statement(root, s);
+        return s;
+    }
+
+    private void statement(int n, State s) {
+        while (true) {
+            switch (ops[n]) {
+                case ASSIGN:
+                    s.set(first[n], arithmetic(second[n], s));
+                    return;
+                case BLOCK:
+                case PARALLEL:
+                    // parallel branches do not share written variables, so running them in order is equivalent
+                    for (int i = first[n], end = first[n] + second[n]; i < end; i++)
+                        statement(lists[i], s);
+                    return;
+                case IF:
+                    n = bool(first[n], s) ? second[n] : third[n];
+                    continue;
+                case WHILE:
+                    while (bool(first[n], s)) {
+                        if (s.iterations >= s.checkpoint) s.check();
+                        s.iterations++;
+                        statement(second[n], s);
+                    }
+                    return;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private boolean bool(int n, State s) {
+        switch (ops[n]) {
+            case TRUE: return true;
+            case FALSE: return false;
+            case NOT: return !bool(first[n], s);
+            case OR: return bool(first[n], s) || bool(second[n], s);
+            case EQUAL: return arithmetic(first[n], s) == arithmetic(second[n], s);
+            case LEQ: return arithmetic(first[n], s) <= arithmetic(second[n], s);
+            case BIGGER: return arithmetic(first[n], s) > arithmetic(second[n], s);
+            default: throw new IllegalStateException("not a condition: " + ops[n]);
+        }
+    }
+
+    private int arithmetic(int n, State s) {
+        switch (ops[n]) {
+            case NUM: return first[n];
+            case VAR: return s.get(first[n]);
+            case ADD: return arithmetic(first[n], s) + arithmetic(second[n], s);
+            case SUB: return arithmetic(first[n], s) - arithmetic(second[n], s);
+            case MUL: return arithmetic(first[n], s) * arithmetic(second[n], s);
+            default: throw new IllegalStateException("not an expression: " + ops[n]);
+        }
+    }
+
+    /** Writes the program as C source, exactly as the object tree would. */
+    void compile(Appendable out) throws IOException {
+        compile(root, out);
+    }
+
+    private void compile(int n, Appendable out) throws IOException {
+        switch (ops[n]) {
+            case ASSIGN:
+                out.append(symbols.name(first[n])).append(" = ");
+                compile(second[n], out);
+                out.append(";\n");
+                break;
+            case BLOCK:
+                for (int i = first[n], end = first[n] + second[n]; i < end; i++) {
+                    if (i > first[n]) out.append(' ');
+                    compile(lists[i], out);
+                }
+                break;
+            case PARALLEL:
+                for (int i = first[n], end = first[n] + second[n]; i < end; i++) {
+                    compile(lists[i], out);
+                    out.append(' ');
+                }
+                break;
+            case IF:
+                if (compilesToNothing(second[n]))
+                    break;
+                out.append("if (");
+                compile(first[n], out);
+                out.append(") {\n\t");
+                compile(second[n], out);
+                out.append("\n\r}\n");
+                if (!compilesToNothing(third[n])) {
+                    out.append(" else {\n\t");
+                    compile(third[n], out);
+                    out.append("\n\r}\n");
+                }
+                break;
+            case WHILE:
+                if (compilesToNothing(second[n]))
+                    break;
+                out.append("while (");
+                compile(first[n], out);
+                out.append(") {\n\t");
+                compile(second[n], out);
+                out.append("\n\r}\n");
+                break;
+            case TRUE: out.append('1'); break;
+            case FALSE: out.append('0'); break;
+            case NOT:
+                out.append("!(");
+                compile(first[n], out);
+                out.append(')');
+                break;
+            case NUM: out.append(String.valueOf(first[n])); break;
+            case VAR: out.append(symbols.name(first[n])); break;
+            case OR: binary(n, " || ", out); break;
+            case EQUAL: binary(n, " == ", out); break;
+            case LEQ: binary(n, " <= ", out); break;
+            case BIGGER: binary(n, " > ", out); break;
+            case ADD: binary(n, " + ", out); break;
+            case SUB: binary(n, " - ", out); break;
+            case MUL: binary(n, " * ", out); break;
+            default: break;
+        }
+    }
+
+    private void binary(int n, String operator, Appendable out) throws IOException {
+        out.append('(');
+        compile(first[n], out);
+        out.append(')').append(operator).append('(');
+        compile(second[n], out);
+        out.append(')');
+    }
+
+    /** The counterpart of {@link ProgramStatement#compilesToNothing}. */
+    private boolean compilesToNothing(int n) {
+        while (true) {
+            if (ops[n] == SKIP)
+                return true;
+            if (ops[n] == IF)
+                n = second[n];
+            else if (ops[n] == WHILE)
+                n = second[n];
+            else
+                return false;
+        }
+    }
+
+    /** Writes the same AST dump as the object tree. */
+    void dump(Appendable out) throws IOException {
+        dump(root, out);
+    }
+
+    private void dump(int n, Appendable out) throws IOException {
+        switch (ops[n]) {
+            case SKIP: out.append("(skip)"); return;
+            case TRUE: out.append("(true)"); return;
+            case FALSE: out.append("(false)"); return;
+            case NUM: out.append("(num: ").append(String.valueOf(first[n])).append(')'); return;
+            case VAR: out.append("(var: ").append(symbols.name(first[n])).append(')'); return;
+            case ASSIGN:
+                out.append("(assign: ").append(symbols.name(first[n])).append(", ");
+                dump(second[n], out);
+                out.append(')');
+                return;
+            case BLOCK:
+            case PARALLEL:
+                out.append(ops[n] == BLOCK ? "(block: " : "(par: ");
+                for (int i = first[n], end = first[n] + second[n]; i < end; i++) {
+                    if (i > first[n]) out.append(", ");
+                    dump(lists[i], out);
+                }
+                out.append(')');
+                return;
+            default:
+                break;
+        }
+        out.append('(').append(label(ops[n])).append(": ");
+        dump(first[n], out);
+        if (ops[n] != NOT) {
+            out.append(", ");
+            dump(second[n], out);
+        }
+        if (ops[n] == IF) {
+            out.append(", ");
+            dump(third[n], out);
+        }
+        out.append(')');
+    }
+
+    private static String label(byte op) {
+        switch (op) {
+            case IF: return "if";
+            case WHILE: return "while";
+            case NOT: return "not";
+            case OR: return "or";
+            case EQUAL: return "equal";
+            case LEQ: return "leq";
+            case BIGGER: return "bigger";
+            case ADD: return "add";
+            case SUB: return "sub";
+            default: return "prod";
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /** A variable written by one branch and read or written by another, or null if there is none. */
+    String conflict(int[] branches, int count) {
+        List<Set<Integer>> reads = new ArrayList<>();
+        List<Set<Integer>> writes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Set<Integer> read = new LinkedHashSet<>();
+            Set<Integer> written = new LinkedHashSet<>();
+            variables(branches[i], read, written);
+            reads.add(read);
+            writes.add(written);
+        }
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                if (i == j) continue;
+                for (int slot : writes.get(i)) {
+                    if (reads.get(j).contains(slot) || writes.get(j).contains(slot))
+                        return symbols.name(slot);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void variables(int n, Set<Integer> reads, Set<Integer> writes) {
+        switch (ops[n]) {
+            case ASSIGN:
+                writes.add(first[n]);
+                variables(second[n], reads, writes);
+                return;
+            case VAR:
+                reads.add(first[n]);
+                return;
+            case BLOCK:
+            case PARALLEL:
+                for (int i = first[n], end = first[n] + second[n]; i < end; i++)
+                    variables(lists[i], reads, writes);
+                return;
+            case SKIP:
+            case TRUE:
+            case FALSE:
+            case NUM:
+                return;
+            case IF:
+                variables(first[n], reads, writes);
+                variables(second[n], reads, writes);
+                variables(third[n], reads, writes);
+                return;
+            default:
+                variables(first[n], reads, writes);
+                if (ops[n] != NOT)
+                    variables(second[n], reads, writes);
+        }
+    }
+
+    /** Heap bytes of the arrays, trimmed to their contents. */
+    long bytes() {
+        return array(ops.length, 1) + 3 * array(first.length, 4) + array(lists.length, 4);
+    }
+
+    /**
+     * Estimated heap bytes of the object tree of a parsed, resolved program on a
+     * 64-bit JVM with compressed references: 12 byte headers, 4 byte fields
+     * and references, 8 byte alignment. The lexer interns identifiers, so each
+     * distinct name is one string shared by all its occurrences.
+     */
+    static long bytes(ProgramStatement c) {
+        return bytes(c, new HashSet<>());
+    }
+
+    private static long bytes(ProgramStatement c, Set<String> names) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            long bytes = object(4 + 4) + array(block.statements.length, 4);
+            for (ProgramStatement statement : block.statements)
+                bytes += bytes(statement, names);
+            return bytes;
+        }
+        if (c instanceof ProgramStatement.AssignmentStmt assign)
+            return object(4 + 4 + 4 + 4 + 4) + string(assign.x, names) + bytes(assign.a, names);
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse)
+            return object(4 + 3 * 4) + bytes(ifThenElse.b, names) + bytes(ifThenElse.c1, names)
+                    + bytes(ifThenElse.c2, names);
+        if (c instanceof ProgramStatement.WhileStmt loop)
+            return object(4 + 2 * 4) + bytes(loop.b, names) + bytes(loop.c, names);
+        if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            long bytes = object(4 + 4 + 1 + 4) + object(4) + array(parallel.branches.size(), 4);
+            for (ProgramStatement branch : parallel.branches)
+                bytes += bytes(branch, names);
+            return bytes;
+        }
+        return object(4);
+    }
+
+    private static long bytes(BooleanExp b, Set<String> names) {
+        if (b instanceof BooleanExp.NotExp not)
+            return object(4) + bytes(not.b, names);
+        if (b instanceof BooleanExp.OrExp or)
+            return object(2 * 4) + bytes(or.b1, names) + bytes(or.b2, names);
+        if (b instanceof BooleanExp.EqualExp eq)
+            return object(2 * 4) + bytes(eq.a1, names) + bytes(eq.a2, names);
+        if (b instanceof BooleanExp.LeqExp leq)
+            return object(2 * 4) + bytes(leq.a1, names) + bytes(leq.a2, names);
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return object(2 * 4) + bytes(bigger.a1, names) + bytes(bigger.a2, names);
+        return object(0);
+    }
+
+    private static long bytes(ArithmeticExp a, Set<String> names) {
+        if (a instanceof ArithmeticExp.VariableExp var)
+            return object(4 + 4 + 4) + string(var.name, names);
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return object(2 * 4) + bytes(add.a1, names) + bytes(add.a2, names);
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return object(2 * 4) + bytes(sub.a1, names) + bytes(sub.a2, names);
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return object(2 * 4) + bytes(prod.a1, names) + bytes(prod.a2, names);
+        return object(4);
+    }
+
+    private static long object(int fields) {
+        return align(12 + fields);
+    }
+
+    private static long array(int length, int width) {
+        return align(16 + (long) length * width);
+    }
+
+    /** A Latin-1 string: hash, coder, flag and value fields, and its byte array; nothing once seen. */
+    private static long string(String s, Set<String> names) {
+        if (!names.add(s)) return 0;
+        return object(4 + 1 + 1 + 4) + array(s.length(), 1);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /** Bytes per node of this program next to those of the object tree parsed from the same source. */
+    String footprint(ProgramStatement tree) {
+        int nodes = Events.nodes(tree);
+        long flat = bytes();
+        long objects = bytes(tree);
+        return String.format("%-6s %10s %12s %10s%n", "form", "nodes", "bytes", "bytes/node") +
+                String.format("%-6s %10d %12d %10.1f%n", "flat", size, flat, size == 0 ? 0.0 : (double) flat / size) +
+                String.format("%-6s %10d %12d %10.1f%n", "tree", nodes, objects,
+                        nodes == 0 ? 0.0 : (double) objects / nodes);
+    }
+}
@@ -0,0 +1,402 @@
+package com.davidfornesm.simpl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+
+import static com.davidfornesm.simpl.Bytecode.*;
+
+/**
+ * JIT backend.
+ * Translates a resolved program into a hidden class with a single static
+ * method that keeps every SIMP variable in a local int, so HotSpot
+ * compiles the SIMP loops themselves instead of the tree walker.
+ * <p>
+ * The generated method is {@code int run(int[] values, int[] defined, State state)}:
+ * it loads the variables it uses from both arrays, runs the program and
+ * stores them back, with the loop iterations not yet added to the state
+ * in the last element of values. It returns -1, the slot of the variable
+ * whose read failed because it was never assigned, or {@link #STOPPED}.
+ * Loops count iterations in a local and only call {@link #checkpoint}
+ * when the budget it last handed out is spent.
+ */
+class Jit {
+    private static final String CLASS_NAME = "com/davidfornesm/simpl/JitProgram";
+    private static final String STATE = "com/davidfornesm/simpl/State";
+    /** Returned by the generated method when a limit stopped the run. */
+    private static final int STOPPED = -2;
+
+    /** Thrown for a program the JIT cannot compile, which is then interpreted instead. */
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message);
+        }
+    }
+
+    /** Stands for a program the JIT could not compile, so it is not tried again. */
+    static final Jit UNSUPPORTED = new Jit(null, new int[0], 0);
+
+    private final MethodHandle run;
+    private final int[] slots;
+    private final int size;
+
+    private Jit(MethodHandle run, int[] slots, int size) {
+        this.run = run;
+        this.slots = slots;
+        this.size = size;
+    }
+
+    static Jit compile(ProgramStatement program, SymbolTable symbols) {
+        Emitter emitter = new Emitter(symbols.size());
+        emitter.collect(program);
+        byte[] bytes = emitter.emit(program);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            MethodHandle run = lookup.findStatic(lookup.lookupClass(), "run",
+                    MethodType.methodType(int.class, int[].class, int[].class, State.class));
+            return new Jit(run, emitter.used.stream().toArray(), symbols.size());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    State eval(State s) {
+        int[] values = new int[size + 1];
+        int[] defined = new int[size];
+        for (int slot : slots) {
+            if (s.isDefined(slot)) {
+                values[slot] = s.get(slot);
+                defined[slot] = 1;
+            }
+        }
+        int undefined;
+        try {
+            undefined = (int) run.invokeExact(values, defined, s);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        for (int slot : slots) {
+            if (defined[slot] != 0)
+                s.set(slot, values[slot]);
+        }
+        s.iterations += values[size];
+        if (undefined == STOPPED)
+            s.check();
+        if (undefined >= 0)
+            throw new RuntimeException("undefined variable: " + s.symbols().name(undefined) + ".");
+        return s;
+    }
+
+    /**
+     * Called from generated code when a loop has spent its budget: adds the
+     * iterations to the state and returns the next budget, or -1 when a
+     * limit was hit, which the caller throws once the variables are back.
+     */
+    static int checkpoint(State s, int loops) {
+        s.iterations += loops;
+        if (s.iterations >= s.checkpoint && s.limitReached() != null)
+            return -1;
+        return (int) Math.min(s.checkpoint - s.iterations, Integer.MAX_VALUE);
+    }
+
+    private static class Emitter {
+        private static final int VALUES = 0, DEFINED = 1, STATE = 2;
+
+        private final BitSet used = new BitSet();
+        private final int[] locals;
+        private Bytecode code;
+        private int error;
+        private int budget;
+        private int loops;
+        private int exit;
+
+        Emitter(int size) {
+            locals = new int[size];
+        }
+
+        void collect(ProgramStatement c) {
+            if (c instanceof ProgramStatement.AssignmentStmt assign) {
+                use(assign.slot);
+                collect(assign.a);
+            } else if (c instanceof ProgramStatement.BlockStmt block) {
+                for (ProgramStatement statement : block.statements)
+                    collect(statement);
+            } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+                for (ProgramStatement branch : parallel.branches)
+                    collect(branch);
+            } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+                collect(ifThenElse.b);
+                collect(ifThenElse.c1);
+                collect(ifThenElse.c2);
+            } else if (c instanceof ProgramStatement.WhileStmt loop) {
+                collect(loop.b);
+                collect(loop.c);
+            }
+        }
+
+        private void collect(BooleanExp b) {
+            if (b instanceof BooleanExp.EqualExp eq) {
+                collect(eq.a1);
+                collect(eq.a2);
+            } else if (b instanceof BooleanExp.LeqExp leq) {
+                collect(leq.a1);
+                collect(leq.a2);
+            } else if (b instanceof BooleanExp.BiggerThanExp bigger) {
+                collect(bigger.a1);
+                collect(bigger.a2);
+            } else if (b instanceof BooleanExp.NotExp not) {
+                collect(not.b);
+            } else if (b instanceof BooleanExp.OrExp or) {
+                collect(or.b1);
+                collect(or.b2);
+            }
+        }
+
+        private void collect(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.VariableExp var) {
+                use(var.slot);
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                collect(add.a1);
+                collect(add.a2);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                collect(sub.a1);
+                collect(sub.a2);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                collect(prod.a1);
+                collect(prod.a2);
+            }
+        }
+
+        private void use(int slot) {
+            if (slot < 0)
+                throw new IllegalStateException("program must be resolved before JIT compilation.");
+            used.set(slot);
+        }
+
+        /**
+         * Each used slot gets a value local and a defined-flag local; the last
+         * three locals hold the error slot, the iteration budget and the loop
+         * iterations run since the budget was handed out.
+         */
+        byte[] emit(ProgramStatement program) {
+            int next = 0;
+            for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1))
+                locals[slot] = 3 + 2 * next++;
+            error = 3 + 2 * next;
+            budget = error + 1;
+            loops = error + 2;
+            code = new Bytecode(new String[] {"[I", "[I", Jit.STATE}, 2 * next + 3);
+            exit = code.newLabel();
+
+            for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+                load(VALUES, slot, locals[slot]);
+                load(DEFINED, slot, locals[slot] + 1);
+            }
+            code.pushInt(-1);
+            code.storeInt(error);
+            code.pushInt(0);
+            code.storeInt(budget);
+            code.pushInt(0);
+            code.storeInt(loops);
+
+            statement(program, new BitSet());
+
+            code.bind(exit);
+            for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+                store(VALUES, slot, locals[slot]);
+                store(DEFINED, slot, locals[slot] + 1);
+            }
+            code.loadReference(VALUES);
+            code.pushInt(locals.length);
+            code.loadInt(loops);
+            code.insn(IASTORE);
+            code.loadInt(error);
+            code.insn(IRETURN);
+            return code.toClass(CLASS_NAME, "run", "([I[IL" + Jit.STATE + ";)I");
+        }
+
+        private void load(int array, int slot, int local) {
+            code.loadReference(array);
+            code.pushInt(slot);
+            code.insn(IALOAD);
+            code.storeInt(local);
+        }
+
+        private void store(int array, int slot, int local) {
+            code.loadReference(array);
+            code.pushInt(slot);
+            code.loadInt(local);
+            code.insn(IASTORE);
+        }
+
+        /** Emits c; assigned holds the slots definitely assigned so far and is updated in place. */
+        private void statement(ProgramStatement c, BitSet assigned) {
+            if (c instanceof ProgramStatement.AssignmentStmt assign) {
+                checkDefined(assign.a, assigned);
+                arithmetic(assign.a);
+                code.storeInt(locals[assign.slot]);
+                if (!assigned.get(assign.slot)) {
+                    code.pushInt(1);
+                    code.storeInt(locals[assign.slot] + 1);
+                    assigned.set(assign.slot);
+                }
+            } else if (c instanceof ProgramStatement.BlockStmt block) {
+                for (ProgramStatement statement : block.statements)
+                    statement(statement, assigned);
+            } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+                // branches do not share written variables, so running them in order is equivalent
+                for (ProgramStatement branch : parallel.branches)
+                    statement(branch, assigned);
+            } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+                int otherwise = code.newLabel();
+                int end = code.newLabel();
+                jumpIfFalse(ifThenElse.b, otherwise, assigned);
+                BitSet thenAssigned = (BitSet) assigned.clone();
+                statement(ifThenElse.c1, thenAssigned);
+                code.jump(GOTO, end);
+                code.bind(otherwise);
+                statement(ifThenElse.c2, assigned);
+                code.bind(end);
+                assigned.and(thenAssigned);
+            } else if (c instanceof ProgramStatement.WhileStmt loop) {
+                int condition = code.newLabel();
+                int end = code.newLabel();
+                code.bind(condition);
+                jumpIfFalse(loop.b, end, assigned);
+                enter();
+                statement(loop.c, (BitSet) assigned.clone());
+                code.jump(GOTO, condition);
+                code.bind(end);
+            } else if (!(c instanceof ProgramStatement.EmptyStmt)) {
+                throw new Unsupported("cannot JIT compile " + c + ".");
+            }
+        }
+
+        /** Counts a loop iteration, first asking for a new budget once the last one is spent. */
+        private void enter() {
+            int counted = code.newLabel();
+            code.loadInt(loops);
+            code.loadInt(budget);
+            code.jump(IF_ICMPLT, counted);
+            code.loadReference(STATE);
+            code.loadInt(loops);
+            code.invokeStatic("com/davidfornesm/simpl/Jit", "checkpoint", "(L" + Jit.STATE + ";I)I", -1);
+            code.storeInt(budget);
+            code.pushInt(0);
+            code.storeInt(loops);
+            code.loadInt(budget);
+            code.jump(IFGE, counted);
+            code.pushInt(STOPPED);
+            code.storeInt(error);
+            code.jump(GOTO, exit);
+            code.bind(counted);
+            code.loadInt(loops);
+            code.pushInt(1);
+            code.insn(IADD);
+            code.storeInt(loops);
+        }
+
+        private void jumpIfFalse(BooleanExp b, int label, BitSet assigned) {
+            if (b instanceof BooleanExp.FalseExp) {
+                code.jump(GOTO, label);
+            } else if (b instanceof BooleanExp.NotExp not) {
+                jumpIfTrue(not.b, label, assigned);
+            } else if (b instanceof BooleanExp.OrExp or) {
+                int skip = code.newLabel();
+                jumpIfTrue(or.b1, skip, assigned);
+                jumpIfFalse(or.b2, label, assigned);
+                code.bind(skip);
+            } else if (b instanceof BooleanExp.EqualExp eq) {
+                compare(eq.a1, eq.a2, IF_ICMPNE, label, assigned);
+            } else if (b instanceof BooleanExp.LeqExp leq) {
+                compare(leq.a1, leq.a2, IF_ICMPGT, label, assigned);
+            } else if (b instanceof BooleanExp.BiggerThanExp bigger) {
+                compare(bigger.a1, bigger.a2, IF_ICMPLE, label, assigned);
+            } else if (!(b instanceof BooleanExp.TrueExp)) {
+                throw new Unsupported("cannot JIT compile " + b + ".");
+            }
+        }
+
+        private void jumpIfTrue(BooleanExp b, int label, BitSet assigned) {
+            if (b instanceof BooleanExp.TrueExp) {
+                code.jump(GOTO, label);
+            } else if (b instanceof BooleanExp.NotExp not) {
+                jumpIfFalse(not.b, label, assigned);
+            } else if (b instanceof BooleanExp.OrExp or) {
+                jumpIfTrue(or.b1, label, assigned);
+                jumpIfTrue(or.b2, label, assigned);
+            } else if (b instanceof BooleanExp.EqualExp eq) {
+                compare(eq.a1, eq.a2, IF_ICMPEQ, label, assigned);
+            } else if (b instanceof BooleanExp.LeqExp leq) {
+                compare(leq.a1, leq.a2, IF_ICMPLE, label, assigned);
+            } else if (b instanceof BooleanExp.BiggerThanExp bigger) {
+                compare(bigger.a1, bigger.a2, IF_ICMPGT, label, assigned);
+            } else if (!(b instanceof BooleanExp.FalseExp)) {
+                throw new Unsupported("cannot JIT compile " + b + ".");
+            }
+        }
+
+        private void compare(ArithmeticExp a1, ArithmeticExp a2, int opcode, int label, BitSet assigned) {
+            checkDefined(a1, assigned);
+            checkDefined(a2, assigned);
+            arithmetic(a1);
+            arithmetic(a2);
+            code.jump(opcode, label);
+        }
+
+        /**
+         * Reads of variables that may be unassigned are checked up front,
+         * while the operand stack is still empty, so the failure path can
+         * branch to the shared exit.
+         */
+        private void checkDefined(ArithmeticExp a, BitSet assigned) {
+            if (a instanceof ArithmeticExp.VariableExp var) {
+                if (assigned.get(var.slot))
+                    return;
+                int ok = code.newLabel();
+                code.loadInt(locals[var.slot] + 1);
+                code.jump(IFNE, ok);
+                code.pushInt(var.slot);
+                code.storeInt(error);
+                code.jump(GOTO, exit);
+                code.bind(ok);
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                checkDefined(add.a1, assigned);
+                checkDefined(add.a2, assigned);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                checkDefined(sub.a1, assigned);
+                checkDefined(sub.a2, assigned);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                checkDefined(prod.a1, assigned);
+                checkDefined(prod.a2, assigned);
+            }
+        }
+
+        private void arithmetic(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.NumericExp num) {
+                code.pushInt(num.n);
+            } else if (a instanceof ArithmeticExp.VariableExp var) {
+                code.loadInt(locals[var.slot]);
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                arithmetic(add.a1);
+                arithmetic(add.a2);
+                code.insn(IADD);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                arithmetic(sub.a1);
+                arithmetic(sub.a2);
+                code.insn(ISUB);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                arithmetic(prod.a1);
+                arithmetic(prod.a2);
+                code.insn(IMUL);
+            } else {
+                throw new Unsupported("cannot JIT compile " + a + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.davidfornesm.simpl;
+
+import java.util.Arrays;
+
+/**
+ * Columnar batch of states, one lane per initial state, that runs one
+ * program over all lanes at once.
+ * Every variable is an int[] column. Expressions are applied across every
+ * lane, and statements are executed under a lane mask (-1 active, 0 not):
+ * assignments blend their value into the active lanes only, branches split
+ * the mask and loops keep iterating until no lane is left in them.
+ * All per-lane work is written as straight, branch-free loops over int
+ * arrays so that the JIT compiler can turn it into SIMD instructions.
+ * A lane that reads an undefined variable fails on its own and stops,
+ * the others carry on. Limits apply to all lanes together: a loop step
+ * over the lanes still in the loop counts as one iteration.
+ */
+class Lanes {
+    private final SymbolTable symbols;
+    private final int size;
+    private int[][] values = new int[0][];
+    private int[][] defined = new int[0][];
+    private final int[] alive;
+    private final String[] errors;
+    /** Counts loop steps against the limits; it holds no variables. */
+    private final State counter;
+
+    private int[][] scratch = new int[0][];
+    private int[][] masks = new int[0][];
+
+    /** Programs run on these lanes must be resolved against the same symbols. */
+    Lanes(SymbolTable symbols, int size) {
+        this.symbols = symbols;
+        this.size = size;
+        this.alive = new int[size];
+        Arrays.fill(alive, -1);
+        this.errors = new String[size];
+        this.counter = new State(symbols);
+    }
+
+    /** Bounds the runs on these lanes, like {@link State#limit}; null lifts them. */
+    void limit(Limits limits) {
+        counter.limit(limits);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Defines a variable in every lane. */
+    void set(String name, int[] column) {
+        if (column.length != size)
+            throw new IllegalArgumentException("expected " + size + " lanes, got " + column.length);
+        int slot = symbols.slot(name);
+        ensure(slot);
+        System.arraycopy(column, 0, values[slot], 0, size);
+        Arrays.fill(defined[slot], -1);
+    }
+
+    /** The variable in every lane, null where it is undefined or the lane failed. */
+    Integer[] lookup(String name) {
+        Integer[] column = new Integer[size];
+        int slot = symbols.find(name);
+        if (slot < 0 || slot >= values.length) return column;
+        for (int i = 0; i < size; i++) {
+            if (alive[i] != 0 && defined[slot][i] != 0)
+                column[i] = values[slot][i];
+        }
+        return column;
+    }
+
+    /** Why a lane failed, or null if it did not. */
+    String error(int lane) {
+        return errors[lane];
+    }
+
+    Lanes eval(ProgramStatement program) {
+        int[] all = mask(0);
+        Arrays.fill(all, -1);
+        statement(program, all, 1);
+        return this;
+    }
+
+    private void statement(ProgramStatement c, int[] mask, int level) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            for (ProgramStatement statement : block.statements)
+                statement(statement, mask, level);
+        } else if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            int[] v = arithmetic(assign.a, mask, 0);
+            int slot = slot(assign.slot, assign.x);
+            int[] dst = values[slot];
+            int[] def = defined[slot];
+            for (int i = 0; i < size; i++) {
+                int m = mask[i] & alive[i];
+                dst[i] = (v[i] & m) | (dst[i] & ~m);
+                def[i] |= m;
+            }
+        } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            for (ProgramStatement branch : parallel.branches)
+                statement(branch, mask, level);
+        } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            int[] b = bool(ifThenElse.b, mask, 0);
+            int[] then = mask(level);
+            int[] otherwise = mask(level + 1);
+            for (int i = 0; i < size; i++) {
+                int m = mask[i] & alive[i];
+                then[i] = m & b[i];
+                otherwise[i] = m & ~b[i];
+            }
+            if (any(then)) statement(ifThenElse.c1, then, level + 2);
+            if (any(otherwise)) statement(ifThenElse.c2, otherwise, level + 2);
+        } else if (c instanceof ProgramStatement.WhileStmt loop) {
+            int[] active = mask(level);
+            System.arraycopy(mask, 0, active, 0, size);
+            while (true) {
+                int[] b = bool(loop.b, active, 0);
+                for (int i = 0; i < size; i++)
+                    active[i] &= b[i] & alive[i];
+                if (!any(active)) break;
+                if (counter.iterations >= counter.checkpoint) counter.check();
+                counter.iterations++;
+                statement(loop.c, active, level + 1);
+            }
+        } else if (!(c instanceof ProgramStatement.EmptyStmt)) {
+            throw new IllegalStateException("cannot run on lanes: " + c);
+        }
+    }
+
+    /**
+     * Evaluates into scratch column {@code depth}; the second operand of a
+     * binary node goes one column further than the first so both survive.
+     */
+    private int[] arithmetic(ArithmeticExp a, int[] mask, int depth) {
+        if (a instanceof ArithmeticExp.VariableExp var) {
+            return read(slot(var.slot, var.name), var.name, mask);
+        }
+        int[] out = scratch(depth);
+        if (a instanceof ArithmeticExp.NumericExp num) {
+            Arrays.fill(out, num.n);
+        } else if (a instanceof ArithmeticExp.AdditionExp add) {
+            int[] l = arithmetic(add.a1, mask, depth + 1);
+            int[] r = arithmetic(add.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++)
+                out[i] = l[i] + r[i];
+        } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+            int[] l = arithmetic(sub.a1, mask, depth + 1);
+            int[] r = arithmetic(sub.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++)
+                out[i] = l[i] - r[i];
+        } else if (a instanceof ArithmeticExp.ProductExp prod) {
+            int[] l = arithmetic(prod.a1, mask, depth + 1);
+            int[] r = arithmetic(prod.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++)
+                out[i] = l[i] * r[i];
+        } else {
+            throw new IllegalStateException("cannot run on lanes: " + a);
+        }
+        return out;
+    }
+
+    /** Conditions evaluate to a mask column; comparisons go through long to stay branch free. */
+    private int[] bool(BooleanExp b, int[] mask, int depth) {
+        int[] out = scratch(depth);
+        if (b instanceof BooleanExp.TrueExp) {
+            Arrays.fill(out, -1);
+        } else if (b instanceof BooleanExp.FalseExp) {
+            Arrays.fill(out, 0);
+        } else if (b instanceof BooleanExp.EqualExp eq) {
+            int[] l = arithmetic(eq.a1, mask, depth + 1);
+            int[] r = arithmetic(eq.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++) {
+                int x = l[i] ^ r[i];
+                out[i] = ~((x | -x) >> 31);
+            }
+        } else if (b instanceof BooleanExp.LeqExp leq) {
+            int[] l = arithmetic(leq.a1, mask, depth + 1);
+            int[] r = arithmetic(leq.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++)
+                out[i] = ~(int) (((long) r[i] - l[i]) >> 63);
+        } else if (b instanceof BooleanExp.BiggerThanExp gt) {
+            int[] l = arithmetic(gt.a1, mask, depth + 1);
+            int[] r = arithmetic(gt.a2, mask, depth + 2);
+            for (int i = 0; i < size; i++)
+                out[i] = (int) (((long) r[i] - l[i]) >> 63);
+        } else if (b instanceof BooleanExp.NotExp not) {
+            int[] v = bool(not.b, mask, depth + 1);
+            for (int i = 0; i < size; i++)
+                out[i] = ~v[i];
+        } else if (b instanceof BooleanExp.OrExp or) {
+            // the right side only runs in lanes where the left side was false
+            int[] l = bool(or.b1, mask, depth + 1);
+            int[] rest = scratch(depth + 2);
+            for (int i = 0; i < size; i++)
+                rest[i] = mask[i] & ~l[i];
+            int[] r = any(rest) ? bool(or.b2, rest, depth + 3) : l;
+            for (int i = 0; i < size; i++)
+                out[i] = l[i] | (r[i] & rest[i]);
+        } else {
+            throw new IllegalStateException("cannot run on lanes: " + b);
+        }
+        return out;
+    }
+
+    private int[] read(int slot, String name, int[] mask) {
+        int[] def = defined[slot];
+        int undefined = 0;
+        for (int i = 0; i < size; i++)
+            undefined |= mask[i] & alive[i] & ~def[i];
+        if (undefined != 0) {
+            for (int i = 0; i < size; i++) {
+                if ((mask[i] & alive[i] & ~def[i]) != 0) {
+                    alive[i] = 0;
+                    errors[i] = "undefined variable: " + name + ".";
+                }
+            }
+        }
+        return values[slot];
+    }
+
+    private int slot(int slot, String name) {
+        if (slot < 0) slot = symbols.slot(name);
+        ensure(slot);
+        return slot;
+    }
+
+    private void ensure(int slot) {
+        if (slot < values.length) return;
+        int from = values.length;
+        int count = Math.max(slot + 1, symbols.size());
+        values = Arrays.copyOf(values, count);
+        defined = Arrays.copyOf(defined, count);
+        for (int i = from; i < count; i++) {
+            values[i] = new int[size];
+            defined[i] = new int[size];
+        }
+    }
+
+    private int[] scratch(int depth) {
+        if (depth >= scratch.length) scratch = grow(scratch, depth);
+        return scratch[depth];
+    }
+
+    private int[] mask(int level) {
+        if (level >= masks.length) masks = grow(masks, level);
+        return masks[level];
+    }
+
+    private int[][] grow(int[][] pool, int index) {
+        int from = pool.length;
+        pool = Arrays.copyOf(pool, Math.max(index + 1, from * 2));
+        for (int i = from; i < pool.length; i++)
+            pool[i] = new int[size];
+        return pool;
+    }
+
+    private boolean any(int[] mask) {
+        int any = 0;
+        for (int i = 0; i < size; i++)
+            any |= mask[i];
+        return any != 0;
+    }
+}
@@ -1,45 +1,57 @@
 package com.davidfornesm.simpl;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.davidfornesm.simpl.Token.TokenType.*;
 
 public class Lexer {
-    private final String source;
+    private final CharSequence source;
     private final List<Token> tokens = new ArrayList<>();
-    private static final Map<String, Token.TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("true", TRUE);
-        keywords.put("false", FALSE);
-        keywords.put("skip", SKIP);
-        keywords.put("if", IF);
-        keywords.put("then", THEN);
-        keywords.put("else", ELSE);
-        keywords.put("while", WHILE);
-        keywords.put("do", DO);
-        keywords.put("end", END);
-    }
+    private PackedTokens packed;
+    private final List<String> errors = new ArrayList<>();
+    /** Identifiers of this compilation, so every occurrence of a name shares one instance and id. */
+    private final SymbolTable symbols;
 
     int start = 0;
     int current = 0;
     int line = 1;
 
-    Lexer(String source) {
+    Lexer(CharSequence source) {
+        this(source, new SymbolTable());
+    }
+
+    Lexer(CharSequence source, SymbolTable symbols) {
         this.source = source;
+        this.symbols = symbols;
+    }
+
+    SymbolTable symbols() {
+        return symbols;
     }
 
     List<Token> scanTokens() {
+        scan();
+        tokens.add(new Token(EOF, "", null, line));
+        return tokens;
+    }
+
+    /**
+     * Scans into parallel primitive arrays instead of Token objects;
+     * no lexeme or literal is allocated per token.
+     */
+    PackedTokens scanPacked() {
+        packed = new PackedTokens(source, symbols);
+        scan();
+        packed.add(EOF, current, 0, line, 0);
+        return packed;
+    }
+
+    private void scan() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
     }
 
     private void scanToken() {
@@ -84,10 +96,19 @@ public class Lexer {
                 else if (isAlpha(c))
                     identifier();
                 else
-                    App.error(line, "Unexpected character: " + c + ".");
+                    error("Unexpected character: " + c + ".");
         }
     }
 
+    /** Errors found while scanning, formatted with their line. */
+    List<String> errors() {
+        return errors;
+    }
+
+    private void error(String message) {
+        errors.add("[line " + line + "] Error: " + message);
+    }
+
     private boolean match(char expected) {
         if (isAtEnd() || source.charAt(current) != expected)
             return false;
@@ -112,12 +133,10 @@ public class Lexer {
     }
 
     private void addToken(Token.TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(Token.TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        if (packed != null)
+            packed.add(type, start, current - start, line, 0);
+        else
+            tokens.add(new Token(type, text(), null, line));
     }
 
     private void number() {
@@ -126,16 +145,83 @@ public class Lexer {
             advance();
             while (isDigit(peek())) advance();
         }
-        addToken(NUMBER, Integer.parseInt(source.substring(start, current)));
+        int literal;
+        try {
+            literal = Integer.parseInt(source, start, current, 10);
+        } catch (NumberFormatException e) {
+            if (!allDigits())
+                throw e;
+            addToken(BIG_NUMBER);
+            return;
+        }
+        if (packed != null)
+            packed.add(NUMBER, start, current - start, line, literal);
+        else
+            tokens.add(new Token(NUMBER, text(), literal, line));
     }
 
+    private boolean allDigits() {
+        for (int i = start; i < current; i++) {
+            if (!isDigit(source.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private String text() {
+        return source.subSequence(start, current).toString();
+    }
+
+    /** Keywords are told apart in place; identifiers are interned, with their id as the packed literal. */
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        Token.TokenType type = keywords.get(text);
-        if (type == null)
-            type = IDENTIFIER;
-        addToken(type);
+        Token.TokenType type = keyword(source, start, current - start);
+        if (type != null) {
+            addToken(type);
+            return;
+        }
+        int symbol = symbols.intern(source, start, current);
+        if (packed != null)
+            packed.add(IDENTIFIER, start, current - start, line, symbol);
+        else
+            tokens.add(new Token(IDENTIFIER, symbols.name(symbol), null, line));
+    }
+
+    /** The keyword spelled by the range, or null, found by its length and first letter. */
+    static Token.TokenType keyword(CharSequence source, int start, int length) {
+        switch (length) {
+            case 2:
+                if (spells(source, start, "if")) return IF;
+                if (spells(source, start, "do")) return DO;
+                return null;
+            case 3:
+                return spells(source, start, "end") ? END : null;
+            case 4:
+                switch (source.charAt(start)) {
+                    case 't':
+                        if (spells(source, start, "then")) return THEN;
+                        return spells(source, start, "true") ? TRUE : null;
+                    case 'e': return spells(source, start, "else") ? ELSE : null;
+                    case 's': return spells(source, start, "skip") ? SKIP : null;
+                    default: return null;
+                }
+            case 5:
+                switch (source.charAt(start)) {
+                    case 'w': return spells(source, start, "while") ? WHILE : null;
+                    case 'f': return spells(source, start, "false") ? FALSE : null;
+                    default: return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    private static boolean spells(CharSequence source, int start, String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if (source.charAt(start + i) != keyword.charAt(i))
+                return false;
+        }
+        return true;
     }
 
     private boolean isAtEnd() {
@@ -0,0 +1,40 @@
+package com.davidfornesm.simpl;
+
+/**
+ * Thrown when a run hits one of its {@link Limits}.
+ * The state holds every variable as it was when the run stopped, at the
+ * start of a loop iteration.
+ */
+class LimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    enum Reason {
+        FUEL("out of fuel"),
+        DEADLINE("deadline exceeded"),
+        CANCELLED("cancelled");
+
+        private final String message;
+
+        Reason(String message) {
+            this.message = message;
+        }
+    }
+
+    private final Reason reason;
+    private final transient State state;
+
+    LimitExceededException(Reason reason, State state) {
+        super(reason.message + " after " + state.iterations + " loop iterations.");
+        this.reason = reason;
+        this.state = state;
+    }
+
+    Reason reason() {
+        return reason;
+    }
+
+    /** The partial state of the stopped run. */
+    State state() {
+        return state;
+    }
+}
@@ -0,0 +1,49 @@
+package com.davidfornesm.simpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds on a single run: a fuel budget of loop iterations, a wall-clock
+ * deadline and cancellation from another thread.
+ * Engines count loop iterations on the {@link State} and only come here
+ * when the count reaches the state's checkpoint, which is never for a
+ * state without limits and at most every {@link #POLL_INTERVAL}
+ * iterations otherwise.
+ */
+class Limits {
+    static final long POLL_INTERVAL = 1 << 12;
+
+    private final long fuel;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+
+    /** A fuel of Long.MAX_VALUE and a timeout of 0 mean no limit; the deadline starts counting now. */
+    Limits(long fuel, long timeoutMillis) {
+        this.fuel = fuel;
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /** Stops the run at its next checkpoint; safe to call from any thread. */
+    void cancel() {
+        cancelled = true;
+    }
+
+    long fuel() {
+        return fuel;
+    }
+
+    /** The limit hit by a run that has done this many iterations and is about to do another, or null. */
+    LimitExceededException.Reason reached(long iterations) {
+        if (cancelled) return LimitExceededException.Reason.CANCELLED;
+        if (iterations >= fuel) return LimitExceededException.Reason.FUEL;
+        if (hasDeadline && System.nanoTime() - deadline >= 0) return LimitExceededException.Reason.DEADLINE;
+        return null;
+    }
+
+    /** Iteration count of the next checkpoint after one at this count. */
+    long next(long iterations) {
+        return Math.min(fuel, iterations + POLL_INTERVAL);
+    }
+}
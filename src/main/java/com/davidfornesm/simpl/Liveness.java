@@ -0,0 +1,140 @@
+package com.davidfornesm.simpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Dead store elimination. Walking the program backwards from the variables
+ * that are live at its end, the ones whose final value is looked at, an
+ * assignment to a variable that is not live is removed, and so is an if
+ * with nothing left in either branch. Loops are always kept, since they may
+ * not terminate, but their bodies are pruned against the variables live
+ * around them, found by iterating the body to a fixed point.
+ * <p>
+ * Removed statements are not run at all, so variables that are not live
+ * may be missing from the final state, and an assignment that would have
+ * failed on an undefined variable no longer does.
+ */
+final class Liveness {
+
+    private Liveness() {
+    }
+
+    /**
+     * The program without statements that cannot affect the live variables. The removed ones are
+     * added to removed in program order.
+     */
+    static ProgramStatement eliminate(ProgramStatement program, Set<String> liveOut, List<ProgramStatement> removed) {
+        List<ProgramStatement> backwards = new ArrayList<>();
+        ProgramStatement pruned = prune(program, new LinkedHashSet<>(liveOut), backwards);
+        Collections.reverse(backwards);
+        removed.addAll(backwards);
+        return pruned != null ? pruned : new ProgramStatement.EmptyStmt().at(program.line);
+    }
+
+    /**
+     * The statement without what cannot affect the live variables, or null if nothing is left.
+     * On entry live holds the variables live after the statement, on return those live before it.
+     */
+    private static ProgramStatement prune(ProgramStatement c, Set<String> live, List<ProgramStatement> removed) {
+        if (c instanceof ProgramStatement.EmptyStmt) {
+            return null;
+        }
+        if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            if (!live.remove(assign.x)) {
+                removed.add(c);
+                return null;
+            }
+            assign.a.variables(live);
+            return c;
+        }
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            List<ProgramStatement> kept = new ArrayList<>(block.statements.length);
+            boolean changed = false;
+            for (int i = block.statements.length - 1; i >= 0; i--) {
+                ProgramStatement statement = prune(block.statements[i], live, removed);
+                if (statement != null) kept.add(0, statement);
+                changed |= statement != block.statements[i];
+            }
+            if (kept.isEmpty()) return null;
+            if (!changed) return c;
+            if (kept.size() == 1) return kept.get(0);
+            return ProgramStatement.BlockStmt.of(kept).at(c.line);
+        }
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            return ifThenElse(ifThenElse, live, removed);
+        }
+        if (c instanceof ProgramStatement.WhileStmt loop) {
+            return loop(loop, live, removed);
+        }
+        if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            // no branch reads what another writes, so each sees the same live variables after it
+            Set<String> liveIn = new LinkedHashSet<>();
+            List<ProgramStatement> branches = new ArrayList<>();
+            for (ProgramStatement branch : parallel.branches) {
+                Set<String> branchLive = new LinkedHashSet<>(live);
+                ProgramStatement pruned = prune(branch, branchLive, removed);
+                liveIn.addAll(branchLive);
+                if (pruned != null) branches.add(pruned);
+            }
+            live.clear();
+            live.addAll(liveIn);
+            if (branches.isEmpty()) return null;
+            if (branches.equals(parallel.branches)) return c;
+            if (branches.size() == 1) return branches.get(0);
+            return new ProgramStatement.ParallelStmt(branches).at(c.line);
+        }
+        throw new IllegalStateException("cannot analyze " + c);
+    }
+
+    private static ProgramStatement ifThenElse(ProgramStatement.IfThenElseStmt c, Set<String> live,
+                                               List<ProgramStatement> removed) {
+        int before = removed.size();
+        Set<String> live1 = new LinkedHashSet<>(live);
+        Set<String> live2 = new LinkedHashSet<>(live);
+        ProgramStatement c1 = prune(c.c1, live1, removed);
+        ProgramStatement c2 = prune(c.c2, live2, removed);
+        if (c1 == null && c2 == null) {
+            // report the whole if rather than what was in it
+            removed.subList(before, removed.size()).clear();
+            removed.add(c);
+            return null;
+        }
+        live.clear();
+        live.addAll(live1);
+        live.addAll(live2);
+        c.b.variables(live);
+        if (c1 == c.c1 && c2 == c.c2) return c;
+        // C translation drops an if whose then branch is empty
+        if (c1 == null)
+            return new ProgramStatement.IfThenElseStmt(new BooleanExp.NotExp(c.b), c2,
+                    new ProgramStatement.EmptyStmt()).at(c.line);
+        return new ProgramStatement.IfThenElseStmt(c.b, c1,
+                c2 != null ? c2 : new ProgramStatement.EmptyStmt().at(c.line)).at(c.line);
+    }
+
+    private static ProgramStatement loop(ProgramStatement.WhileStmt c, Set<String> live,
+                                         List<ProgramStatement> removed) {
+        // live at the head: live after the loop, read by the condition, or live before the body
+        Set<String> exit = new LinkedHashSet<>(live);
+        c.b.variables(exit);
+        Set<String> head = new LinkedHashSet<>(exit);
+        while (true) {
+            Set<String> body = new LinkedHashSet<>(head);
+            prune(c.c, body, new ArrayList<>());
+            body.addAll(exit);
+            if (body.equals(head)) break;
+            head = body;
+        }
+        live.clear();
+        live.addAll(head);
+        ProgramStatement body = prune(c.c, new LinkedHashSet<>(head), removed);
+        if (body == c.c) return c;
+        if (body == null) body = new ProgramStatement.EmptyStmt().at(c.c.line);
+        return (c instanceof ClosedFormLoop ? ClosedFormLoop.of(c.b, body)
+                : new ProgramStatement.WhileStmt(c.b, body)).at(c.line);
+    }
+}
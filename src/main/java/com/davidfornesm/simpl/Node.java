@@ -0,0 +1,609 @@
+package com.davidfornesm.simpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Self-specializing interpreter tree.
+ * Built from a resolved program; generic nodes count their executions and,
+ * once warmed up, replace themselves in their parent with a node
+ * specialized for the operands they have seen.
+ */
+abstract class Node {
+    static final int WARMUP = 1000;
+
+    Node parent;
+
+    <T extends Node> T adopt(T child) {
+        child.parent = this;
+        return child;
+    }
+
+    <T extends Node> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        return replacement;
+    }
+
+    void replaceChild(Node old, Node replacement) {
+        throw new IllegalStateException(getClass().getSimpleName() + " has no children.");
+    }
+
+    static StmtNode.RootNode build(ProgramStatement program) {
+        return new StmtNode.RootNode(statement(program));
+    }
+
+    private static StmtNode statement(ProgramStatement c) {
+        if (c instanceof ProgramStatement.AssignmentStmt assign)
+            return new StmtNode.AssignNode(slot(assign.slot), arithmetic(assign.a));
+        if (c instanceof ProgramStatement.BlockStmt || c instanceof ProgramStatement.ParallelStmt) {
+            List<StmtNode> statements = new ArrayList<>();
+            flatten(c, statements);
+            if (statements.size() == 1)
+                return statements.get(0);
+            return new StmtNode.BlockNode(statements.toArray(new StmtNode[0]));
+        }
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse)
+            return new StmtNode.IfNode(bool(ifThenElse.b), statement(ifThenElse.c1), statement(ifThenElse.c2));
+        if (c instanceof ProgramStatement.WhileStmt loop)
+            return new StmtNode.WhileNode(bool(loop.b), statement(loop.c));
+        if (c instanceof ProgramStatement.EmptyStmt)
+            return new StmtNode.SkipNode();
+        throw new IllegalStateException("cannot specialize " + c + ".");
+    }
+
+    /**
+     * Nested blocks become one block; skips inside a block are dropped.
+     * Parallel branches are run in order, which their disjoint writes make equivalent.
+     */
+    private static void flatten(ProgramStatement c, List<StmtNode> statements) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            for (ProgramStatement statement : block.statements)
+                flatten(statement, statements);
+        } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            for (ProgramStatement branch : parallel.branches)
+                flatten(branch, statements);
+        } else if (!(c instanceof ProgramStatement.EmptyStmt))
+            statements.add(statement(c));
+    }
+
+    private static BoolNode bool(BooleanExp b) {
+        if (b instanceof BooleanExp.TrueExp)
+            return new BoolNode.ConstNode(true);
+        if (b instanceof BooleanExp.FalseExp)
+            return new BoolNode.ConstNode(false);
+        if (b instanceof BooleanExp.EqualExp eq)
+            return new BoolNode.EqNode(arithmetic(eq.a1), arithmetic(eq.a2));
+        if (b instanceof BooleanExp.LeqExp leq)
+            return new BoolNode.LeqNode(arithmetic(leq.a1), arithmetic(leq.a2));
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return new BoolNode.GtNode(arithmetic(bigger.a1), arithmetic(bigger.a2));
+        if (b instanceof BooleanExp.NotExp not)
+            return new BoolNode.NotNode(bool(not.b));
+        if (b instanceof BooleanExp.OrExp or)
+            return new BoolNode.OrNode(bool(or.b1), bool(or.b2));
+        throw new IllegalStateException("cannot specialize " + b + ".");
+    }
+
+    private static IntNode arithmetic(ArithmeticExp a) {
+        if (a instanceof ArithmeticExp.NumericExp num)
+            return new IntNode.ConstNode(num.n);
+        if (a instanceof ArithmeticExp.VariableExp var)
+            return new IntNode.VarNode(slot(var.slot));
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return new IntNode.AddNode(arithmetic(add.a1), arithmetic(add.a2));
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return new IntNode.SubNode(arithmetic(sub.a1), arithmetic(sub.a2));
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return new IntNode.MulNode(arithmetic(prod.a1), arithmetic(prod.a2));
+        throw new IllegalStateException("cannot specialize " + a + ".");
+    }
+
+    private static int slot(int slot) {
+        if (slot < 0)
+            throw new IllegalStateException("program must be resolved before specializing.");
+        return slot;
+    }
+}
+
+abstract class IntNode extends Node {
+
+    abstract int exec(State s);
+
+    static class ConstNode extends IntNode {
+        final int n;
+
+        ConstNode(int n) {
+            this.n = n;
+        }
+
+        int exec(State s) {
+            return n;
+        }
+    }
+
+    static class VarNode extends IntNode {
+        final int slot;
+
+        VarNode(int slot) {
+            this.slot = slot;
+        }
+
+        int exec(State s) {
+            return s.get(slot);
+        }
+    }
+
+    abstract static class BinaryNode extends IntNode {
+        IntNode left;
+        IntNode right;
+        int count;
+
+        BinaryNode(IntNode left, IntNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        /** Counts executions and returns true exactly once, when warm-up ends. */
+        boolean warmedUp() {
+            return count < WARMUP && ++count == WARMUP;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old)
+                left = (IntNode) replacement;
+            else if (right == old)
+                right = (IntNode) replacement;
+        }
+    }
+
+    static class AddNode extends BinaryNode {
+
+        AddNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        int exec(State s) {
+            if (warmedUp())
+                return specialize().exec(s);
+            return left.exec(s) + right.exec(s);
+        }
+
+        private IntNode specialize() {
+            if (right instanceof ConstNode c)
+                return replace(left instanceof VarNode var ? new AddVarConstNode(var.slot, c.n) : new AddConstNode(left, c.n));
+            if (left instanceof ConstNode c)
+                return replace(right instanceof VarNode var ? new AddVarConstNode(var.slot, c.n) : new AddConstNode(right, c.n));
+            return this;
+        }
+    }
+
+    static class SubNode extends BinaryNode {
+
+        SubNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        int exec(State s) {
+            if (warmedUp())
+                return specialize().exec(s);
+            return left.exec(s) - right.exec(s);
+        }
+
+        private IntNode specialize() {
+            if (right instanceof ConstNode c)
+                return replace(left instanceof VarNode var ? new AddVarConstNode(var.slot, -c.n) : new AddConstNode(left, -c.n));
+            return this;
+        }
+    }
+
+    static class MulNode extends BinaryNode {
+
+        MulNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        int exec(State s) {
+            if (warmedUp())
+                return specialize().exec(s);
+            return left.exec(s) * right.exec(s);
+        }
+
+        private IntNode specialize() {
+            if (right instanceof ConstNode c)
+                return replace(new MulConstNode(left, c.n));
+            if (left instanceof ConstNode c)
+                return replace(new MulConstNode(right, c.n));
+            return this;
+        }
+    }
+
+    /** Subtracting a constant is adding its negation, which wraps exactly like int subtraction. */
+    static class AddConstNode extends IntNode {
+        IntNode operand;
+        final int n;
+
+        AddConstNode(IntNode operand, int n) {
+            this.operand = adopt(operand);
+            this.n = n;
+        }
+
+        int exec(State s) {
+            return operand.exec(s) + n;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            operand = (IntNode) replacement;
+        }
+    }
+
+    static class AddVarConstNode extends IntNode {
+        final int slot;
+        final int n;
+
+        AddVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        int exec(State s) {
+            return s.get(slot) + n;
+        }
+    }
+
+    static class MulConstNode extends IntNode {
+        IntNode operand;
+        final int n;
+
+        MulConstNode(IntNode operand, int n) {
+            this.operand = adopt(operand);
+            this.n = n;
+        }
+
+        int exec(State s) {
+            return operand.exec(s) * n;
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            operand = (IntNode) replacement;
+        }
+    }
+}
+
+abstract class BoolNode extends Node {
+
+    abstract boolean exec(State s);
+
+    static class ConstNode extends BoolNode {
+        final boolean value;
+
+        ConstNode(boolean value) {
+            this.value = value;
+        }
+
+        boolean exec(State s) {
+            return value;
+        }
+    }
+
+    /**
+     * Generic comparison. Once warmed up, a comparison between a variable
+     * and a constant becomes a single fused node that reads the slot directly.
+     */
+    abstract static class CompareNode extends BoolNode {
+        IntNode left;
+        IntNode right;
+        int count;
+
+        CompareNode(IntNode left, IntNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        abstract boolean test(int a, int b);
+
+        /** Fused node for slot op n, or for n op slot when swapped. */
+        abstract BoolNode fuse(int slot, int n, boolean swapped);
+
+        boolean exec(State s) {
+            if (count < WARMUP && ++count == WARMUP) {
+                if (left instanceof IntNode.VarNode var && right instanceof IntNode.ConstNode c)
+                    return replace(fuse(var.slot, c.n, false)).exec(s);
+                if (left instanceof IntNode.ConstNode c && right instanceof IntNode.VarNode var)
+                    return replace(fuse(var.slot, c.n, true)).exec(s);
+            }
+            return test(left.exec(s), right.exec(s));
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old)
+                left = (IntNode) replacement;
+            else if (right == old)
+                right = (IntNode) replacement;
+        }
+    }
+
+    static class EqNode extends CompareNode {
+
+        EqNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        boolean test(int a, int b) {
+            return a == b;
+        }
+
+        BoolNode fuse(int slot, int n, boolean swapped) {
+            return new EqVarConstNode(slot, n);
+        }
+    }
+
+    static class LeqNode extends CompareNode {
+
+        LeqNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        boolean test(int a, int b) {
+            return a <= b;
+        }
+
+        BoolNode fuse(int slot, int n, boolean swapped) {
+            return swapped ? new GeqVarConstNode(slot, n) : new LeqVarConstNode(slot, n);
+        }
+    }
+
+    static class GtNode extends CompareNode {
+
+        GtNode(IntNode left, IntNode right) {
+            super(left, right);
+        }
+
+        boolean test(int a, int b) {
+            return a > b;
+        }
+
+        BoolNode fuse(int slot, int n, boolean swapped) {
+            return swapped ? new LtVarConstNode(slot, n) : new GtVarConstNode(slot, n);
+        }
+    }
+
+    static class EqVarConstNode extends BoolNode {
+        final int slot;
+        final int n;
+
+        EqVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        boolean exec(State s) {
+            return s.get(slot) == n;
+        }
+    }
+
+    static class LeqVarConstNode extends BoolNode {
+        final int slot;
+        final int n;
+
+        LeqVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        boolean exec(State s) {
+            return s.get(slot) <= n;
+        }
+    }
+
+    static class GeqVarConstNode extends BoolNode {
+        final int slot;
+        final int n;
+
+        GeqVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        boolean exec(State s) {
+            return s.get(slot) >= n;
+        }
+    }
+
+    static class GtVarConstNode extends BoolNode {
+        final int slot;
+        final int n;
+
+        GtVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        boolean exec(State s) {
+            return s.get(slot) > n;
+        }
+    }
+
+    static class LtVarConstNode extends BoolNode {
+        final int slot;
+        final int n;
+
+        LtVarConstNode(int slot, int n) {
+            this.slot = slot;
+            this.n = n;
+        }
+
+        boolean exec(State s) {
+            return s.get(slot) < n;
+        }
+    }
+
+    static class NotNode extends BoolNode {
+        BoolNode operand;
+
+        NotNode(BoolNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        boolean exec(State s) {
+            return !operand.exec(s);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            operand = (BoolNode) replacement;
+        }
+    }
+
+    /** Short-circuit or: the right side runs only when the left one is false. */
+    static class OrNode extends BoolNode {
+        BoolNode left;
+        BoolNode right;
+
+        OrNode(BoolNode left, BoolNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        boolean exec(State s) {
+            return left.exec(s) || right.exec(s);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (left == old)
+                left = (BoolNode) replacement;
+            else if (right == old)
+                right = (BoolNode) replacement;
+        }
+    }
+}
+
+abstract class StmtNode extends Node {
+
+    abstract void exec(State s);
+
+    static class RootNode extends StmtNode {
+        StmtNode body;
+
+        RootNode(StmtNode body) {
+            this.body = adopt(body);
+        }
+
+        void exec(State s) {
+            body.exec(s);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            body = (StmtNode) replacement;
+        }
+    }
+
+    static class SkipNode extends StmtNode {
+
+        void exec(State s) {
+        }
+    }
+
+    static class AssignNode extends StmtNode {
+        final int slot;
+        IntNode value;
+
+        AssignNode(int slot, IntNode value) {
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        void exec(State s) {
+            s.set(slot, value.exec(s));
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            value = (IntNode) replacement;
+        }
+    }
+
+    static class BlockNode extends StmtNode {
+        final StmtNode[] statements;
+
+        BlockNode(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements)
+                adopt(statement);
+        }
+
+        void exec(State s) {
+            for (StmtNode statement : statements)
+                statement.exec(s);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] == old)
+                    statements[i] = (StmtNode) replacement;
+            }
+        }
+    }
+
+    static class IfNode extends StmtNode {
+        BoolNode condition;
+        StmtNode then;
+        StmtNode otherwise;
+
+        IfNode(BoolNode condition, StmtNode then, StmtNode otherwise) {
+            this.condition = adopt(condition);
+            this.then = adopt(then);
+            this.otherwise = adopt(otherwise);
+        }
+
+        void exec(State s) {
+            if (condition.exec(s))
+                then.exec(s);
+            else
+                otherwise.exec(s);
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (condition == old)
+                condition = (BoolNode) replacement;
+            else if (then == old)
+                then = (StmtNode) replacement;
+            else if (otherwise == old)
+                otherwise = (StmtNode) replacement;
+        }
+    }
+
+    static class WhileNode extends StmtNode {
+        BoolNode condition;
+        StmtNode body;
+
+        WhileNode(BoolNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        void exec(State s) {
+            while (condition.exec(s)) {
+                if (s.iterations >= s.checkpoint) s.check();
+                s.iterations++;
+                body.exec(s);
+            }
+        }
+
+        @Override
+        void replaceChild(Node old, Node replacement) {
+            if (condition == old)
+                condition = (BoolNode) replacement;
+            else if (body == old)
+                body = (StmtNode) replacement;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.davidfornesm.simpl;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Settings of a single run, taken from the command line flags.
+ * Each run owns its options, so concurrent runs cannot affect each other.
+ */
+class Options {
+    boolean debug = false;
+    boolean compile = false;
+    /** File the C translation is streamed to, or null for standard output. */
+    String compileOutput = null;
+    boolean optimize = true;
+    boolean precompile = false;
+    /** Run on an instrumented copy of the program and report where the time went. */
+    boolean profile = false;
+    Engine engine = Engine.INTERPRETER;
+    /** Parse into a {@link FlatProgram} and run that, without optimizations or engines. */
+    boolean flat = false;
+    /** Report the bytes per node of the flat and the object tree forms instead of running. */
+    boolean footprint = false;
+    /** Widen to long and BigInteger on overflow instead of wrapping; implies noopt, since folding wraps. */
+    boolean exact = false;
+    /** Variables the program is specialized against before it runs, by name, or null. */
+    Map<String, Integer> known = null;
+    /** Variables whose final values are looked at, so stores to others can be removed, or null to keep them all. */
+    Set<String> live = null;
+    /** Variable swept over the inclusive range sweepFrom..sweepTo, one lane per value, or null. */
+    String sweep = null;
+    int sweepFrom;
+    int sweepTo;
+    /** Loop iterations a run may take, or Long.MAX_VALUE for no limit. */
+    long fuel = Long.MAX_VALUE;
+    /** Wall-clock milliseconds a run may take, or 0 for no limit. */
+    long timeoutMillis = 0;
+
+    /** Fresh limits for one run, starting its clock now, or null when none are set. */
+    Limits limits() {
+        if (fuel == Long.MAX_VALUE && timeoutMillis == 0) return null;
+        return new Limits(fuel, timeoutMillis);
+    }
+
+    /** Applies one flag, returning false if it is not a known flag. */
+    boolean apply(String flag) {
+        if (flag.startsWith("compile=") && flag.length() > "compile=".length()) {
+            compile = true;
+            compileOutput = flag.substring("compile=".length());
+            return true;
+        }
+        if (flag.startsWith("sweep="))
+            return applySweep(flag.substring("sweep=".length()));
+        if (flag.startsWith("known="))
+            return applyKnown(flag.substring("known=".length()));
+        if (flag.startsWith("live=")) {
+            live = new LinkedHashSet<>(List.of(flag.substring("live=".length()).split(",", -1)));
+            return !live.contains("");
+        }
+        if (flag.startsWith("fuel=")) {
+            fuel = parseLimit(flag.substring("fuel=".length()));
+            return fuel > 0;
+        }
+        if (flag.startsWith("timeout=")) {
+            timeoutMillis = parseLimit(flag.substring("timeout=".length()));
+            return timeoutMillis > 0;
+        }
+        switch (flag) {
+            case "debug": debug = true; break;
+            case "compile": compile = true; break;
+            case "jit": engine = Engine.JIT; break;
+            case "vm": engine = Engine.VM; break;
+            case "specialize": engine = Engine.SPECIALIZING; break;
+            case "noopt": optimize = false; break;
+            case "precompile": precompile = true; break;
+            case "profile": profile = true; break;
+            case "flat": flat = true; break;
+            case "footprint": footprint = true; break;
+            case "exact": exact = true; optimize = false; break;
+            case "live": live = new LinkedHashSet<>(List.of("result")); break;
+            default: return false;
+        }
+        return true;
+    }
+
+    /** Whether the parsed program is rewritten for this run by specialization or dead store elimination. */
+    boolean rewrites() {
+        return known != null || live != null;
+    }
+
+    /**
+     * Whether the flags can be used together: a rewritten program is not one that can be run
+     * flat or written as an image of its source, and a specialized program is folded, so it
+     * cannot be run exactly or sweep a known variable. Only plain interpreter runs are exact,
+     * not sweeps, flat runs or profiles.
+     */
+    boolean consistent() {
+        if (rewrites() && (flat || footprint || precompile)) return false;
+        if (exact && (sweep != null || flat || footprint || profile)) return false;
+        return known == null || !exact && (sweep == null || !known.containsKey(sweep));
+    }
+
+    /** A positive count, or -1 if the text is not one. */
+    private static long parseLimit(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses {@code name:from..to}. */
+    private boolean applySweep(String range) {
+        int colon = range.indexOf(':');
+        int dots = range.indexOf("..", colon + 1);
+        if (colon <= 0 || dots < 0) return false;
+        try {
+            sweepFrom = Integer.parseInt(range.substring(colon + 1, dots));
+            sweepTo = Integer.parseInt(range.substring(dots + 2));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (sweepTo < sweepFrom || (long) sweepTo - sweepFrom >= Integer.MAX_VALUE) return false;
+        sweep = range.substring(0, colon);
+        return true;
+    }
+
+    /** Parses {@code name:value,name:value...}. */
+    private boolean applyKnown(String bindings) {
+        Map<String, Integer> parsed = new LinkedHashMap<>();
+        for (String binding : bindings.split(",", -1)) {
+            int colon = binding.indexOf(':');
+            if (colon <= 0) return false;
+            try {
+                parsed.put(binding.substring(0, colon), Integer.parseInt(binding.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        known = parsed;
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package com.davidfornesm.simpl;
+
+import java.util.Arrays;
+
+/**
+ * Token stream stored as parallel primitive arrays: type ordinal, start
+ * offset, length, line and int literal, which is the symbol id for an
+ * identifier. Identifier lexemes are the interned names of the lexer's
+ * symbol table; other lexemes are only materialized when asked for, as
+ * slices of the scanned source.
+ */
+class PackedTokens implements TokenStream {
+    private static final Token.TokenType[] TYPES = Token.TokenType.values();
+
+    private final CharSequence source;
+    private final SymbolTable symbols;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] literals;
+    private int size = 0;
+
+    PackedTokens(CharSequence source, SymbolTable symbols) {
+        this.source = source;
+        this.symbols = symbols;
+        int capacity = Math.max(16, source.length() / 4);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        literals = new int[capacity];
+    }
+
+    void add(Token.TokenType type, int start, int length, int line, int literal) {
+        if (size == types.length)
+            grow();
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        literals[size] = literal;
+        size++;
+    }
+
+    public Token.TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    public String lexeme(int i) {
+        if (types[i] == Token.TokenType.IDENTIFIER.ordinal())
+            return symbols.name(literals[i]);
+        return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+    }
+
+    public int intLiteral(int i) {
+        return literals[i];
+    }
+
+    public int symbol(int i) {
+        return types[i] == Token.TokenType.IDENTIFIER.ordinal() ? literals[i] : -1;
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        literals = Arrays.copyOf(literals, capacity);
+    }
+}
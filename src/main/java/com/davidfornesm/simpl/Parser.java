@@ -1,14 +1,21 @@
 package com.davidfornesm.simpl;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.davidfornesm.simpl.Token.TokenType.*;
 
 public class Parser {
-    private final List<Token> tokens;
+    private final TokenStream tokens;
     private int current = 0;
 
     Parser(List<Token> tokens) {
+        this(TokenStream.of(tokens));
+    }
+
+    Parser(TokenStream tokens) {
         this.tokens = tokens;
     }
 
@@ -17,21 +24,41 @@ public class Parser {
     }
 
     private ProgramStatement program() {
-        return new ProgramStatement.SequenceStmt(programStatement(), new ProgramStatement.EmptyStmt());
+        int line = tokens.line(current);
+        return ProgramStatement.BlockStmt.of(statementList()).at(line);
     }
 
+    /** Statements separated by semicolons, as one statement or a block. */
     private ProgramStatement programStatement() {
+        int line = tokens.line(current);
+        List<ProgramStatement> statements = statementList();
+        if (statements.size() == 1)
+            return statements.get(0);
+        return ProgramStatement.BlockStmt.of(statements).at(line);
+    }
+
+    /** Parsed in a loop, so the stack only grows with nesting, not with the length of the list. */
+    private List<ProgramStatement> statementList() {
+        List<ProgramStatement> statements = new ArrayList<>();
+        do {
+            statements.add(statement());
+        } while (match(SEMICOLON));
+        return statements;
+    }
+
+    private ProgramStatement statement() {
         ProgramStatement programStatement = skipStatement();
+        int line = tokens.line(current);
         if (match(SKIP))
-            programStatement = skipStatement();
+            programStatement = skipStatement().at(line);
         else if (match(IDENTIFIER))
-            programStatement = assignmentStatement();
+            programStatement = assignmentStatement().at(line);
         else if (match(IF))
-            programStatement = ifStatement();
+            programStatement = ifStatement().at(line);
         else if (match(WHILE))
-            programStatement = whileStatement();
-        if (match(SEMICOLON))
-            programStatement = new ProgramStatement.SequenceStmt(programStatement, programStatement());
+            programStatement = whileStatement().at(line);
+        else if (match(LEFT_PAREN))
+            programStatement = parenthesized();
         return programStatement;
     }
 
@@ -40,10 +67,12 @@ public class Parser {
     }
 
     private ProgramStatement assignmentStatement() {
-        Token ident = previous();
-        String name = ident.lexeme;
+        String name = tokens.lexeme(current - 1);
+        int symbol = tokens.symbol(current - 1);
         consume(WALRUS, "expected walrus operator.");
-        return new ProgramStatement.AssignmentStmt(name, arithmeticExp());
+        ProgramStatement.AssignmentStmt assign = new ProgramStatement.AssignmentStmt(name, arithmeticExp());
+        assign.symbol = symbol;
+        return assign;
     }
 
     private ProgramStatement ifStatement() {
@@ -52,10 +81,8 @@ public class Parser {
         ProgramStatement ifTrue = programStatement();
         consume(ELSE, "expected else after then.");
         ProgramStatement ifFalse;
-        if (match(LEFT_PAREN)) {
-            ifFalse = programStatement();
-            consume(RIGHT_PAREN, "expected right paren.");
-        }
+        if (match(LEFT_PAREN))
+            ifFalse = parenthesized();
         else ifFalse = programStatement();
         return new ProgramStatement.IfThenElseStmt(booleanExp, ifTrue, ifFalse);
 
@@ -65,15 +92,29 @@ public class Parser {
         BooleanExp booleanExp = booleanExp();
         consume(DO, "expected do after while.");
         ProgramStatement programStatement;
-        if (match(LEFT_PAREN)) {
-            programStatement = programStatement();
-            consume(RIGHT_PAREN, "expected right paren.");
-        }
+        if (match(LEFT_PAREN))
+            programStatement = parenthesized();
         else
             programStatement = programStatement();
         return new ProgramStatement.WhileStmt(booleanExp, programStatement);
     }
 
+    /** A statement in parentheses, or branches separated by || that run in parallel. */
+    private ProgramStatement parenthesized() {
+        int line = tokens.line(current - 1);
+        List<ProgramStatement> branches = new ArrayList<>();
+        branches.add(programStatement());
+        while (match(OR))
+            branches.add(programStatement());
+        consume(RIGHT_PAREN, "expected right paren.");
+        if (branches.size() == 1)
+            return branches.get(0);
+        String conflict = ProgramStatement.ParallelStmt.conflict(branches);
+        if (conflict != null)
+            throw new RuntimeException("parallel branches conflict on " + conflict + ".");
+        return new ProgramStatement.ParallelStmt(branches).at(line);
+    }
+
     private BooleanExp booleanExp() {
         BooleanExp booleanExp = null;
         if (match(TRUE))
@@ -101,13 +142,18 @@ public class Parser {
     private ArithmeticExp arithmeticExp() {
         ArithmeticExp arithmeticExp = null;
         if (match(NUMBER))
-            arithmeticExp = new ArithmeticExp.NumericExp((Integer) previous().literal);
-        else if (match(IDENTIFIER))
-            arithmeticExp = new ArithmeticExp.VariableExp(previous().lexeme);
+            arithmeticExp = new ArithmeticExp.NumericExp(tokens.intLiteral(current - 1));
+        else if (match(BIG_NUMBER))
+            arithmeticExp = new ArithmeticExp.BigNumericExp(new BigInteger(tokens.lexeme(current - 1)));
+        else if (match(IDENTIFIER)) {
+            ArithmeticExp.VariableExp var = new ArithmeticExp.VariableExp(tokens.lexeme(current - 1));
+            var.symbol = tokens.symbol(current - 1);
+            arithmeticExp = var;
+        }
         if (arithmeticExp == null)
             throw new RuntimeException("expected arithmetic expression.");
         if (match(PLUS, MINUS, STAR)) {
-            switch (previous().type) {
+            switch (tokens.type(current - 1)) {
                 case PLUS:
                     arithmeticExp = new ArithmeticExp.AdditionExp(arithmeticExp, arithmeticExp());
                     break;
@@ -122,6 +168,123 @@ public class Parser {
         return arithmeticExp;
     }
 
+    /**
+     * Parses straight into a {@link FlatProgram}, giving variables slots in
+     * the symbols as it goes. Follows the same grammar as {@link #parse()}.
+     */
+    FlatProgram parseFlat(SymbolTable symbols) {
+        FlatProgram flat = new FlatProgram(symbols);
+        return flat.finish(flatStatements(flat, true));
+    }
+
+    /** Statements separated by semicolons; a lone one is only put in a block at the top. */
+    private int flatStatements(FlatProgram flat, boolean block) {
+        int[] statements = new int[4];
+        int count = 0;
+        do {
+            statements = push(statements, count++, flatStatement(flat));
+        } while (match(SEMICOLON));
+        if (count == 1 && !block)
+            return statements[0];
+        return flat.list(FlatProgram.BLOCK, statements, count);
+    }
+
+    private int flatStatement(FlatProgram flat) {
+        if (match(IDENTIFIER)) {
+            int slot = flatSlot(flat);
+            consume(WALRUS, "expected walrus operator.");
+            return flat.node(FlatProgram.ASSIGN, slot, flatArithmetic(flat));
+        }
+        if (match(IF)) {
+            int b = flatBoolean(flat);
+            consume(THEN, "expected then after if.");
+            int ifTrue = flatStatements(flat, false);
+            consume(ELSE, "expected else after then.");
+            int ifFalse = match(LEFT_PAREN) ? flatParenthesized(flat) : flatStatements(flat, false);
+            return flat.node(FlatProgram.IF, b, ifTrue, ifFalse);
+        }
+        if (match(WHILE)) {
+            int b = flatBoolean(flat);
+            consume(DO, "expected do after while.");
+            int body = match(LEFT_PAREN) ? flatParenthesized(flat) : flatStatements(flat, false);
+            return flat.node(FlatProgram.WHILE, b, body);
+        }
+        if (match(LEFT_PAREN))
+            return flatParenthesized(flat);
+        match(SKIP);
+        return flat.node(FlatProgram.SKIP);
+    }
+
+    private int flatParenthesized(FlatProgram flat) {
+        int[] branches = new int[2];
+        int count = 0;
+        do {
+            branches = push(branches, count++, flatStatements(flat, false));
+        } while (match(OR));
+        consume(RIGHT_PAREN, "expected right paren.");
+        if (count == 1)
+            return branches[0];
+        String conflict = flat.conflict(branches, count);
+        if (conflict != null)
+            throw new RuntimeException("parallel branches conflict on " + conflict + ".");
+        return flat.list(FlatProgram.PARALLEL, branches, count);
+    }
+
+    private int flatBoolean(FlatProgram flat) {
+        int b;
+        if (match(TRUE))
+            b = flat.node(FlatProgram.TRUE);
+        else if (match(FALSE))
+            b = flat.node(FlatProgram.FALSE);
+        else if (match(NOT))
+            b = flat.node(FlatProgram.NOT, flatBoolean(flat));
+        else {
+            int a = flatArithmetic(flat);
+            if (match(EQUAL))
+                b = flat.node(FlatProgram.EQUAL, a, flatArithmetic(flat));
+            else if (match(LESS_EQUAL))
+                b = flat.node(FlatProgram.LEQ, a, flatArithmetic(flat));
+            else if (match(MORE))
+                b = flat.node(FlatProgram.BIGGER, a, flatArithmetic(flat));
+            else
+                throw new RuntimeException("expected boolean expression.");
+        }
+        if (match(OR))
+            b = flat.node(FlatProgram.OR, b, flatBoolean(flat));
+        return b;
+    }
+
+    private int flatArithmetic(FlatProgram flat) {
+        int a;
+        if (match(NUMBER))
+            a = flat.node(FlatProgram.NUM, tokens.intLiteral(current - 1));
+        else if (match(BIG_NUMBER))
+            throw new RuntimeException("number too large for an int: " + tokens.lexeme(current - 1) + ".");
+        else if (match(IDENTIFIER))
+            a = flat.node(FlatProgram.VAR, flatSlot(flat));
+        else
+            throw new RuntimeException("expected arithmetic expression.");
+        if (match(PLUS))
+            a = flat.node(FlatProgram.ADD, a, flatArithmetic(flat));
+        else if (match(MINUS))
+            a = flat.node(FlatProgram.SUB, a, flatArithmetic(flat));
+        else if (match(STAR))
+            a = flat.node(FlatProgram.MUL, a, flatArithmetic(flat));
+        return a;
+    }
+
+    /** Slot of the identifier just matched. */
+    private int flatSlot(FlatProgram flat) {
+        return flat.symbols().slot(tokens.lexeme(current - 1), tokens.symbol(current - 1));
+    }
+
+    private static int[] push(int[] values, int index, int value) {
+        if (index == values.length)
+            values = Arrays.copyOf(values, index * 2);
+        values[index] = value;
+        return values;
+    }
+
     private boolean match(Token.TokenType... types) {
         for (Token.TokenType type : types) {
             if (check(type)) {
@@ -143,7 +306,7 @@ public class Parser {
     private boolean check(Token.TokenType type) {
         if (isAtEnd())
             return false;
-        return peek().type == type;
+        return peek() == type;
     }
 
     private void advance() {
@@ -151,15 +314,11 @@ public class Parser {
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
-    }
-
-    private Token peek() {
-        return tokens.get(current);
+        return peek() == EOF;
     }
 
-    private Token previous() {
-        return tokens.get(current - 1);
+    private Token.TokenType peek() {
+        return tokens.type(current);
     }
 
 }
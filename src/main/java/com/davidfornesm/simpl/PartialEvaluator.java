@@ -0,0 +1,219 @@
+package com.davidfornesm.simpl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Specializes a program against variables whose values are known before it
+ * runs. Known values are substituted into expressions and folded; an
+ * assignment that folds to a constant makes its variable known instead of
+ * being kept, an if with a known condition keeps only the branch taken,
+ * and a while loop with a known condition is unrolled. The budget is for
+ * the whole program, nested loops included: at most
+ * {@link #MAX_UNROLLED_ITERATIONS} iterations are unrolled in all, and
+ * unrolling stops once it has left {@link #MAX_UNROLLED_STATEMENTS}
+ * residual statements. What is left is the residual program, which needs
+ * only the unknown variables.
+ * <p>
+ * Known variables are assigned their values where they stop being known:
+ * at the end of a branch whose twin leaves them different, before a loop
+ * that writes them, and at the end of the program, so the residual ends
+ * in the same state as the original on the same inputs. Unrolled
+ * iterations are loop iterations of the run: they are counted on the state
+ * the residual will run on, against its limits. A residual run that fails
+ * leaves known variables unassigned.
+ */
+final class PartialEvaluator {
+
+    static final int MAX_UNROLLED_ITERATIONS = 10_000;
+    static final int MAX_UNROLLED_STATEMENTS = 1_000;
+
+    private final State state;
+    private int iterations;
+    /** Residual statements left by unrolled iterations, each counted once however deep the loops nest. */
+    private int statements;
+    /** Unrolled loops around the statement being specialized. */
+    private int unrolling;
+
+    private PartialEvaluator(State state) {
+        this.state = state;
+    }
+
+    /** The residual of the program once the known variables have their values. */
+    static ProgramStatement specialize(ProgramStatement program, Map<String, Integer> known) {
+        return specialize(program, known, new State());
+    }
+
+    /**
+     * The residual of the program once the known variables have their values, unrolling
+     * within the limits of the state it will run on.
+     */
+    static ProgramStatement specialize(ProgramStatement program, Map<String, Integer> known, State state) {
+        Map<String, Integer> env = new LinkedHashMap<>(known);
+        List<ProgramStatement> out = new ArrayList<>();
+        new PartialEvaluator(state).statement(program, env, out);
+        assign(env.keySet(), env, out);
+        return block(out, program.line);
+    }
+
+    /** Appends the residual of the statement to out, updating the known variables. */
+    private void statement(ProgramStatement c, Map<String, Integer> env, List<ProgramStatement> out) {
+        if (c instanceof ProgramStatement.EmptyStmt) {
+            return;
+        }
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            for (ProgramStatement statement : block.statements)
+                statement(statement, env, out);
+        } else if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            ArithmeticExp e = arithmetic(assign.a, env).fold();
+            if (e instanceof ArithmeticExp.NumericExp num) {
+                env.put(assign.x, num.n);
+                return;
+            }
+            env.remove(assign.x);
+            ProgramStatement.AssignmentStmt residual = new ProgramStatement.AssignmentStmt(assign.x, e);
+            residual.symbol = assign.symbol;
+            out.add(residual.at(c.line));
+            if (unrolling > 0) statements++;
+        } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            ifThenElse(ifThenElse, env, out);
+        } else if (c instanceof ProgramStatement.WhileStmt loop) {
+            loop(loop, env, out);
+        } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            // branches touch disjoint variables, so they can share the known ones
+            List<ProgramStatement> branches = new ArrayList<>();
+            for (ProgramStatement branch : parallel.branches) {
+                List<ProgramStatement> residual = new ArrayList<>();
+                statement(branch, env, residual);
+                if (!residual.isEmpty()) branches.add(block(residual, branch.line));
+            }
+            if (branches.size() == 1)
+                out.add(branches.get(0));
+            else if (branches.size() > 1)
+                out.add(new ProgramStatement.ParallelStmt(branches).at(c.line));
+        } else {
+            throw new IllegalStateException("cannot specialize " + c);
+        }
+    }
+
+    private void ifThenElse(ProgramStatement.IfThenElseStmt c, Map<String, Integer> env,
+                                   List<ProgramStatement> out) {
+        BooleanExp b = condition(c.b, env).fold();
+        if (b instanceof BooleanExp.TrueExp) {
+            statement(c.c1, env, out);
+            return;
+        }
+        if (b instanceof BooleanExp.FalseExp) {
+            statement(c.c2, env, out);
+            return;
+        }
+        Map<String, Integer> env1 = new LinkedHashMap<>(env);
+        Map<String, Integer> env2 = new LinkedHashMap<>(env);
+        List<ProgramStatement> out1 = new ArrayList<>();
+        List<ProgramStatement> out2 = new ArrayList<>();
+        statement(c.c1, env1, out1);
+        statement(c.c2, env2, out2);
+        // only what both branches agree on stays known after the if
+        env.clear();
+        for (Map.Entry<String, Integer> entry : env1.entrySet()) {
+            if (entry.getValue().equals(env2.get(entry.getKey())))
+                env.put(entry.getKey(), entry.getValue());
+        }
+        assign(unknownIn(env, env1), env1, out1);
+        assign(unknownIn(env, env2), env2, out2);
+        if (out1.isEmpty() && out2.isEmpty())
+            return;
+        // C translation drops an if whose then branch is empty
+        if (out1.isEmpty())
+            out.add(new ProgramStatement.IfThenElseStmt(new BooleanExp.NotExp(b), block(out2, c.line),
+                    new ProgramStatement.EmptyStmt()).at(c.line));
+        else
+            out.add(new ProgramStatement.IfThenElseStmt(b, block(out1, c.line), block(out2, c.line)).at(c.line));
+    }
+
+    private void loop(ProgramStatement.WhileStmt c, Map<String, Integer> env, List<ProgramStatement> out) {
+        while (true) {
+            BooleanExp b = condition(c.b, env).fold();
+            if (b instanceof BooleanExp.FalseExp)
+                return;
+            if (!(b instanceof BooleanExp.TrueExp) || iterations == MAX_UNROLLED_ITERATIONS
+                    || statements > MAX_UNROLLED_STATEMENTS)
+                break;
+            if (state.iterations >= state.checkpoint) state.check();
+            state.iterations++;
+            iterations++;
+            unrolling++;
+            statement(c.c, env, out);
+            unrolling--;
+        }
+
+        // whatever the body writes is unknown from here on, in the loop and after it
+        Set<String> reads = new LinkedHashSet<>();
+        Set<String> writes = new LinkedHashSet<>();
+        c.c.variables(reads, writes);
+        writes.retainAll(env.keySet());
+        assign(writes, env, out);
+        env.keySet().removeAll(writes);
+
+        Map<String, Integer> bodyEnv = new LinkedHashMap<>(env);
+        List<ProgramStatement> body = new ArrayList<>();
+        statement(c.c, bodyEnv, body);
+        assign(unknownIn(env, bodyEnv), bodyEnv, body);
+        out.add(ClosedFormLoop.of(condition(c.b, env).fold(), block(body, c.line)).at(c.line));
+    }
+
+    /** The variables known in the branch that are not known after it. */
+    private static Set<String> unknownIn(Map<String, Integer> after, Map<String, Integer> branch) {
+        Set<String> names = new LinkedHashSet<>(branch.keySet());
+        names.removeAll(after.keySet());
+        return names;
+    }
+
+    /** Appends assignments of their known values to the variables. */
+    private static void assign(Set<String> names, Map<String, Integer> env, List<ProgramStatement> out) {
+        for (String name : names)
+            out.add(new ProgramStatement.AssignmentStmt(name, new ArithmeticExp.NumericExp(env.get(name))));
+    }
+
+    private static ProgramStatement block(List<ProgramStatement> statements, int line) {
+        if (statements.isEmpty()) return new ProgramStatement.EmptyStmt().at(line);
+        if (statements.size() == 1) return statements.get(0);
+        return ProgramStatement.BlockStmt.of(statements).at(line);
+    }
+
+    private static BooleanExp condition(BooleanExp b, Map<String, Integer> env) {
+        if (b instanceof BooleanExp.TrueExp || b instanceof BooleanExp.FalseExp)
+            return b;
+        if (b instanceof BooleanExp.NotExp not)
+            return new BooleanExp.NotExp(condition(not.b, env));
+        if (b instanceof BooleanExp.OrExp or)
+            return new BooleanExp.OrExp(condition(or.b1, env), condition(or.b2, env));
+        if (b instanceof BooleanExp.EqualExp eq)
+            return new BooleanExp.EqualExp(arithmetic(eq.a1, env), arithmetic(eq.a2, env));
+        if (b instanceof BooleanExp.LeqExp leq)
+            return new BooleanExp.LeqExp(arithmetic(leq.a1, env), arithmetic(leq.a2, env));
+        if (b instanceof BooleanExp.BiggerThanExp bigger)
+            return new BooleanExp.BiggerThanExp(arithmetic(bigger.a1, env), arithmetic(bigger.a2, env));
+        throw new IllegalStateException("cannot specialize " + b);
+    }
+
+    private static ArithmeticExp arithmetic(ArithmeticExp a, Map<String, Integer> env) {
+        if (a instanceof ArithmeticExp.NumericExp || a instanceof ArithmeticExp.BigNumericExp)
+            return a;
+        if (a instanceof ArithmeticExp.VariableExp var) {
+            Integer n = env.get(var.name);
+            return n == null ? var : new ArithmeticExp.NumericExp(n);
+        }
+        if (a instanceof ArithmeticExp.AdditionExp add)
+            return new ArithmeticExp.AdditionExp(arithmetic(add.a1, env), arithmetic(add.a2, env));
+        if (a instanceof ArithmeticExp.SubtractionExp sub)
+            return new ArithmeticExp.SubtractionExp(arithmetic(sub.a1, env), arithmetic(sub.a2, env));
+        if (a instanceof ArithmeticExp.ProductExp prod)
+            return new ArithmeticExp.ProductExp(arithmetic(prod.a1, env), arithmetic(prod.a2, env));
+        throw new IllegalStateException("cannot specialize " + a);
+    }
+}
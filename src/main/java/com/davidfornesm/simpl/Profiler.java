@@ -0,0 +1,250 @@
+package com.davidfornesm.simpl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Per-node execution profile of a program run on the interpreter.
+ * {@link #instrument} returns a copy of the program whose statements and
+ * conditions are wrapped in counting, timing nodes; the original program
+ * is left untouched, so evaluation without profiling pays nothing.
+ * Times are inclusive. Loops in closed form are timed as a whole.
+ */
+class Profiler {
+
+    /** Counters of one statement or condition. */
+    static final class Entry {
+        final int line;
+        final String kind;
+        final String label;
+        /** The condition of an if or while, whose true count gives taken branches or iterations. */
+        Entry condition;
+        long count;
+        long nanos;
+        long trueCount;
+
+        Entry(int line, String kind, String label) {
+            this.line = line;
+            this.kind = kind;
+            this.label = label;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long total;
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /** Runs an instrumented copy of the program, recording into this profiler. */
+    State eval(ProgramStatement program, State s) {
+        ProgramStatement instrumented = instrument(program);
+        long start = System.nanoTime();
+        try {
+            return instrumented.eval(s);
+        } finally {
+            total += System.nanoTime() - start;
+        }
+    }
+
+    ProgramStatement instrument(ProgramStatement c) {
+        if (c instanceof ProgramStatement.BlockStmt block) {
+            ProgramStatement[] statements = new ProgramStatement[block.statements.length];
+            for (int i = 0; i < statements.length; i++)
+                statements[i] = instrument(block.statements[i]);
+            return new ProgramStatement.BlockStmt(statements).at(c.line);
+        }
+        if (c instanceof ProgramStatement.ParallelStmt parallel) {
+            List<ProgramStatement> branches = new ArrayList<>();
+            for (ProgramStatement branch : parallel.branches)
+                branches.add(instrument(branch));
+            return new ProgramStatement.ParallelStmt(branches).at(c.line);
+        }
+        if (c instanceof ClosedFormLoop loop) {
+            return new ProfiledStmt(loop, entry(c.line, "while", "closed form: " + source(loop.b)));
+        }
+        if (c instanceof ProgramStatement.WhileStmt loop) {
+            Entry entry = entry(c.line, "while", source(loop.b));
+            ProgramStatement.WhileStmt copy = new ProgramStatement.WhileStmt(
+                    condition(loop.b, entry), instrument(loop.c));
+            return new ProfiledStmt(copy.at(c.line), entry);
+        }
+        if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+            Entry entry = entry(c.line, "if", source(ifThenElse.b));
+            ProgramStatement.IfThenElseStmt copy = new ProgramStatement.IfThenElseStmt(
+                    condition(ifThenElse.b, entry), instrument(ifThenElse.c1), instrument(ifThenElse.c2));
+            return new ProfiledStmt(copy.at(c.line), entry);
+        }
+        if (c instanceof ProgramStatement.AssignmentStmt assign) {
+            return new ProfiledStmt(c, entry(c.line, "assign", assign.x + " := " + source(assign.a)));
+        }
+        return new ProfiledStmt(c, entry(c.line, "skip", "skip"));
+    }
+
+    private BooleanExp condition(BooleanExp b, Entry owner) {
+        owner.condition = entry(owner.line, "condition", owner.label);
+        return new ProfiledCondition(b, owner.condition);
+    }
+
+    private Entry entry(int line, String kind, String label) {
+        Entry entry = new Entry(line, kind, label);
+        entries.add(entry);
+        return entry;
+    }
+
+    private static String source(ArithmeticExp a) {
+        StringBuilder out = new StringBuilder();
+        try {
+            a.compile(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private static String source(BooleanExp b) {
+        StringBuilder out = new StringBuilder();
+        try {
+            b.compile(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /** Hot spots first: entries by inclusive time, with their share of the whole run. */
+    void report(PrintStream out) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong((Entry e) -> e.nanos).reversed().thenComparingInt(e -> e.line));
+        out.printf("%6s  %-9s %12s %12s %7s  %-18s %s%n", "line", "node", "count", "time ms", "time %",
+                "iterations/taken", "source");
+        for (Entry entry : sorted) {
+            String loops = "";
+            if (entry.condition != null && entry.kind.equals("while"))
+                loops = String.valueOf(entry.condition.trueCount);
+            else if (entry.condition != null && entry.condition.count > 0)
+                loops = String.format("%.1f%%", 100.0 * entry.condition.trueCount / entry.condition.count);
+            out.printf("%6d  %-9s %12d %12.3f %6.1f%%  %-18s %s%n", entry.line, entry.kind, entry.count,
+                    entry.nanos / 1e6, total == 0 ? 0.0 : 100.0 * entry.nanos / total, loops, shorten(entry.label));
+        }
+    }
+
+    /** One tab separated line per entry in program order, with a header. */
+    void dump(Appendable out) throws IOException {
+        out.append("line\tnode\tcount\tnanos\ttrue\tsource\n");
+        for (Entry entry : entries) {
+            out.append(String.valueOf(entry.line)).append('\t')
+                    .append(entry.kind).append('\t')
+                    .append(String.valueOf(entry.count)).append('\t')
+                    .append(String.valueOf(entry.nanos)).append('\t')
+                    .append(entry.kind.equals("condition") ? String.valueOf(entry.trueCount) : "").append('\t')
+                    .append(entry.label.replace('\t', ' ')).append('\n');
+        }
+    }
+
+    private static String shorten(String label) {
+        return label.length() <= 60 ? label : label.substring(0, 57) + "...";
+    }
+
+    /** Counts and times every evaluation of the statement it wraps. */
+    private static final class ProfiledStmt extends ProgramStatement {
+        private final ProgramStatement target;
+        private final Entry entry;
+
+        ProfiledStmt(ProgramStatement target, Entry entry) {
+            this.target = target;
+            this.entry = entry;
+            this.line = target.line;
+        }
+
+        @Override
+        public State eval(State s) {
+            entry.count++;
+            long start = System.nanoTime();
+            try {
+                return target.eval(s);
+            } finally {
+                entry.nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            target.compile(out);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            target.dump(out);
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            target.variables(reads, writes);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            target.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            return target.fold();
+        }
+    }
+
+    /** Counts, times and records the outcome of every evaluation of the condition it wraps. */
+    private static final class ProfiledCondition extends BooleanExp {
+        private final BooleanExp target;
+        private final Entry entry;
+
+        ProfiledCondition(BooleanExp target, Entry entry) {
+            this.target = target;
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean eval(State s) {
+            entry.count++;
+            long start = System.nanoTime();
+            try {
+                boolean result = target.eval(s);
+                if (result) entry.trueCount++;
+                return result;
+            } finally {
+                entry.nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            target.compile(out);
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            target.dump(out);
+        }
+
+        @Override
+        public void variables(Set<String> reads) {
+            target.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            target.resolve(symbols);
+        }
+
+        @Override
+        public BooleanExp fold() {
+            return target.fold();
+        }
+    }
+}
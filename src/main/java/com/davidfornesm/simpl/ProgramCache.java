@@ -0,0 +1,61 @@
+package com.davidfornesm.simpl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Bounded LRU cache from source text to its parsed, optimized and
+ * resolved program, so replayed input skips lexing and parsing, and
+ * the JIT compiling it again.
+ * Programs are resolved against one symbol table, so a cache must not
+ * outlive the session whose state it was filled for.
+ */
+class ProgramCache {
+    private final LinkedHashMap<String, ProgramStatement> programs;
+    private long hits = 0;
+    private long misses = 0;
+
+    ProgramCache(int capacity) {
+        programs = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ProgramStatement> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    ProgramStatement get(String source, Function<String, ProgramStatement> compiler) {
+        ProgramStatement program = programs.get(source);
+        if (program != null) {
+            hits++;
+            return program;
+        }
+        misses++;
+        program = compiler.apply(source);
+        programs.put(source, program);
+        return program;
+    }
+
+    /** Forgets the program of a source, so the next get compiles it again. */
+    void remove(String source) {
+        programs.remove(source);
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    int size() {
+        return programs.size();
+    }
+
+    @Override
+    public String toString() {
+        return "cache: " + hits + " hits, " + misses + " misses, " + programs.size() + " entries";
+    }
+}
@@ -0,0 +1,426 @@
+package com.davidfornesm.simpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precompiled program file (.impc).
+ * Stores a prepared program so it can be rebuilt from one sequential read
+ * without lexing or parsing. Layout, big-endian:
+ * <pre>
+ *   magic "IMPC", u2 version, u1 flags (1 = folded),
+ *   u1 hash length, SHA-256 of the source,
+ *   u4 name count, names as u2 length + Latin-1 bytes,
+ *   the program tree in preorder, one tag byte per node, statements
+ *   other than blocks followed by their u4 source line.
+ * </pre>
+ * Literals are u4, except those too large for an int, which exact runs
+ * take: a u2 length and the two's complement bytes.
+ * Variables refer to the name table by index. A block is stored as its
+ * statement count followed by the statements, so that long blocks are
+ * neither written nor read recursively. Images may come from anywhere, so
+ * the reader checks every count against the bytes left before allocating
+ * for it, and stops nesting at {@link #MAX_DEPTH} levels.
+ */
+class ProgramImage {
+    static final int MAGIC = 0x494D5043;
+    static final int VERSION = 4;
+    static final String EXTENSION = ".impc";
+    static final int MAX_DEPTH = 2_000;
+
+    private static final int FOLDED = 1;
+
+    private static final byte SKIP = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BLOCK = 2;
+    private static final byte IF = 3;
+    private static final byte WHILE = 4;
+    private static final byte PARALLEL = 5;
+    private static final byte VAR = 16;
+    private static final byte NUM = 17;
+    private static final byte ADD = 18;
+    private static final byte SUB = 19;
+    private static final byte MUL = 20;
+    private static final byte TRUE = 21;
+    private static final byte FALSE = 22;
+    private static final byte EQUAL = 23;
+    private static final byte LEQ = 24;
+    private static final byte GT = 25;
+    private static final byte NOT = 26;
+    private static final byte OR = 27;
+    private static final byte BIG = 28;
+
+    private ProgramImage() {
+    }
+
+    /** A program read from an image, and whether it was folded when it was written. */
+    static final class Loaded {
+        final ProgramStatement program;
+        final boolean folded;
+
+        Loaded(ProgramStatement program, boolean folded) {
+            this.program = program;
+            this.folded = folded;
+        }
+    }
+
+    static Path pathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + "c");
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void write(Path path, ProgramStatement program, SymbolTable symbols, byte[] hash, boolean folded)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeByte(folded ? FOLDED : 0);
+        out.writeByte(hash.length);
+        out.write(hash);
+        out.writeInt(symbols.size());
+        for (int slot = 0; slot < symbols.size(); slot++) {
+            byte[] name = symbols.name(slot).getBytes(StandardCharsets.ISO_8859_1);
+            out.writeShort(name.length);
+            out.write(name);
+        }
+        new Writer(out, symbols).statement(program);
+        out.flush();
+        Files.write(path, bytes.toByteArray());
+    }
+
+    /**
+     * Loads the image written for a source with the given hash, or returns
+     * null when it is missing, stale, from another format version or was
+     * prepared with a different optimization setting.
+     */
+    static ProgramStatement load(Path path, byte[] hash, boolean folded, SymbolTable symbols) throws IOException {
+        if (!Files.isRegularFile(path)) return null;
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (in.getInt() != MAGIC || in.getShort() != VERSION) return null;
+            if (((in.get() & FOLDED) != 0) != folded) return null;
+            byte[] stored = new byte[in.get() & 0xff];
+            in.get(stored);
+            if (!Arrays.equals(stored, hash)) return null;
+            return new Reader(in, symbols, folded).program();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Loads an image without checking it against any source. */
+    static Loaded read(Path path, SymbolTable symbols) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(path)), path.toString(), symbols);
+    }
+
+    /** Loads an image held in memory; the name is only used in error messages. */
+    static Loaded read(ByteBuffer in, String name, SymbolTable symbols) throws IOException {
+        try {
+            if (in.getInt() != MAGIC)
+                throw new IOException("not a precompiled program: " + name);
+            int version = in.getShort();
+            if (version != VERSION)
+                throw new IOException("unsupported precompiled program version " + version + ": " + name);
+            boolean folded = (in.get() & FOLDED) != 0;
+            int hashLength = in.get() & 0xff;
+            in.position(in.position() + hashLength);
+            return new Loaded(new Reader(in, symbols, folded).program(), folded);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt precompiled program: " + name, e);
+        }
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final SymbolTable symbols;
+
+        Writer(DataOutputStream out, SymbolTable symbols) {
+            this.out = out;
+            this.symbols = symbols;
+        }
+
+        void statement(ProgramStatement c) throws IOException {
+            if (c instanceof ProgramStatement.EmptyStmt) {
+                out.writeByte(SKIP);
+                out.writeInt(c.line);
+            } else if (c instanceof ProgramStatement.AssignmentStmt assign) {
+                out.writeByte(ASSIGN);
+                out.writeInt(c.line);
+                out.writeInt(symbols.slot(assign.x));
+                arithmetic(assign.a);
+            } else if (c instanceof ProgramStatement.BlockStmt block) {
+                out.writeByte(BLOCK);
+                out.writeInt(block.statements.length);
+                for (ProgramStatement statement : block.statements)
+                    statement(statement);
+            } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+                out.writeByte(IF);
+                out.writeInt(c.line);
+                bool(ifThenElse.b);
+                statement(ifThenElse.c1);
+                statement(ifThenElse.c2);
+            } else if (c instanceof ProgramStatement.WhileStmt loop) {
+                out.writeByte(WHILE);
+                out.writeInt(c.line);
+                bool(loop.b);
+                statement(loop.c);
+            } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+                out.writeByte(PARALLEL);
+                out.writeInt(c.line);
+                out.writeInt(parallel.branches.size());
+                for (ProgramStatement branch : parallel.branches)
+                    statement(branch);
+            } else {
+                throw new IllegalArgumentException("cannot precompile " + c);
+            }
+        }
+
+        void arithmetic(ArithmeticExp a) throws IOException {
+            if (a instanceof ArithmeticExp.VariableExp var) {
+                out.writeByte(VAR);
+                out.writeInt(symbols.slot(var.name));
+            } else if (a instanceof ArithmeticExp.NumericExp num) {
+                out.writeByte(NUM);
+                out.writeInt(num.n);
+            } else if (a instanceof ArithmeticExp.BigNumericExp num) {
+                byte[] bytes = num.n.toByteArray();
+                out.writeByte(BIG);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                binary(ADD, add.a1, add.a2);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                binary(SUB, sub.a1, sub.a2);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                binary(MUL, prod.a1, prod.a2);
+            } else {
+                throw new IllegalArgumentException("cannot precompile " + a);
+            }
+        }
+
+        void bool(BooleanExp b) throws IOException {
+            if (b instanceof BooleanExp.TrueExp) {
+                out.writeByte(TRUE);
+            } else if (b instanceof BooleanExp.FalseExp) {
+                out.writeByte(FALSE);
+            } else if (b instanceof BooleanExp.EqualExp eq) {
+                binary(EQUAL, eq.a1, eq.a2);
+            } else if (b instanceof BooleanExp.LeqExp leq) {
+                binary(LEQ, leq.a1, leq.a2);
+            } else if (b instanceof BooleanExp.BiggerThanExp gt) {
+                binary(GT, gt.a1, gt.a2);
+            } else if (b instanceof BooleanExp.NotExp not) {
+                out.writeByte(NOT);
+                bool(not.b);
+            } else if (b instanceof BooleanExp.OrExp or) {
+                out.writeByte(OR);
+                bool(or.b1);
+                bool(or.b2);
+            } else {
+                throw new IllegalArgumentException("cannot precompile " + b);
+            }
+        }
+
+        private void binary(byte tag, ArithmeticExp a1, ArithmeticExp a2) throws IOException {
+            out.writeByte(tag);
+            arithmetic(a1);
+            arithmetic(a2);
+        }
+    }
+
+    /**
+     * Rebuilds the tree with its variables already resolved against the given symbols.
+     * Loops of a folded program get their closed form back, as folding would give them.
+     */
+    private static class Reader {
+        private final ByteBuffer in;
+        private final String[] names;
+        private final int[] slots;
+        private final boolean folded;
+        private int depth;
+
+        Reader(ByteBuffer in, SymbolTable symbols, boolean folded) {
+            this.in = in;
+            this.folded = folded;
+            int count = count(2);
+            names = new String[count];
+            slots = new int[count];
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.getShort() & 0xffff];
+                in.get(name);
+                names[i] = new String(name, StandardCharsets.ISO_8859_1);
+                slots[i] = symbols.slot(names[i]);
+            }
+        }
+
+        ProgramStatement program() {
+            ProgramStatement program = statement();
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("trailing bytes");
+            return program;
+        }
+
+        /** Reads a count of entries that each take at least the given bytes, which the rest of the image must hold. */
+        private int count(int minBytes) {
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / minBytes)
+                throw new IllegalArgumentException("bad count " + count);
+            return count;
+        }
+
+        private void enter() {
+            if (++depth > MAX_DEPTH)
+                throw new IllegalArgumentException("nested deeper than " + MAX_DEPTH);
+        }
+
+        ProgramStatement statement() {
+            enter();
+            ProgramStatement c = readStatement();
+            depth--;
+            return c;
+        }
+
+        private ProgramStatement readStatement() {
+            byte tag = in.get();
+            switch (tag) {
+                case SKIP:
+                    return new ProgramStatement.EmptyStmt().at(in.getInt());
+                case ASSIGN: {
+                    int line = in.getInt();
+                    int index = in.getInt();
+                    ProgramStatement.AssignmentStmt assign =
+                            new ProgramStatement.AssignmentStmt(names[index], arithmetic());
+                    assign.slot = slots[index];
+                    return assign.at(line);
+                }
+                case BLOCK: {
+                    // the shortest statement is a tag and a u4
+                    ProgramStatement[] statements = new ProgramStatement[count(5)];
+                    for (int i = 0; i < statements.length; i++)
+                        statements[i] = statement();
+                    ProgramStatement block = new ProgramStatement.BlockStmt(statements);
+                    return statements.length == 0 ? block : block.at(statements[0].line);
+                }
+                case IF: {
+                    int line = in.getInt();
+                    BooleanExp b = bool();
+                    ProgramStatement c1 = statement();
+                    return new ProgramStatement.IfThenElseStmt(b, c1, statement()).at(line);
+                }
+                case WHILE: {
+                    int line = in.getInt();
+                    BooleanExp b = bool();
+                    ProgramStatement c = statement();
+                    return (folded ? ClosedFormLoop.of(b, c) : new ProgramStatement.WhileStmt(b, c)).at(line);
+                }
+                case PARALLEL: {
+                    int line = in.getInt();
+                    List<ProgramStatement> branches = new ArrayList<>();
+                    for (int count = count(5); count > 0; count--)
+                        branches.add(statement());
+                    return new ProgramStatement.ParallelStmt(branches).at(line);
+                }
+                default:
+                    throw new IllegalArgumentException("unknown statement tag " + tag);
+            }
+        }
+
+        ArithmeticExp arithmetic() {
+            enter();
+            ArithmeticExp a = readArithmetic();
+            depth--;
+            return a;
+        }
+
+        private ArithmeticExp readArithmetic() {
+            byte tag = in.get();
+            switch (tag) {
+                case VAR: {
+                    int index = in.getInt();
+                    ArithmeticExp.VariableExp var = new ArithmeticExp.VariableExp(names[index]);
+                    var.slot = slots[index];
+                    return var;
+                }
+                case NUM:
+                    return new ArithmeticExp.NumericExp(in.getInt());
+                case BIG: {
+                    byte[] bytes = new byte[in.getShort() & 0xffff];
+                    in.get(bytes);
+                    return new ArithmeticExp.BigNumericExp(new BigInteger(bytes));
+                }
+                case ADD: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new ArithmeticExp.AdditionExp(a1, arithmetic());
+                }
+                case SUB: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new ArithmeticExp.SubtractionExp(a1, arithmetic());
+                }
+                case MUL: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new ArithmeticExp.ProductExp(a1, arithmetic());
+                }
+                default:
+                    throw new IllegalArgumentException("unknown expression tag " + tag);
+            }
+        }
+
+        BooleanExp bool() {
+            enter();
+            BooleanExp b = readBool();
+            depth--;
+            return b;
+        }
+
+        private BooleanExp readBool() {
+            byte tag = in.get();
+            switch (tag) {
+                case TRUE:
+                    return new BooleanExp.TrueExp();
+                case FALSE:
+                    return new BooleanExp.FalseExp();
+                case EQUAL: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new BooleanExp.EqualExp(a1, arithmetic());
+                }
+                case LEQ: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new BooleanExp.LeqExp(a1, arithmetic());
+                }
+                case GT: {
+                    ArithmeticExp a1 = arithmetic();
+                    return new BooleanExp.BiggerThanExp(a1, arithmetic());
+                }
+                case NOT:
+                    return new BooleanExp.NotExp(bool());
+                case OR: {
+                    BooleanExp b1 = bool();
+                    return new BooleanExp.OrExp(b1, bool());
+                }
+                default:
+                    throw new IllegalArgumentException("unknown condition tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.davidfornesm.simpl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Evaluation server on a loopback TCP port, speaking HTTP.
+ * <pre>
+ *   POST /run?n=5&amp;x=3   body: SIMP source, or an .impc image sent as application/x-simpl-image
+ *   GET  /stats
+ * </pre>
+ * Query parameters bind initial variables and an {@code X-Simpl-Flags}
+ * header adds run flags to the server's own; its fuel and timeout may
+ * only tighten the server's, which has a timeout of
+ * {@link #DEFAULT_TIMEOUT_MILLIS} unless it is started with another. The answer holds
+ * {@code result} and then every variable of the final state, one
+ * {@code name := value} line each; programs that fail get 422 with the
+ * error, and the partial state when a limit stopped them.
+ * <p>
+ * At most {@code workers} programs run at once, each on its own pooled
+ * thread and State, and up to {@code queue} more wait for a thread.
+ * Requests beyond that are turned away at once with 503, so a flood
+ * cannot pile up unbounded work, and bodies over {@code maxBody} bytes,
+ * {@link #DEFAULT_MAX_BODY} unless started with another, get 413 without
+ * being read further. Stopping the server cancels the runs still in flight.
+ * <p>
+ * Requests with the same flags, bound names and body share one prepared
+ * program, and with it the class the JIT compiled it to, unless it is
+ * specialized.
+ */
+class Server {
+    static final String IMAGE_TYPE = "application/x-simpl-image";
+    static final String FLAGS_HEADER = "X-Simpl-Flags";
+    private static final String SOURCE = "<request>";
+    static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+    static final int DEFAULT_MAX_BODY = 1 << 20;
+    private static final int CACHE_SIZE = 256;
+
+    private final HttpServer http;
+    private final ExecutorService workers;
+    private final Semaphore admission;
+    private final int capacity;
+    private final int maxBody;
+    private final List<String> flags;
+    /** The server's own limits, which requests cannot loosen. */
+    private final long fuel;
+    private final long timeoutMillis;
+    private final Set<Limits> running = ConcurrentHashMap.newKeySet();
+    /** Prepared programs by {@link #key}, least recently used first; guarded by itself. */
+    private final Map<String, Prepared> programs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Prepared> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Stats stats = new Stats();
+
+    private Server(HttpServer http, int workers, int queue, int maxBody, List<String> flags, Options options) {
+        this.http = http;
+        this.maxBody = maxBody;
+        this.flags = flags;
+        this.fuel = options.fuel;
+        this.timeoutMillis = options.timeoutMillis > 0 ? options.timeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+        this.capacity = workers + queue;
+        this.admission = new Semaphore(capacity);
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "simpl-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.createContext("/run", this::admit);
+        http.createContext("/stats", exchange -> respond(exchange, 200, stats.toString()));
+    }
+
+    /** Listens on the loopback port, 0 for any free one; flags are applied to every run. */
+    static Server start(int port, int workers, int queue, List<String> flags) throws IOException {
+        return start(port, workers, queue, DEFAULT_MAX_BODY, flags);
+    }
+
+    static Server start(int port, int workers, int queue, int maxBody, List<String> flags) throws IOException {
+        if (maxBody < 0 || maxBody == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("body size out of range: " + maxBody);
+        Options options = new Options();
+        if (!valid(flags, options))
+            throw new IllegalArgumentException("flags not allowed on a server: " + flags);
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        Server server = new Server(http, workers, queue, maxBody, flags, options);
+        http.start();
+        return server;
+    }
+
+    /**
+     * Parses {@code [port] [workers=N] [queue=N] [maxbody=N] [flags...]} and serves until the JVM is stopped,
+     * printing the statistics on the way out.
+     */
+    static void serve(String[] args) throws IOException {
+        int port = 7070;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queue = 64 * workers;
+        int maxBody = DEFAULT_MAX_BODY;
+        List<String> flags = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i == 0 && arg.chars().allMatch(Character::isDigit)) port = Integer.parseInt(arg);
+            else if (arg.startsWith("workers=")) workers = Integer.parseInt(arg.substring("workers=".length()));
+            else if (arg.startsWith("queue=")) queue = Integer.parseInt(arg.substring("queue=".length()));
+            else if (arg.startsWith("maxbody=")) maxBody = Integer.parseInt(arg.substring("maxbody=".length()));
+            else flags.add(arg);
+        }
+        Server server = start(port, workers, queue, maxBody, flags);
+        System.out.println("listening on " + server.http.getAddress() + " with " + workers + " workers");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.println(server.stats);
+        }));
+    }
+
+    int port() {
+        return http.getAddress().getPort();
+    }
+
+    Stats stats() {
+        return stats;
+    }
+
+    /** Requests running or waiting for a worker. */
+    int pending() {
+        return capacity - admission.availablePermits();
+    }
+
+    /** Stops listening and cancels the runs in flight. */
+    void stop() {
+        http.stop(0);
+        workers.shutdownNow();
+        for (Limits limits : running)
+            limits.cancel();
+    }
+
+    /** Runs on the listener thread, so it only decides and hands over. */
+    private void admit(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Error: use POST.\n");
+            return;
+        }
+        if (!admission.tryAcquire()) {
+            stats.rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Error: server busy.\n");
+            return;
+        }
+        long start = System.nanoTime();
+        workers.execute(() -> {
+            try {
+                run(exchange, start);
+            } finally {
+                admission.release();
+            }
+        });
+    }
+
+    private void run(HttpExchange exchange, long start) {
+        int status;
+        try {
+            status = evaluate(exchange);
+        } catch (IOException e) {
+            status = -1;
+        } finally {
+            exchange.close();
+        }
+        stats.record(System.nanoTime() - start, status == 200);
+    }
+
+    /** Returns the status sent. */
+    private int evaluate(HttpExchange exchange) throws IOException {
+        Options options = new Options();
+        List<String> requested = new ArrayList<>(flags);
+        String header = exchange.getRequestHeaders().getFirst(FLAGS_HEADER);
+        if (header != null && !header.isBlank())
+            requested.addAll(List.of(header.trim().split("\\s+")));
+        if (!valid(requested, options))
+            return respond(exchange, 400, "Error: bad flags: " + header + "\n");
+        options.fuel = Math.min(options.fuel, fuel);
+        options.timeoutMillis = options.timeoutMillis > 0 ? Math.min(options.timeoutMillis, timeoutMillis)
+                : timeoutMillis;
+
+        Map<String, Integer> bindings = new LinkedHashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            for (String binding : query.split("&")) {
+                int equals = binding.indexOf('=');
+                try {
+                    String name = URLDecoder.decode(binding.substring(0, equals), StandardCharsets.UTF_8);
+                    bindings.put(name, Integer.parseInt(
+                            URLDecoder.decode(binding.substring(equals + 1), StandardCharsets.UTF_8)));
+                } catch (RuntimeException e) {
+                    return respond(exchange, 400, "Error: bad binding: " + binding + "\n");
+                }
+            }
+        }
+
+        byte[] body = exchange.getRequestBody().readNBytes(maxBody + 1);
+        if (body.length > maxBody)
+            return respond(exchange, 413, "Error: body larger than " + maxBody + " bytes.\n");
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        // a specialized program is not shared, as unrolling it counts against the fuel of each run
+        String key = options.rewrites() ? null : key(requested, bindings.keySet(), type, body);
+        Prepared prepared = key == null ? null : prepared(key);
+        State state = new State(prepared != null ? prepared.symbols : new SymbolTable());
+        bindings.forEach(state::setNewBinding);
+        // specializing runs loops, so the limits already apply while the program is prepared
+        Limits limits = options.limits();
+        running.add(limits);
+        state.limit(limits);
+        try {
+            ProgramStatement program;
+            if (prepared != null) {
+                program = prepared.program;
+            } else if (IMAGE_TYPE.equals(type)) {
+                program = App.prepare(SOURCE, ProgramImage.read(ByteBuffer.wrap(body), SOURCE, state.symbols()),
+                        state, options, System.out);
+            } else {
+                Events.Lex lex = new Events.Lex();
+                lex.begin();
+                Lexer lexer = new Lexer(new String(body, StandardCharsets.UTF_8));
+                PackedTokens tokens = lexer.scanPacked();
+                lex.finish(SOURCE, tokens.size());
+                if (!lexer.errors().isEmpty())
+                    return respond(exchange, 422, "Error: " + lexer.errors().get(0) + "\n");
+                program = App.prepare(SOURCE, tokens, state, options, System.out);
+            }
+            if (prepared == null && key != null) {
+                synchronized (programs) {
+                    programs.put(key, new Prepared(program, state.symbols()));
+                }
+            }
+            return respond(exchange, 200, describe(App.eval(SOURCE, program, state, options)));
+        } catch (LimitExceededException e) {
+            return respond(exchange, 422, "Error: " + e.getMessage() + "\n" + describe(e.state()));
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            return respond(exchange, 422, "Error: " + message + "\n");
+        } finally {
+            running.remove(limits);
+        }
+    }
+
+    private Prepared prepared(String key) {
+        synchronized (programs) {
+            return programs.get(key);
+        }
+    }
+
+    /** A digest of everything a prepared program depends on: the flags, the bound names in order and the body. */
+    private static String key(List<String> flags, Set<String> names, String type, byte[] body) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String field : flags)
+                update(digest, field);
+            digest.update((byte) 0);
+            for (String field : names)
+                update(digest, field);
+            digest.update((byte) 0);
+            update(digest, String.valueOf(type));
+            digest.update(body);
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Adds the string with its length first, so that no two lists of fields digest alike. */
+    private static void update(MessageDigest digest, String field) {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    /** Applies the flags, returning false for unknown ones and those that make no sense on a server. */
+    private static boolean valid(List<String> flags, Options options) {
+        for (String flag : flags) {
+            if (!options.apply(flag)) return false;
+        }
+        return !(options.debug || options.compile || options.precompile || options.profile || options.sweep != null
+                || options.flat || options.footprint || !options.consistent());
+    }
+
+    private static String describe(State state) {
+        StringBuilder out = new StringBuilder("result := ").append(state.value("result")).append('\n');
+        for (String name : state.keys()) {
+            if (!name.equals("result"))
+                out.append(name).append(" := ").append(state.value(name)).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static int respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        return status;
+    }
+
+    /** A program prepared for a request, with the symbols it was resolved against, shared by equal requests. */
+    private static final class Prepared {
+        final ProgramStatement program;
+        final SymbolTable symbols;
+
+        Prepared(ProgramStatement program, SymbolTable symbols) {
+            this.program = program;
+            this.symbols = symbols;
+        }
+    }
+
+    /**
+     * Request counters and a latency histogram with power of two microsecond
+     * buckets, so percentiles are reported as upper bounds.
+     */
+    static class Stats {
+        private final long started = System.nanoTime();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        void record(long nanos, boolean ok) {
+            requests.incrementAndGet();
+            if (!ok) errors.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(TimeUnit.NANOSECONDS.toMicros(nanos)));
+        }
+
+        /** Upper bound in microseconds of the latency below which the given share of requests fall. */
+        long percentile(double share) {
+            long count = requests.get();
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= share * count)
+                    return 1L << i;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long count = requests.get();
+            double seconds = (System.nanoTime() - started) / 1e9;
+            return String.format("requests %d, errors %d, rejected %d%n" +
+                            "throughput %.1f requests/s%n" +
+                            "latency mean %.3f ms, p50 < %.3f ms, p99 < %.3f ms, max %.3f ms%n",
+                    count, errors.get(), rejected.get(), count / seconds,
+                    count == 0 ? 0.0 : totalNanos.get() / 1e6 / count,
+                    percentile(0.5) / 1e3, percentile(0.99) / 1e3, maxNanos.get() / 1e6);
+        }
+    }
+}
@@ -1,24 +1,205 @@
 package com.davidfornesm.simpl;
 
-import java.util.HashMap;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
+/**
+ * Execution environment backed by a primitive int array.
+ * Variables are addressed by the slot their name was given in the
+ * {@link SymbolTable}; a bit set records which slots hold a value.
+ * Exact runs may also leave a slot holding a Long or BigInteger that does
+ * not fit an int; only they look at those.
+ */
 class State {
-    private final HashMap<String, Integer> state = new HashMap<>();
+    private final SymbolTable symbols;
+    private int[] values;
+    private long[] defined;
+    /** Values too wide for an int by slot, as Long or BigInteger; null until an exact run stores one. */
+    private Number[] wide;
+    /** Loop iterations run against this state, by every engine. */
+    long iterations;
+    /**
+     * Engines call {@link #check()} before starting a loop iteration once
+     * the iteration count reaches this; it is never reached without limits.
+     */
+    long checkpoint = Long.MAX_VALUE;
+    private Limits limits;
+    /** Iteration count this state was forked at. */
+    private long forkedAt;
+
+    State() {
+        this(new SymbolTable());
+    }
+
+    State(SymbolTable symbols) {
+        this.symbols = symbols;
+        this.values = new int[Math.max(symbols.size(), 8)];
+        this.defined = new long[(values.length + 63) >>> 6];
+    }
+
+    SymbolTable symbols() {
+        return symbols;
+    }
+
+    /** A copy with the same symbols, iteration count and limits, for a branch to run on by itself. */
+    State fork() {
+        State view = new State(symbols);
+        view.values = values.clone();
+        view.defined = defined.clone();
+        view.wide = wide == null ? null : wide.clone();
+        view.iterations = iterations;
+        view.forkedAt = iterations;
+        view.limits = limits;
+        view.checkpoint = checkpoint;
+        return view;
+    }
+
+    /** Takes the given slots that are defined in a forked view, and the iterations it ran. */
+    void join(State view, int[] slots) {
+        for (int slot : slots) {
+            if (view.isDefined(slot)) {
+                set(slot, view.values[slot]);
+                if (view.isWide(slot))
+                    setWide(slot, view.wide[slot]);
+                else if (isWide(slot))
+                    wide[slot] = null;
+            }
+        }
+        iterations += view.iterations - view.forkedAt;
+    }
+
+    /** Bounds the runs on this state, checked from the next loop iteration on; null lifts them. */
+    void limit(Limits limits) {
+        this.limits = limits;
+        checkpoint = limits == null ? Long.MAX_VALUE : iterations;
+    }
+
+    /** Loop iterations this state may still run in total. */
+    long fuel() {
+        return limits == null ? Long.MAX_VALUE : limits.fuel();
+    }
+
+    /** Throws a {@link LimitExceededException} if a limit was hit, otherwise moves the checkpoint on. */
+    void check() {
+        LimitExceededException.Reason reason = limitReached();
+        if (reason != null)
+            throw new LimitExceededException(reason, this);
+    }
+
+    /** Returns the limit that was hit, or null after moving the checkpoint on. */
+    LimitExceededException.Reason limitReached() {
+        if (limits == null) {
+            checkpoint = Long.MAX_VALUE;
+            return null;
+        }
+        LimitExceededException.Reason reason = limits.reached(iterations);
+        if (reason == null)
+            checkpoint = limits.next(iterations);
+        return reason;
+    }
 
     Integer lookup(String name) {
-        return state.get(name);
+        int slot = symbols.find(name);
+        if (slot < 0 || !isDefined(slot))
+            return null;
+        return values[slot];
+    }
+
+    /** The value of the variable as an Integer, Long or BigInteger, or null if it is undefined. */
+    Number value(String name) {
+        int slot = symbols.find(name);
+        if (slot < 0 || !isDefined(slot))
+            return null;
+        return isWide(slot) ? wide[slot] : Integer.valueOf(values[slot]);
     }
 
     Boolean contains(String name) {
-        return state.containsKey(name);
+        int slot = symbols.find(name);
+        return slot >= 0 && isDefined(slot);
     }
 
     Set<String> keys() {
-        return state.keySet();
+        Set<String> keys = new LinkedHashSet<>();
+        for (int slot = 0; slot < symbols.size(); slot++) {
+            if (isDefined(slot))
+                keys.add(symbols.name(slot));
+        }
+        return keys;
     }
 
     void setNewBinding(String name, int n) {
-        state.put(name, n);
+        set(symbols.slot(name), n);
+    }
+
+    int get(String name) {
+        int slot = symbols.find(name);
+        if (slot < 0)
+            throw new RuntimeException("undefined variable: " + name + ".");
+        return get(slot);
+    }
+
+    int get(int slot) {
+        if (!isDefined(slot))
+            throw new RuntimeException("undefined variable: " + symbols.name(slot) + ".");
+        return values[slot];
+    }
+
+    void set(int slot, int n) {
+        if (slot >= values.length)
+            grow(slot);
+        values[slot] = n;
+        defined[slot >>> 6] |= 1L << slot;
+    }
+
+    /** Whether the slot holds a value too wide for an int, which {@link #get(int)} only gives the low bits of. */
+    boolean isWide(int slot) {
+        return wide != null && slot < wide.length && wide[slot] != null;
+    }
+
+    /** The Long or BigInteger of a wide slot. */
+    Number wide(int slot) {
+        return wide[slot];
+    }
+
+    /** Stores an int from an exact run, replacing any wide value. */
+    void setExact(int slot, int n) {
+        set(slot, n);
+        if (isWide(slot))
+            wide[slot] = null;
+    }
+
+    /** Stores a long from an exact run, kept as an int when it fits one. */
+    void setExact(int slot, long n) {
+        if ((int) n == n)
+            setExact(slot, (int) n);
+        else
+            setWide(slot, n);
+    }
+
+    /** Stores a BigInteger from an exact run in the narrowest of int, long and BigInteger. */
+    void setExact(int slot, BigInteger n) {
+        if (n.bitLength() < 64)
+            setExact(slot, n.longValue());
+        else
+            setWide(slot, n);
+    }
+
+    private void setWide(int slot, Number n) {
+        set(slot, n.intValue());
+        if (wide == null || slot >= wide.length)
+            wide = Arrays.copyOf(wide == null ? new Number[0] : wide, values.length);
+        wide[slot] = n;
+    }
+
+    boolean isDefined(int slot) {
+        return slot < values.length && (defined[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void grow(int slot) {
+        int capacity = Math.max(values.length * 2, slot + 1);
+        values = Arrays.copyOf(values, capacity);
+        defined = Arrays.copyOf(defined, (capacity + 63) >>> 6);
     }
 }
@@ -1,10 +1,69 @@
 package com.davidfornesm.simpl;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 abstract class ProgramStatement {
 
+    /** Source line the statement starts on, 0 when unknown. */
+    int line = 0;
+    /**
+     * What {@link Engine#JIT} compiled the statement to when it ran it as a whole program, reused
+     * by later runs; {@link Jit#UNSUPPORTED} if it could not, null until then.
+     */
+    volatile Jit jit;
+
+    ProgramStatement at(int line) {
+        this.line = line;
+        return this;
+    }
+
     public abstract State eval(State s);
 
-    public abstract String compile(State s);
+    /** Writes the statement as C source. */
+    public abstract void compile(Appendable out) throws IOException;
+
+    /** Writes the AST dump that {@link #toString()} returns. */
+    public abstract void dump(Appendable out) throws IOException;
+
+    public abstract void resolve(SymbolTable symbols);
+
+    /** Adds the variables the statement reads and writes to the sets. */
+    public abstract void variables(Set<String> reads, Set<String> writes);
+
+    /** Returns an equivalent statement with constant conditions and expressions folded. */
+    public abstract ProgramStatement fold();
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /** Whether compile writes nothing: a skip, or an if or while whose body writes nothing. */
+    static boolean compilesToNothing(ProgramStatement c) {
+        while (true) {
+            if (c instanceof EmptyStmt)
+                return true;
+            if (c instanceof IfThenElseStmt ifThenElse)
+                c = ifThenElse.c1;
+            else if (c instanceof WhileStmt loop)
+                c = loop.c;
+            else
+                return false;
+        }
+    }
 
     static class EmptyStmt extends ProgramStatement {
 
@@ -13,73 +72,164 @@ abstract class ProgramStatement {
         }
 
         @Override
-        public String compile(State s) {
-            return "";
+        public void compile(Appendable out) {
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            return this;
         }
 
         @Override
-        public String toString() {
-            return "(skip)";
+        public void dump(Appendable out) throws IOException {
+            out.append("(skip)");
         }
     }
 
 
     static class AssignmentStmt extends ProgramStatement {
 
-        private final String x;
-        private final ArithmeticExp a;
+        final String x;
+        final ArithmeticExp a;
+        int slot = -1;
+        /** Id the lexer interned the name under, tried first when resolving. */
+        int symbol = -1;
 
         public AssignmentStmt(String name, ArithmeticExp e) {
             x = name;
             a = e;
         }
 
-        public String compile(State s) {
-            s.setNewBinding(x, 1);
-            return x + " = " + a.compile(s) + ";\n";
+        public void compile(Appendable out) throws IOException {
+            out.append(x).append(" = ");
+            a.compile(out);
+            out.append(";\n");
         }
 
         @Override
-        public String toString() {
-            return "(assign: " + x + ", " + a.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(assign: ").append(x).append(", ");
+            a.dump(out);
+            out.append(')');
         }
 
         public State eval(State s) {
-            s.setNewBinding(x, a.eval(s));
+            if (slot < 0)
+                s.setNewBinding(x, a.eval(s));
+            else
+                s.set(slot, a.eval(s));
             return s;
         }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            writes.add(x);
+            a.variables(reads);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            slot = symbols.slot(x, symbol);
+            a.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            ArithmeticExp e = a.fold();
+            if (e == a) return this;
+            AssignmentStmt folded = new AssignmentStmt(x, e);
+            folded.symbol = symbol;
+            return folded.at(line);
+        }
     }
 
-    static class SequenceStmt extends ProgramStatement {
+    /**
+     * A statement list {@code c1; c2; ...} held flat, so running, dumping and
+     * compiling a long program walks an array rather than recursing once
+     * per statement.
+     */
+    static class BlockStmt extends ProgramStatement {
 
-        private final ProgramStatement c1;
-        private final ProgramStatement c2;
+        final ProgramStatement[] statements;
 
-        public SequenceStmt(ProgramStatement s1, ProgramStatement s2) {
-            c1 = s1;
-            c2 = s2;
+        public BlockStmt(ProgramStatement... statements) {
+            this.statements = statements;
+        }
+
+        /** A block of the statements, with nested blocks spliced in. */
+        static BlockStmt of(List<ProgramStatement> statements) {
+            List<ProgramStatement> flat = new ArrayList<>(statements.size());
+            for (ProgramStatement statement : statements) {
+                if (statement instanceof BlockStmt block)
+                    flat.addAll(List.of(block.statements));
+                else
+                    flat.add(statement);
+            }
+            return new BlockStmt(flat.toArray(new ProgramStatement[0]));
         }
 
         @Override
-        public String toString() {
-            return "(seq: " + c1.toString() + ", " + c2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(block: ");
+            for (int i = 0; i < statements.length; i++) {
+                if (i > 0) out.append(", ");
+                statements[i].dump(out);
+            }
+            out.append(')');
         }
 
         public State eval(State s) {
-            return c2.eval(c1.eval(s));
+            for (ProgramStatement statement : statements)
+                s = statement.eval(s);
+            return s;
         }
 
         @Override
-        public String compile(State s) {
-            return c1.compile(s) + " " + c2.compile(s);
+        public void compile(Appendable out) throws IOException {
+            for (int i = 0; i < statements.length; i++) {
+                if (i > 0) out.append(' ');
+                statements[i].compile(out);
+            }
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            for (ProgramStatement statement : statements)
+                statement.variables(reads, writes);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            for (ProgramStatement statement : statements)
+                statement.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            List<ProgramStatement> folded = new ArrayList<>(statements.length);
+            for (ProgramStatement statement : statements) {
+                ProgramStatement f = statement.fold();
+                if (!(f instanceof EmptyStmt)) folded.add(f);
+            }
+            if (folded.isEmpty()) return new EmptyStmt().at(line);
+            if (folded.size() == 1) return folded.get(0);
+            return of(folded).at(line);
         }
     }
 
     static class IfThenElseStmt extends ProgramStatement {
 
-        private final BooleanExp b;
-        private final ProgramStatement c1;
-        private final ProgramStatement c2;
+        final BooleanExp b;
+        final ProgramStatement c1;
+        final ProgramStatement c2;
 
         public IfThenElseStmt(BooleanExp e, ProgramStatement s1, ProgramStatement s2) {
             b = e;
@@ -88,8 +238,14 @@ abstract class ProgramStatement {
         }
 
         @Override
-        public String toString() {
-            return "(if: " + b.toString() + ", " + c1.toString() + ", " + c2.toString() + ")";
+        public void dump(Appendable out) throws IOException {
+            out.append("(if: ");
+            b.dump(out);
+            out.append(", ");
+            c1.dump(out);
+            out.append(", ");
+            c2.dump(out);
+            out.append(')');
         }
 
         public State eval(State s) {
@@ -100,19 +256,50 @@ abstract class ProgramStatement {
         }
 
         @Override
-        public String compile(State s) {
-            String body = c1.compile(s);
-            String elseBody = c2.compile(s);
-            if (body == null || body.isEmpty())
-                return "";
-            return "if (" + b.compile(s) + ") {\n\t" + body + "\n\r}\n" + (elseBody == null || elseBody.isEmpty() ? "" : " else {\n\t" + elseBody + "\n\r}\n");
+        public void compile(Appendable out) throws IOException {
+            if (compilesToNothing(c1))
+                return;
+            out.append("if (");
+            b.compile(out);
+            out.append(") {\n\t");
+            c1.compile(out);
+            out.append("\n\r}\n");
+            if (!compilesToNothing(c2)) {
+                out.append(" else {\n\t");
+                c2.compile(out);
+                out.append("\n\r}\n");
+            }
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            b.variables(reads);
+            c1.variables(reads, writes);
+            c2.variables(reads, writes);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            b.resolve(symbols);
+            c1.resolve(symbols);
+            c2.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            BooleanExp e = b.fold();
+            if (e instanceof BooleanExp.TrueExp)
+                return c1.fold();
+            if (e instanceof BooleanExp.FalseExp)
+                return c2.fold();
+            return new IfThenElseStmt(e, c1.fold(), c2.fold()).at(line);
         }
     }
 
     static class WhileStmt extends ProgramStatement {
 
-        private final BooleanExp b;
-        private final ProgramStatement c;
+        final BooleanExp b;
+        final ProgramStatement c;
 
         public WhileStmt(BooleanExp e, ProgramStatement s) {
             b = e;
@@ -120,23 +307,233 @@ abstract class ProgramStatement {
         }
 
         @Override
-        public String toString() {
-            return "(while: " + b.toString() + ", " + c.toString() + ")" ;
+        public void dump(Appendable out) throws IOException {
+            out.append("(while: ");
+            b.dump(out);
+            out.append(", ");
+            c.dump(out);
+            out.append(')');
         }
 
         public State eval(State s) {
-            if (b.eval(s))
-                return this.eval(c.eval(s));
-            else
+            while (b.eval(s)) {
+                if (s.iterations >= s.checkpoint) s.check();
+                s.iterations++;
+                s = c.eval(s);
+            }
+            return s;
+        }
+
+        @Override
+        public void compile(Appendable out) throws IOException {
+            if (compilesToNothing(c))
+                return;
+            out.append("while (");
+            b.compile(out);
+            out.append(") {\n\t");
+            c.compile(out);
+            out.append("\n\r}\n");
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            b.variables(reads);
+            c.variables(reads, writes);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            b.resolve(symbols);
+            c.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            BooleanExp e = b.fold();
+            if (e instanceof BooleanExp.FalseExp)
+                return new EmptyStmt().at(line);
+            return ClosedFormLoop.of(e, c.fold()).at(line);
+        }
+    }
+
+    /**
+     * Parallel composition {@code (c1 || c2 || ...)}. The parser rejects
+     * branches where one writes a variable another reads or writes, so any
+     * interleaving gives the result of running them in order.
+     * <p>
+     * Branches that loop run concurrently on the current fork-join pool,
+     * each on its own copy of the state; the variables each one wrote are
+     * merged back in branch order. If a branch fails, the branches before
+     * it are merged, then its partial writes, and the error is rethrown,
+     * just as running them in order would leave it. Unresolved programs,
+     * runs with a fuel limit (so fuel is spent exactly as in order), and
+     * branches without loops, which are not worth a fork, run in order;
+     * so do single threaded pools and the other engines.
+     */
+    static class ParallelStmt extends ProgramStatement {
+
+        final List<ProgramStatement> branches;
+        /** Whether at least two branches loop; any less is not worth a fork. */
+        private final boolean forkable;
+        /** Slots each branch writes, computed on the first parallel run; null until then. */
+        private volatile int[][] writes;
+
+        public ParallelStmt(List<ProgramStatement> branches) {
+            this.branches = List.copyOf(branches);
+            this.forkable = this.branches.stream().filter(ParallelStmt::loops).count() >= 2;
+        }
+
+        /** A variable written by one branch and read or written by another, or null if there is none. */
+        static String conflict(List<ProgramStatement> branches) {
+            List<Set<String>> reads = new ArrayList<>();
+            List<Set<String>> writes = new ArrayList<>();
+            for (ProgramStatement branch : branches) {
+                Set<String> read = new LinkedHashSet<>();
+                Set<String> written = new LinkedHashSet<>();
+                branch.variables(read, written);
+                reads.add(read);
+                writes.add(written);
+            }
+            for (int i = 0; i < branches.size(); i++) {
+                for (int j = 0; j < branches.size(); j++) {
+                    if (i == j) continue;
+                    for (String name : writes.get(i)) {
+                        if (reads.get(j).contains(name) || writes.get(j).contains(name))
+                            return name;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void dump(Appendable out) throws IOException {
+            out.append("(par: ");
+            for (int i = 0; i < branches.size(); i++) {
+                if (i > 0) out.append(", ");
+                branches.get(i).dump(out);
+            }
+            out.append(')');
+        }
+
+        public State eval(State s) {
+            int[][] written = null;
+            if (forkable && s.fuel() == Long.MAX_VALUE && parallelism() > 1) {
+                written = writes;
+                if (written == null)
+                    written = writes = writtenSlots();
+            }
+            if (written == null) {
+                for (ProgramStatement branch : branches)
+                    s = branch.eval(s);
                 return s;
+            }
+
+            State[] views = new State[branches.size()];
+            Throwable[] failures = new Throwable[branches.size()];
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(branches.size());
+            for (int i = 0; i < branches.size(); i++) {
+                int branch = i;
+                views[i] = s.fork();
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    try {
+                        branches.get(branch).eval(views[branch]);
+                    } catch (RuntimeException | StackOverflowError e) {
+                        failures[branch] = e;
+                    }
+                }));
+            }
+            // forks into the pool running this thread, or the common pool
+            ForkJoinTask.invokeAll(tasks);
+
+            for (int i = 0; i < views.length; i++) {
+                s.join(views[i], written[i]);
+                if (failures[i] instanceof LimitExceededException stopped)
+                    throw new LimitExceededException(stopped.reason(), s);
+                if (failures[i] instanceof RuntimeException e)
+                    throw e;
+                if (failures[i] instanceof StackOverflowError e)
+                    throw e;
+            }
+            return s;
+        }
+
+        /** Parallelism of the pool running this thread, or of the common pool. */
+        private static int parallelism() {
+            ForkJoinPool pool = ForkJoinTask.getPool();
+            return pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+        }
+
+        /** The slots written by every branch, or null if any assignment is unresolved. */
+        private int[][] writtenSlots() {
+            int[][] slots = new int[branches.size()][];
+            for (int i = 0; i < slots.length; i++) {
+                List<Integer> branch = new ArrayList<>();
+                if (!slots(branches.get(i), branch)) return null;
+                slots[i] = branch.stream().mapToInt(Integer::intValue).toArray();
+            }
+            return slots;
         }
 
         @Override
-        public String compile(State s) {
-            String body = c.compile(s);
-            if (body == null || body.isEmpty())
-                return "";
-            return "while (" + b.compile(s) + ") {\n\t" + body + "\n\r}\n";
+        public void compile(Appendable out) throws IOException {
+            for (ProgramStatement branch : branches) {
+                branch.compile(out);
+                out.append(' ');
+            }
+        }
+
+        @Override
+        public void variables(Set<String> reads, Set<String> writes) {
+            for (ProgramStatement branch : branches)
+                branch.variables(reads, writes);
+        }
+
+        @Override
+        public void resolve(SymbolTable symbols) {
+            for (ProgramStatement branch : branches)
+                branch.resolve(symbols);
+        }
+
+        @Override
+        public ProgramStatement fold() {
+            List<ProgramStatement> folded = new ArrayList<>();
+            for (ProgramStatement branch : branches) {
+                ProgramStatement statement = branch.fold();
+                if (!(statement instanceof EmptyStmt)) folded.add(statement);
+            }
+            if (folded.isEmpty()) return new EmptyStmt().at(line);
+            if (folded.size() == 1) return folded.get(0);
+            return new ParallelStmt(folded).at(line);
+        }
+
+        private static boolean loops(ProgramStatement c) {
+            if (c instanceof BlockStmt block) return List.of(block.statements).stream().anyMatch(ParallelStmt::loops);
+            if (c instanceof WhileStmt) return true;
+            if (c instanceof IfThenElseStmt ifThenElse) return loops(ifThenElse.c1) || loops(ifThenElse.c2);
+            if (c instanceof ParallelStmt parallel) return parallel.branches.stream().anyMatch(ParallelStmt::loops);
+            return false;
+        }
+
+        private static boolean slots(ProgramStatement c, List<Integer> slots) {
+            if (c instanceof BlockStmt block) {
+                for (ProgramStatement statement : block.statements) {
+                    if (!slots(statement, slots)) return false;
+                }
+            }
+            if (c instanceof AssignmentStmt assign) {
+                if (assign.slot < 0) return false;
+                if (!slots.contains(assign.slot)) slots.add(assign.slot);
+                return true;
+            }
+            if (c instanceof IfThenElseStmt ifThenElse) return slots(ifThenElse.c1, slots) && slots(ifThenElse.c2, slots);
+            if (c instanceof WhileStmt loop) return slots(loop.c, slots);
+            if (c instanceof ParallelStmt parallel) {
+                for (ProgramStatement branch : parallel.branches) {
+                    if (!slots(branch, slots)) return false;
+                }
+            }
+            return true;
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.davidfornesm.simpl;
+
+import java.util.Arrays;
+
+/**
+ * Maps every identifier of a program (or of a whole REPL session) to a
+ * dense slot index, so that evaluation can address variables by position
+ * instead of hashing their names.
+ * <p>
+ * Names are kept in an open addressing table keyed by {@link String#hashCode},
+ * which the lexer can probe straight from a range of the source; a name is
+ * only turned into a String the first time it is seen, and every later
+ * occurrence gets that same instance back.
+ */
+class SymbolTable {
+    private String[] names = new String[16];
+    private int size;
+    /** Slot + 1 of the name hashed there, 0 for free; always at most half full. */
+    private int[] table = new int[32];
+
+    int slot(String name) {
+        int slot = find(name);
+        return slot >= 0 ? slot : add(name, name.hashCode());
+    }
+
+    /** Like {@link #slot(String)}, but takes the hint as is when it is already this very name's slot here. */
+    int slot(String name, int hint) {
+        if (hint >= 0 && hint < size && names[hint] == name)
+            return hint;
+        return slot(name);
+    }
+
+    int find(String name) {
+        int mask = table.length - 1;
+        for (int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0)
+                return -1;
+            if (names[entry - 1].equals(name))
+                return entry - 1;
+        }
+    }
+
+    /** The slot of the name spelled by source[start, end), added if new; allocates nothing for known names. */
+    int intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + source.charAt(i);
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0)
+                return add(source.subSequence(start, end).toString(), hash);
+            if (spells(names[entry - 1], source, start, end))
+                return entry - 1;
+        }
+    }
+
+    String name(int slot) {
+        if (slot >= size)
+            throw new IndexOutOfBoundsException("no slot " + slot);
+        return names[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int add(String name, int hash) {
+        if (size == names.length)
+            names = Arrays.copyOf(names, size * 2);
+        names[size] = name;
+        if (2 * (size + 1) > table.length)
+            rehash(table.length * 2);
+        else
+            insert(hash, size);
+        return size++;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int slot = 0; slot <= size; slot++)
+            insert(names[slot].hashCode(), slot);
+    }
+
+    private void insert(int hash, int slot) {
+        int mask = table.length - 1;
+        int i = spread(hash) & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+
+    private static boolean spells(String name, CharSequence source, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
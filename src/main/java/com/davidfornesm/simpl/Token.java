@@ -4,7 +4,7 @@ import java.util.Objects;
 
 public class Token {
     public enum TokenType {
-        NUMBER, IDENTIFIER, PLUS, MINUS, STAR,
+        NUMBER, BIG_NUMBER, IDENTIFIER, PLUS, MINUS, STAR,
         TRUE, FALSE, EQUAL, LESS_EQUAL, MORE, NOT, OR,
         SKIP, WALRUS, SEMICOLON, IF, THEN, ELSE, WHILE, DO,
         END, LEFT_PAREN, RIGHT_PAREN,
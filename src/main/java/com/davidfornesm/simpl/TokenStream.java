@@ -0,0 +1,59 @@
+package com.davidfornesm.simpl;
+
+import java.util.List;
+
+/**
+ * Read access to a lexed token sequence, as the parser needs it.
+ * Backed either by a list of {@link Token} objects or by {@link PackedTokens}.
+ */
+interface TokenStream {
+
+    Token.TokenType type(int i);
+
+    String lexeme(int i);
+
+    int intLiteral(int i);
+
+    /** Id the lexer interned identifier i under, or -1 if it is not known. */
+    default int symbol(int i) {
+        return -1;
+    }
+
+    int line(int i);
+
+    int size();
+
+    /** Materializes token i, with the same literal the list based lexer gives it. */
+    default Token token(int i) {
+        Token.TokenType type = type(i);
+        return new Token(type, lexeme(i), type == Token.TokenType.NUMBER ? (Object) intLiteral(i) : null, line(i));
+    }
+
+    static TokenStream of(List<Token> tokens) {
+        return new TokenStream() {
+            public Token token(int i) {
+                return tokens.get(i);
+            }
+
+            public Token.TokenType type(int i) {
+                return tokens.get(i).type;
+            }
+
+            public String lexeme(int i) {
+                return tokens.get(i).lexeme;
+            }
+
+            public int intLiteral(int i) {
+                return (Integer) tokens.get(i).literal;
+            }
+
+            public int line(int i) {
+                return tokens.get(i).line;
+            }
+
+            public int size() {
+                return tokens.size();
+            }
+        };
+    }
+}
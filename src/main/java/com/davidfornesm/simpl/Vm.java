@@ -0,0 +1,347 @@
+package com.davidfornesm.simpl;
+
+import java.util.Arrays;
+
+/**
+ * Stack based bytecode VM.
+ * Lowers a resolved program into a flat int[] instruction stream and runs
+ * it in a single dispatch loop; booleans are 0 or 1 on the operand stack.
+ * Operands follow their opcode inline.
+ */
+class Vm {
+    static final int LOAD = 0;          // slot
+    static final int STORE = 1;         // slot
+    static final int PUSH = 2;          // constant
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int EQ = 6;
+    static final int LEQ = 7;
+    static final int GT = 8;
+    static final int NOT = 9;
+    static final int OR = 10;
+    static final int JUMP = 11;         // target
+    static final int JUMP_IF_FALSE = 12; // target
+    static final int JUMP_IF_TRUE = 13;  // target
+    static final int HALT = 14;
+    static final int LOOP = 15;         // target, JUMP_IF_FALSE out of a loop that counts the iterations it enters
+
+    private final int[] code;
+    private final int maxStack;
+    private final int slots;
+
+    private Vm(int[] code, int maxStack, int slots) {
+        this.code = code;
+        this.maxStack = maxStack;
+        this.slots = slots;
+    }
+
+    static Vm compile(ProgramStatement program) {
+        Lowering lowering = new Lowering();
+        lowering.statement(program);
+        lowering.emit(HALT);
+        return new Vm(Arrays.copyOf(lowering.code, lowering.length), lowering.maxStack, lowering.slots);
+    }
+
+    int[] code() {
+        return code;
+    }
+
+    /**
+     * Variables are copied into plain arrays for the duration of the run
+     * and written back when the program halts, fails or hits a limit.
+     */
+    State eval(State s) {
+        final int[] code = this.code;
+        final int[] stack = new int[maxStack];
+        final int[] values = new int[slots];
+        final boolean[] defined = new boolean[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            if (s.isDefined(slot)) {
+                values[slot] = s.get(slot);
+                defined[slot] = true;
+            }
+        }
+        int undefined;
+        try {
+            undefined = run(code, stack, values, defined, s);
+        } finally {
+            for (int slot = 0; slot < slots; slot++) {
+                if (defined[slot])
+                    s.set(slot, values[slot]);
+            }
+        }
+        if (undefined >= 0)
+            throw new RuntimeException("undefined variable: " + s.symbols().name(undefined) + ".");
+        return s;
+    }
+
+    /**
+     * Returns -1 once the program halts, or the slot of a variable read before it was assigned.
+     * Loop iterations are counted locally and added to the state on the way
+     * out and at every checkpoint, where the limits may stop the run.
+     */
+    private static int run(int[] code, int[] stack, int[] values, boolean[] defined, State s) {
+        int sp = 0;
+        int pc = 0;
+        long loops = 0;
+        long budget = 0;
+        while (true) {
+            switch (code[pc]) {
+                case LOAD: {
+                    int slot = code[pc + 1];
+                    if (!defined[slot]) {
+                        s.iterations += loops;
+                        return slot;
+                    }
+                    stack[sp++] = values[slot];
+                    pc += 2;
+                    break;
+                }
+                case STORE: {
+                    int slot = code[pc + 1];
+                    values[slot] = stack[--sp];
+                    defined[slot] = true;
+                    pc += 2;
+                    break;
+                }
+                case PUSH:
+                    stack[sp++] = code[pc + 1];
+                    pc += 2;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    pc++;
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    pc++;
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    pc++;
+                    break;
+                case EQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                    pc++;
+                    break;
+                case LEQ:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                    pc++;
+                    break;
+                case GT:
+                    sp--;
+                    stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                    pc++;
+                    break;
+                case NOT:
+                    stack[sp - 1] ^= 1;
+                    pc++;
+                    break;
+                case OR:
+                    sp--;
+                    stack[sp - 1] |= stack[sp];
+                    pc++;
+                    break;
+                case JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case LOOP:
+                    if (stack[--sp] == 0) {
+                        pc = code[pc + 1];
+                        break;
+                    }
+                    if (loops == budget) {
+                        s.iterations += loops;
+                        loops = 0;
+                        s.check();
+                        budget = s.checkpoint - s.iterations;
+                    }
+                    loops++;
+                    pc += 2;
+                    break;
+                case JUMP_IF_FALSE:
+                    pc = stack[--sp] == 0 ? code[pc + 1] : pc + 2;
+                    break;
+                case JUMP_IF_TRUE:
+                    pc = stack[--sp] != 0 ? code[pc + 1] : pc + 2;
+                    break;
+                case HALT:
+                    s.iterations += loops;
+                    return -1;
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc + ".");
+            }
+        }
+    }
+
+    private static class Lowering {
+        private int[] code = new int[64];
+        private int length = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int slots = 0;
+
+        void statement(ProgramStatement c) {
+            if (c instanceof ProgramStatement.AssignmentStmt assign) {
+                arithmetic(assign.a);
+                emit(STORE, slot(assign.slot));
+            } else if (c instanceof ProgramStatement.BlockStmt block) {
+                for (ProgramStatement statement : block.statements)
+                    statement(statement);
+            } else if (c instanceof ProgramStatement.ParallelStmt parallel) {
+                for (ProgramStatement branch : parallel.branches)
+                    statement(branch);
+            } else if (c instanceof ProgramStatement.IfThenElseStmt ifThenElse) {
+                bool(ifThenElse.b);
+                int otherwise = emit(JUMP_IF_FALSE, -1);
+                statement(ifThenElse.c1);
+                int end = emit(JUMP, -1);
+                patch(otherwise, length);
+                statement(ifThenElse.c2);
+                patch(end, length);
+            } else if (c instanceof ProgramStatement.WhileStmt loop) {
+                int condition = length;
+                bool(loop.b);
+                int end = emit(LOOP, -1);
+                statement(loop.c);
+                emit(JUMP, condition);
+                patch(end, length);
+            } else if (!(c instanceof ProgramStatement.EmptyStmt)) {
+                throw new IllegalStateException("cannot lower " + c + ".");
+            }
+        }
+
+        private void bool(BooleanExp b) {
+            if (b instanceof BooleanExp.TrueExp) {
+                emit(PUSH, 1);
+            } else if (b instanceof BooleanExp.FalseExp) {
+                emit(PUSH, 0);
+            } else if (b instanceof BooleanExp.EqualExp eq) {
+                arithmetic(eq.a1);
+                arithmetic(eq.a2);
+                emit(EQ);
+            } else if (b instanceof BooleanExp.LeqExp leq) {
+                arithmetic(leq.a1);
+                arithmetic(leq.a2);
+                emit(LEQ);
+            } else if (b instanceof BooleanExp.BiggerThanExp bigger) {
+                arithmetic(bigger.a1);
+                arithmetic(bigger.a2);
+                emit(GT);
+            } else if (b instanceof BooleanExp.NotExp not) {
+                bool(not.b);
+                emit(NOT);
+            } else if (b instanceof BooleanExp.OrExp or) {
+                bool(or.b1);
+                if (readsVariables(or.b2)) {
+                    // b2 may fail on an undefined variable, so it must only run when b1 is false
+                    int shortCircuit = emit(JUMP_IF_TRUE, -1);
+                    bool(or.b2);
+                    int end = emit(JUMP, -1);
+                    patch(shortCircuit, length);
+                    emit(PUSH, 1);
+                    stack--;
+                    patch(end, length);
+                } else {
+                    bool(or.b2);
+                    emit(OR);
+                }
+            } else {
+                throw new IllegalStateException("cannot lower " + b + ".");
+            }
+        }
+
+        private void arithmetic(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.NumericExp num) {
+                emit(PUSH, num.n);
+            } else if (a instanceof ArithmeticExp.VariableExp var) {
+                emit(LOAD, slot(var.slot));
+            } else if (a instanceof ArithmeticExp.AdditionExp add) {
+                arithmetic(add.a1);
+                arithmetic(add.a2);
+                emit(ADD);
+            } else if (a instanceof ArithmeticExp.SubtractionExp sub) {
+                arithmetic(sub.a1);
+                arithmetic(sub.a2);
+                emit(SUB);
+            } else if (a instanceof ArithmeticExp.ProductExp prod) {
+                arithmetic(prod.a1);
+                arithmetic(prod.a2);
+                emit(MUL);
+            } else {
+                throw new IllegalStateException("cannot lower " + a + ".");
+            }
+        }
+
+        private static boolean readsVariables(BooleanExp b) {
+            if (b instanceof BooleanExp.EqualExp eq)
+                return readsVariables(eq.a1) || readsVariables(eq.a2);
+            if (b instanceof BooleanExp.LeqExp leq)
+                return readsVariables(leq.a1) || readsVariables(leq.a2);
+            if (b instanceof BooleanExp.BiggerThanExp bigger)
+                return readsVariables(bigger.a1) || readsVariables(bigger.a2);
+            if (b instanceof BooleanExp.NotExp not)
+                return readsVariables(not.b);
+            if (b instanceof BooleanExp.OrExp or)
+                return readsVariables(or.b1) || readsVariables(or.b2);
+            return false;
+        }
+
+        private static boolean readsVariables(ArithmeticExp a) {
+            if (a instanceof ArithmeticExp.VariableExp)
+                return true;
+            if (a instanceof ArithmeticExp.AdditionExp add)
+                return readsVariables(add.a1) || readsVariables(add.a2);
+            if (a instanceof ArithmeticExp.SubtractionExp sub)
+                return readsVariables(sub.a1) || readsVariables(sub.a2);
+            if (a instanceof ArithmeticExp.ProductExp prod)
+                return readsVariables(prod.a1) || readsVariables(prod.a2);
+            return false;
+        }
+
+        private int slot(int slot) {
+            if (slot < 0)
+                throw new IllegalStateException("program must be resolved before lowering.");
+            slots = Math.max(slots, slot + 1);
+            return slot;
+        }
+
+        private void emit(int opcode) {
+            switch (opcode) {
+                case ADD: case SUB: case MUL: case EQ: case LEQ: case GT: case OR: stack--; break;
+                default: break;
+            }
+            put(opcode);
+        }
+
+        /** Returns the position of the operand so jumps can be patched. */
+        private int emit(int opcode, int operand) {
+            switch (opcode) {
+                case LOAD: case PUSH: stack++; break;
+                case STORE: case JUMP_IF_FALSE: case JUMP_IF_TRUE: case LOOP: stack--; break;
+                default: break;
+            }
+            if (stack > maxStack)
+                maxStack = stack;
+            put(opcode);
+            put(operand);
+            return length - 1;
+        }
+
+        private void patch(int position, int target) {
+            code[position] = target;
+        }
+
+        private void put(int word) {
+            if (length == code.length)
+                code = Arrays.copyOf(code, length * 2);
+            code[length++] = word;
+        }
+    }
+}
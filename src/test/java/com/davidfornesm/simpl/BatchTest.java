@@ -0,0 +1,50 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class BatchTest extends TestCase {
+
+    public void testRunsEveryProgramInIsolation() throws IOException {
+        Path dir = Files.createTempDirectory("simpl-batch");
+        for (int i = 1; i <= 50; i++)
+            Files.writeString(dir.resolve("p" + i + ".imp"),
+                    "n := " + i + "; result := 0; while n > 0 do (result := result + n; n := n - 1)");
+        Files.writeString(dir.resolve("undefined.imp"), "result := n + 1");
+        Files.writeString(dir.resolve("ignored.txt"), "result := 1");
+        Path output = dir.resolve("results.tsv");
+
+        Options options = new Options();
+        options.engine = Engine.VM;
+        int errors = Batch.run(output, Collections.singletonList(dir.toString()), options);
+
+        List<String> lines = Files.readAllLines(output);
+        assertEquals(1, errors);
+        assertEquals("path\tstatus\tvalue\tmicros", lines.get(0));
+        assertEquals(52, lines.size());
+        for (int i = 1; i <= 50; i++) {
+            String prefix = dir.resolve("p" + i + ".imp") + "\tok\t" + (i * (i + 1) / 2) + "\t";
+            assertEquals(1, lines.stream().filter(line -> line.startsWith(prefix)).count());
+        }
+        List<String> failed = lines.stream().filter(line -> line.contains("\terror\t")).collect(Collectors.toList());
+        assertEquals(1, failed.size());
+        assertTrue(failed.get(0).startsWith(dir.resolve("undefined.imp") + "\terror\tundefined variable: n."));
+    }
+
+    public void testParseArgs() {
+        Options options = new Options();
+        assertEquals(Arrays.asList("a", "b"), Batch.parseArgs(new String[] {"a", "jit", "b", "noopt"}, options));
+        assertEquals(Engine.JIT, options.engine);
+        assertFalse(options.optimize);
+        assertNull(Batch.parseArgs(new String[] {"a", "debug"}, new Options()));
+        assertNull(Batch.parseArgs(new String[] {"a", "profile"}, new Options()));
+        assertNull(Batch.parseArgs(new String[] {"a", "sweep=x:1..3"}, new Options()));
+    }
+}
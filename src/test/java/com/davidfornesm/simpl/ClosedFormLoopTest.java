@@ -0,0 +1,84 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ClosedFormLoopTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    /** Runs the source as is and with closed form loops, and checks both end the same way. */
+    private static void assertSameResult(String source, String... variables) {
+        State expected = new State();
+        String expectedError = null;
+        try {
+            parse(source).eval(expected);
+        } catch (RuntimeException e) {
+            expectedError = e.getMessage();
+        }
+        State actual = new State();
+        String actualError = null;
+        ProgramStatement folded = parse(source).fold();
+        folded.resolve(actual.symbols());
+        try {
+            folded.eval(actual);
+        } catch (RuntimeException e) {
+            actualError = e.getMessage();
+        }
+        assertEquals(source, expectedError, actualError);
+        for (String variable : variables)
+            assertEquals(source, expected.lookup(variable), actual.lookup(variable));
+    }
+
+    private static String literal(int n) {
+        return n < 0 ? "0 - " + -n : String.valueOf(n);
+    }
+
+    public void testRecognizesCountingLoops() {
+        ProgramStatement triangle = parse("n := 6; i := n; result := 0; " +
+                "while 0 <= i do (result := result + i; i := i - 1)").fold();
+        assertTrue(((ProgramStatement.BlockStmt) triangle).statements[3] instanceof ClosedFormLoop);
+        assertFalse(parse("while i <= n do (a := b; i := i + 1)").fold() instanceof ClosedFormLoop);
+        assertFalse(parse("while i <= n do (a := a + a; i := i + 1)").fold() instanceof ClosedFormLoop);
+        assertFalse(parse("while i <= n do (a := a + i * i; i := i + 1)").fold() instanceof ClosedFormLoop);
+        assertFalse(parse("while i <= n do (i := i + 1; n := n + 1)").fold() instanceof ClosedFormLoop);
+        assertFalse(parse("while i = n do i := i + 1").fold() instanceof ClosedFormLoop);
+    }
+
+    public void testSameResultAsLoop() {
+        Random random = new Random(14);
+        String[] conditions = {"i <= n", "n > i", "n <= i", "i > n"};
+        for (int run = 0; run < 400; run++) {
+            int step = 1 + random.nextInt(50);
+            String condition = conditions[run % 4];
+            boolean upward = condition.equals("i <= n") || condition.equals("n > i");
+            int start = random.nextInt(2000) - 1000 + (run % 3 == 0 ? Integer.MAX_VALUE / 2 * (upward ? 1 : -1) : 0);
+            int bound = start + (upward ? 1 : -1) * (random.nextInt(3000) - 100);
+            String update = upward ? "i := i + " + step : "i := i - " + step;
+            String source = "i := " + literal(start) + "; n := " + literal(bound) + "; " +
+                    "k := " + literal(random.nextInt(Integer.MAX_VALUE) - Integer.MAX_VALUE / 2) + "; j := 5; acc := 0; " +
+                    "sum := " + random.nextInt(Integer.MAX_VALUE) + "; while " + condition + " do (" +
+                    "acc := acc + k * i + 3 - j; j := j - k; sum := sum - 3 * j + 2 * i; " + update + ")";
+            ProgramStatement loop = parse(source).fold();
+            ProgramStatement[] statements = ((ProgramStatement.BlockStmt) loop).statements;
+            loop = statements[statements.length - 1];
+            assertTrue(loop instanceof ClosedFormLoop);
+            assertSameResult(source, "i", "j", "acc", "sum");
+        }
+    }
+
+    public void testCounterWrapsAround() {
+        assertSameResult("i := 0; a := 0; while 0 <= i do (a := a + 1; i := i + 1000000000)", "i", "a");
+        assertSameResult("i := 5; a := 0; while i <= 10 do (a := a + i; i := i - 1000000000)", "i", "a");
+        assertSameResult("i := 2147482500; a := 0; while i <= 2147483000 do (a := a + i; i := i + 1000)", "i", "a");
+    }
+
+    public void testUndefinedVariables() {
+        assertSameResult("i := 0; a := 0; while i <= 10 do (a := a + x; i := i + 1)", "i", "a");
+        assertSameResult("i := 20; a := 0; while i <= 10 do (a := a + x; i := i + 1)", "i", "a");
+        assertSameResult("i := 0; while i <= 10 do (a := a + 1; i := i + 1)", "i", "a");
+    }
+}
@@ -0,0 +1,39 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class CompileTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    public void testWritesC() throws IOException {
+        ProgramStatement program = parse("n := 3; result := 1; " +
+                "while n > 0 do (if n = 2 || !n <= 0 then result := result * n else (skip); n := n - 1)");
+        SymbolTable symbols = new SymbolTable();
+        program.resolve(symbols);
+        StringBuilder out = new StringBuilder();
+        App.writeC(program, symbols, out);
+        assertEquals("#include <stdio.h>\nint main() {\nint n;\nint result;\n" +
+                "n = 3;\n result = 1;\n while ((n) > (0)) {\n\t" +
+                "if (((n) == (2)) || (!((n) <= (0)))) {\n\tresult = (result) * (n);\n\n\r}\n n = (n) - (1);\n\n\r}\n" +
+                " printf(\"result := %d\\n\", result);}", out.toString());
+    }
+
+    public void testLongSequence() throws IOException {
+        ProgramStatement[] statements = new ProgramStatement[100001];
+        for (int i = 0; i < 100000; i++)
+            statements[i] = new ProgramStatement.AssignmentStmt("a", new ArithmeticExp.NumericExp(99999 - i));
+        statements[100000] = new ProgramStatement.AssignmentStmt("a", new ArithmeticExp.NumericExp(0));
+        ProgramStatement program = new ProgramStatement.BlockStmt(statements);
+        StringBuilder out = new StringBuilder();
+        program.compile(out);
+        assertTrue(out.toString().endsWith("a = 0;\n a = 0;\n"));
+        String dump = program.toString();
+        assertTrue(dump.startsWith("(block: (assign: a, (num: 99999)), (assign: a, (num: 99998)), "));
+        assertTrue(dump.endsWith("(assign: a, (num: 0)), (assign: a, (num: 0)))"));
+    }
+}
@@ -0,0 +1,64 @@
+package com.davidfornesm.simpl;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class EventsTest extends TestCase {
+
+    private static final String SOURCE = "n := 4; result := 0; while n > 0 do (" +
+            "i := n; while i > 0 do (result := result + i; i := i - 1); n := n - 1)";
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    public void testEveryEngineCountsIterations() {
+        for (boolean optimize : new boolean[] {false, true}) {
+            for (Engine engine : Engine.values()) {
+                State state = new State();
+                ProgramStatement program = optimize ? parse(SOURCE).fold() : parse(SOURCE);
+                program.resolve(state.symbols());
+                engine.eval(program, state);
+                assertEquals(engine + (optimize ? "" : " noopt"), 14, state.iterations);
+            }
+        }
+    }
+
+    public void testCountsNodes() {
+        assertEquals(1, Events.nodes(new ProgramStatement.EmptyStmt()));
+        // seq, assign, num, while, leq, var, var, assign, add, var, num
+        assertEquals(11, Events.nodes(parse("i := 0; while i <= n do i := i + 1").fold()));
+    }
+
+    public void testRecordsEval() throws IOException {
+        Path file = Files.createTempFile("simpl", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("simpl.Eval");
+            recording.start();
+            State state = new State();
+            ProgramStatement program = parse(SOURCE);
+            program.resolve(state.symbols());
+            App.eval("test.imp", program, state, Engine.VM);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(1, events.size());
+            RecordedEvent event = events.get(0);
+            assertEquals("simpl.Eval", event.getEventType().getName());
+            assertEquals("test.imp", event.getString("source"));
+            assertEquals("VM", event.getString("engine"));
+            assertEquals(3, event.getInt("variables"));
+            assertEquals(14, event.getLong("iterations"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
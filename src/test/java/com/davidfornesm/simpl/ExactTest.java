@@ -0,0 +1,191 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+public class ExactTest extends TestCase {
+
+    private static State run(String source) {
+        State state = new State();
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(state.symbols());
+        return Exact.instrument(program, state.symbols()).eval(state);
+    }
+
+    private static BigInteger factorial(int n) {
+        BigInteger result = BigInteger.ONE;
+        for (int i = 2; i <= n; i++)
+            result = result.multiply(BigInteger.valueOf(i));
+        return result;
+    }
+
+    public void testFactorialWidens() {
+        for (int n : new int[]{12, 13, 20, 21, 40}) {
+            State state = run("n := " + n + "; result := 1; while n > 0 do (result := result * n; n := n - 1)");
+            Number result = state.value("result");
+            assertEquals(String.valueOf(n), factorial(n).toString(), result.toString());
+            assertEquals(String.valueOf(n), n <= 12 ? Integer.class : n <= 20 ? Long.class : BigInteger.class,
+                    result.getClass());
+            assertEquals(Integer.valueOf(0), state.value("n"));
+        }
+    }
+
+    public void testFibonacciPastLong() {
+        State state = run("i := 0; a := 0; b := 1; while i <= 149 do (t := a + b; a := b; b := t; i := i + 1); result := a");
+        BigInteger a = BigInteger.ZERO;
+        BigInteger b = BigInteger.ONE;
+        for (int i = 0; i < 150; i++) {
+            BigInteger t = a.add(b);
+            a = b;
+            b = t;
+        }
+        assertEquals(a, state.value("result"));
+    }
+
+    public void testTierBoundaries() {
+        State state = run("x := 0 - 2147483647; y := x - 1; z := y - 1; w := 0 - z; " +
+                "p := 3037000500 * 3037000500; q := p - p; r := 9223372036854775807 + 1");
+        assertEquals(Integer.valueOf(Integer.MIN_VALUE), state.value("y"));
+        assertEquals(Long.valueOf(Integer.MIN_VALUE - 1L), state.value("z"));
+        assertEquals(Long.valueOf(2147483649L), state.value("w"));
+        assertEquals(new BigInteger("9223372037000250000"), state.value("p"));
+        assertEquals(Integer.valueOf(0), state.value("q"));
+        assertEquals(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE), state.value("r"));
+    }
+
+    public void testComparesWideValues() {
+        State state = run("x := 99999999999999999999; if x > 2147483647 then a := 1 else (a := 0); " +
+                "if x <= 99999999999999999998 then b := 1 else (b := 0); " +
+                "if x = 99999999999999999999 then c := 1 else (c := 0)");
+        assertEquals(Integer.valueOf(1), state.value("a"));
+        assertEquals(Integer.valueOf(0), state.value("b"));
+        assertEquals(Integer.valueOf(1), state.value("c"));
+    }
+
+    public void testSameResultAsInterpreterWithoutOverflow() {
+        String[] sources = {
+                "n := 10; result := 0; while n > 0 do (result := result + n * n; n := n - 1)",
+                "i := 0; while !i > 9 || false do (if i = 4 then skip else (j := i); i := i + 1); result := j",
+                "x := 3; (a := x * 2 || b := x - 1; c := 4); result := a + b + c",
+        };
+        for (String source : sources) {
+            State expected = new State();
+            ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+            program.resolve(expected.symbols());
+            program.eval(expected);
+            State actual = run(source);
+            assertEquals(source, expected.keys(), actual.keys());
+            for (String name : expected.keys())
+                assertEquals(source + " " + name, expected.lookup(name), actual.value(name));
+        }
+    }
+
+    public void testParallelBranchesJoinWideValues() throws Exception {
+        String source = "(i := 1; a := 1; while i <= 25 do (a := a * i; i := i + 1)" +
+                " || j := 1; b := 1; while j <= 30 do (b := b * j; j := j + 1))";
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            State state = pool.submit(() -> run(source)).get();
+            assertEquals(factorial(25), state.value("a"));
+            assertEquals(factorial(30), state.value("b"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testWritesCheckedC() throws IOException {
+        ProgramStatement program = new Parser(new Lexer("x := 3000000000; result := x * 2 + 1").scanTokens()).parse();
+        SymbolTable symbols = new SymbolTable();
+        program.resolve(symbols);
+        StringBuilder out = new StringBuilder();
+        Exact.writeC(program, symbols, out);
+        String c = out.toString();
+        assertTrue(c.contains("long long x;\nlong long result;\n"));
+        assertTrue(c.contains("x = 3000000000LL;\n result = simpl_mul(x, simpl_add(2, 1));\n"));
+        assertTrue(c.endsWith(" printf(\"result := %lld\\n\", result);}"));
+    }
+
+    public void testFoldedImagesAreNotRunExactly() throws IOException {
+        Path image = Files.createTempFile("exact", ProgramImage.EXTENSION);
+        try {
+            for (boolean folded : new boolean[]{true, false}) {
+                ProgramStatement program = new Parser(new Lexer("result := 2147483647 + 1").scanTokens()).parse();
+                if (folded) program = program.fold();
+                SymbolTable symbols = new SymbolTable();
+                program.resolve(symbols);
+                ProgramImage.write(image, program, symbols, new byte[0], folded);
+                Options options = new Options();
+                options.apply("exact");
+                State state = new State();
+                try {
+                    ProgramStatement loaded = App.prepare("image", ProgramImage.read(image, state.symbols()),
+                            state, options, System.out);
+                    assertFalse(folded);
+                    assertEquals(2147483648L, App.eval("image", loaded, state, options).value("result"));
+                } catch (IOException e) {
+                    assertTrue(folded);
+                }
+            }
+        } finally {
+            Files.delete(image);
+        }
+    }
+
+    public void testOnlyPlainRunsAreExact() {
+        for (String flag : new String[]{"sweep=x:2..3", "flat", "footprint", "profile"}) {
+            Options options = new Options();
+            assertTrue(options.apply("exact"));
+            assertTrue(options.consistent());
+            assertTrue(options.apply(flag));
+            assertFalse(flag, options.consistent());
+        }
+    }
+
+    public void testBigLiteralsOnlyPrepareForExactRuns() {
+        for (String flag : new String[]{"vm", "jit", "specialize", "sweep=x:1..2", "noopt"}) {
+            Options options = new Options();
+            options.apply(flag);
+            try {
+                App.prepare("big", TokenStream.of(new Lexer("result := 99999999999").scanTokens()),
+                        new State(), options, System.out);
+                fail(flag);
+            } catch (ArithmeticException e) {
+                assertEquals("number too large for an int: 99999999999; run with exact.", e.getMessage());
+            }
+        }
+    }
+
+    public void testBigLiteralsArePrecompiled() throws IOException {
+        Path image = Files.createTempFile("exact", ProgramImage.EXTENSION);
+        try {
+            ProgramStatement program = new Parser(new Lexer("result := 0 - 99999999999999999999 + 1").scanTokens())
+                    .parse();
+            SymbolTable symbols = new SymbolTable();
+            program.resolve(symbols);
+            ProgramImage.write(image, program, symbols, new byte[0], false);
+            Options options = new Options();
+            options.apply("exact");
+            State state = new State();
+            ProgramStatement loaded = App.prepare("image", ProgramImage.read(image, state.symbols()),
+                    state, options, System.out);
+            assertEquals(new BigInteger("-100000000000000000000"),
+                    App.eval("image", loaded, state, options).value("result"));
+        } finally {
+            Files.delete(image);
+        }
+    }
+
+    public void testBigLiteralNeedsExact() {
+        try {
+            new Parser(new Lexer("result := 3000000000").scanTokens()).parse().eval(new State());
+            fail();
+        } catch (ArithmeticException e) {
+            assertEquals("number too large for an int: 3000000000; run with exact.", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class FlatProgramTest extends TestCase {
+
+    private static final String[] SOURCES = {
+            "n := 6; if n = 0 then result := 0 else (if n = 1 then result := 1 else (" +
+                    "i := 2; r2 := 0; r1 := 1; result := r2 + r1; while i <= n - 1 do (" +
+                    "r2 := r1; r1 := result; result := r2 + r1; i := i + 1)))",
+            "x := 3; (a := x * 2 || b := x - 1; c := 4); (d := a; skip); result := a + b + c + d",
+            "i := 0; while !i > 9 || false do (if i = 4 then skip else (j := i); i := i + 1); result := j",
+            "while true do skip; result := 1",
+            "a := 1; result := a + b",
+            "skip; skip;",
+    };
+
+    private static State runTree(String source, String[] error) {
+        State state = new State();
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(state.symbols());
+        state.limit(new Limits(1000, 0));
+        try {
+            program.eval(state);
+        } catch (RuntimeException e) {
+            error[0] = e.getMessage();
+        }
+        return state;
+    }
+
+    private static State runFlat(String source, String[] error) {
+        State state = new State();
+        FlatProgram program = new Parser(new Lexer(source).scanTokens()).parseFlat(state.symbols());
+        state.limit(new Limits(1000, 0));
+        try {
+            program.eval(state);
+        } catch (RuntimeException e) {
+            error[0] = e.getMessage();
+        }
+        return state;
+    }
+
+    public void testSameResultAsTree() {
+        for (String source : SOURCES) {
+            String[] expectedError = new String[1];
+            String[] actualError = new String[1];
+            State expected = runTree(source, expectedError);
+            State actual = runFlat(source, actualError);
+            assertEquals(source, expectedError[0], actualError[0]);
+            assertEquals(source, expected.keys(), actual.keys());
+            for (String name : expected.keys())
+                assertEquals(source + " " + name, expected.lookup(name), actual.lookup(name));
+            assertEquals(source, expected.iterations, actual.iterations);
+        }
+    }
+
+    public void testSameDumpAndTranslationAsTree() throws IOException {
+        for (String source : SOURCES) {
+            SymbolTable symbols = new SymbolTable();
+            ProgramStatement tree = new Parser(new Lexer(source).scanTokens()).parse();
+            tree.resolve(symbols);
+            FlatProgram flat = new Parser(new Lexer(source).scanTokens()).parseFlat(new SymbolTable());
+            assertEquals(source, tree.toString(), flat.toString());
+            StringBuilder expected = new StringBuilder();
+            App.writeC(tree, symbols, expected);
+            StringBuilder actual = new StringBuilder();
+            App.writeC(flat, actual);
+            assertEquals(source, expected.toString(), actual.toString());
+        }
+    }
+
+    public void testRejectsConflicts() {
+        try {
+            new Parser(new Lexer("(a := 1 || b := a)").scanTokens()).parseFlat(new SymbolTable());
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("parallel branches conflict on a.", e.getMessage());
+        }
+    }
+
+    public void testLongProgramIsSmallerThanTree() {
+        StringBuilder source = new StringBuilder("x := 0");
+        for (int i = 0; i < 100000; i++)
+            source.append("; x := x + ").append(i % 7);
+        FlatProgram flat = new Parser(new Lexer(source.toString()).scanTokens()).parseFlat(new SymbolTable());
+        ProgramStatement tree = new Parser(new Lexer(source.toString()).scanTokens()).parse();
+        assertEquals(Events.nodes(tree), flat.size());
+        assertTrue(flat.bytes() < FlatProgram.bytes(tree));
+        State state = new State(flat.symbols());
+        assertEquals(Integer.valueOf(299995), flat.eval(state).lookup("x"));
+        assertTrue(flat.footprint(tree).contains("flat"));
+    }
+}
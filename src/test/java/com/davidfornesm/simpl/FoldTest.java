@@ -0,0 +1,47 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class FoldTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    public void testArithmetic() {
+        assertEquals("(assign: a, (num: 3))", parse("a := 1 + 2").fold().toString());
+        assertEquals("(assign: a, (var: x))", parse("a := x * 1").fold().toString());
+        assertEquals("(assign: a, (var: x))", parse("a := 0 + x - 0").fold().toString());
+        assertEquals("(assign: a, (prod: (var: x), (num: 0)))", parse("a := x * 0").fold().toString());
+        assertEquals("(assign: a, (num: -2147483648))", parse("a := 2147483647 + 1").fold().toString());
+    }
+
+    public void testConditions() {
+        assertEquals("(assign: a, (num: 1))", parse("if 3 = 1 + 2 then a := 1 else a := 2").fold().toString());
+        assertEquals("(assign: a, (num: 2))", parse("if !!!3 > 4 || false then a := 2 else a := 1").fold().toString());
+        assertEquals("(if: (leq: (var: x), (num: 1)), (assign: a, (num: 1)), (skip))",
+                parse("if false || x <= 1 then a := 1 else skip").fold().toString());
+        assertEquals("(if: (or: (equal: (var: x), (num: 1)), (true)), (assign: a, (num: 1)), (skip))",
+                parse("if x = 1 || true then a := 1 else skip").fold().toString());
+        assertEquals("(assign: a, (num: 1))", parse("while false do (a := 2); a := 1").fold().toString());
+    }
+
+    public void testDeadLoopKeepsItsLine() {
+        ProgramStatement loop = parse("\n\nwhile 1 > 2 do a := 2");
+        assertEquals(3, loop.line);
+        ProgramStatement folded = loop.fold();
+        assertEquals("(skip)", folded.toString());
+        assertEquals(3, folded.line);
+    }
+
+    public void testSameResult() {
+        String source = "n := 6; if n = 6 then skip else (skip); " +
+                "if n = 4 || 4 + 3 = 8 || !false then result := 100 else (skip); " +
+                "while result <= 200 do (result := result + 20; if 150 <= result then result := 1500 else ()); " +
+                "if false || 3 = 1 + 2 then result := 123 else (); if 3 * 20 > 1 then result := result + 1 else ()";
+        State expected = parse(source).eval(new State());
+        State actual = parse(source).fold().eval(new State());
+        assertEquals(Integer.valueOf(124), actual.lookup("result"));
+        assertEquals(expected.lookup("result"), actual.lookup("result"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class JitTest extends TestCase {
+
+    private static State run(Engine engine, String source) {
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        State state = new State();
+        program.resolve(state.symbols());
+        return engine.eval(program, state);
+    }
+
+    private static void assertSameResult(String source) {
+        State expected = run(Engine.INTERPRETER, source);
+        State actual = run(Engine.JIT, source);
+        assertEquals(expected.keys(), actual.keys());
+        for (String name : expected.keys())
+            assertEquals(name, expected.lookup(name), actual.lookup(name));
+    }
+
+    public void testPrograms() {
+        assertSameResult("n := 10; i := 2; r2 := 0; r1 := 1; result := r2 + r1; " +
+                "while i <= n - 1 do (r2 := r1; r1 := result; result := r2 + r1; i := i + 1)");
+        assertSameResult("n := 6; i := n; result := 0; while 0 <= i do (result := result + i; i := i - 1)");
+        assertSameResult("n := 6; if n = 4 || 4 + 3 = 8 || !false then result := 100 else (skip); " +
+                "while result <= 200 do (result := result + 20; if 150 <= result then result := 1500 else ()); " +
+                "if false || 3 = 1 + 2 then result := 123 else (); if 3 * 20 > 1 then result := result + 1 else ()");
+        assertSameResult("if true then a := 1 else b := 2; while false do c := 3; result := a * 100000");
+    }
+
+    public void testLongLoop() {
+        State state = run(Engine.JIT, "i := 0; while i <= 9999999 do i := i + 1; result := i");
+        assertEquals(Integer.valueOf(10000000), state.lookup("result"));
+    }
+
+    public void testUndefinedVariable() {
+        try {
+            run(Engine.JIT, "a := 1; if a = 1 then result := b else skip");
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("undefined variable: b.", e.getMessage());
+        }
+        State state = run(Engine.JIT, "a := 1; if a = 2 then result := b else result := a");
+        assertEquals(Integer.valueOf(1), state.lookup("result"));
+    }
+
+    public void testSharedState() {
+        State state = new State();
+        state.setNewBinding("n", 5);
+        ProgramStatement program = new Parser(new Lexer("result := n * n").scanTokens()).parse();
+        program.resolve(state.symbols());
+        Engine.JIT.eval(program, state);
+        assertEquals(Integer.valueOf(25), state.lookup("result"));
+    }
+
+    public void testCompiledOncePerProgram() {
+        State state = new State();
+        state.setNewBinding("n", 5);
+        ProgramStatement program = new Parser(new Lexer("result := n * n; n := n + 1").scanTokens()).parse();
+        program.resolve(state.symbols());
+        Engine.JIT.eval(program, state);
+        Jit jit = program.jit;
+        assertNotNull(jit);
+        Engine.JIT.eval(program, state);
+        assertSame(jit, program.jit);
+        assertEquals(Integer.valueOf(36), state.lookup("result"));
+    }
+}
@@ -0,0 +1,52 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class LanesTest extends TestCase {
+
+    private static ProgramStatement parse(String source, SymbolTable symbols) {
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(symbols);
+        return program;
+    }
+
+    public void testSameResultAsInterpreter() {
+        String source = "result := 0; i := 1; while i <= n do (" +
+                "if i = 3 || 2147483000 <= i * i then result := result + i * 9 else (skip); " +
+                "result := result + i; i := i + 1); " +
+                "if !n > 40 then result := result - n else (skip)";
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = parse(source, symbols);
+        int[] inputs = new int[100];
+        for (int i = 0; i < inputs.length; i++)
+            inputs[i] = i - 10;
+
+        Lanes lanes = new Lanes(symbols, inputs.length);
+        lanes.set("n", inputs);
+        Integer[] results = lanes.eval(program).lookup("result");
+
+        for (int i = 0; i < inputs.length; i++) {
+            State state = new State(symbols);
+            state.setNewBinding("n", inputs[i]);
+            assertEquals(program.eval(state).lookup("result"), results[i]);
+            assertNull(lanes.error(i));
+        }
+    }
+
+    public void testLanesFailIndependently() {
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = parse("r := 1; if n > 1 || y = 0 then result := n else result := y + n", symbols);
+        Lanes lanes = new Lanes(symbols, 3);
+        lanes.set("n", new int[] {0, 1, 2});
+        lanes.eval(program);
+
+        Integer[] results = lanes.lookup("result");
+        assertEquals("undefined variable: y.", lanes.error(0));
+        assertEquals("undefined variable: y.", lanes.error(1));
+        assertNull(lanes.error(2));
+        assertNull(results[0]);
+        assertEquals(Integer.valueOf(2), results[2]);
+        assertEquals(Integer.valueOf(1), lanes.lookup("r")[2]);
+        assertNull(lanes.lookup("r")[0]);
+    }
+}
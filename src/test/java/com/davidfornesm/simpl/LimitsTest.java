@@ -0,0 +1,107 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class LimitsTest extends TestCase {
+
+    private static ProgramStatement parse(String source, boolean optimize, State state) {
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        if (optimize) program = program.fold();
+        program.resolve(state.symbols());
+        return program;
+    }
+
+    private static LimitExceededException stop(Engine engine, ProgramStatement program, State state) {
+        try {
+            engine.eval(program, state);
+        } catch (LimitExceededException e) {
+            return e;
+        }
+        fail(engine + " ran to the end");
+        return null;
+    }
+
+    public void testFuelStopsEveryEngineAtTheSamePoint() {
+        String source = "n := 0; result := 0; while true do (" +
+                "i := 0; while i <= 9 do (result := result + i; i := i + 1); n := n + 1)";
+        for (boolean optimize : new boolean[] {false, true}) {
+            for (Engine engine : Engine.values()) {
+                State state = new State();
+                ProgramStatement program = parse(source, optimize, state);
+                state.limit(new Limits(10_000, 0));
+                LimitExceededException e = stop(engine, program, state);
+                String name = engine + (optimize ? "" : " noopt");
+                assertEquals(name, LimitExceededException.Reason.FUEL, e.reason());
+                assertSame(name, state, e.state());
+                assertEquals(name, 10_000, state.iterations);
+                assertEquals(name, Integer.valueOf(909), state.lookup("n"));
+                assertEquals(name, Integer.valueOf(909 * 45), state.lookup("result"));
+                assertEquals(name, Integer.valueOf(0), state.lookup("i"));
+            }
+        }
+    }
+
+    public void testLanesStop() {
+        State state = new State();
+        ProgramStatement program = parse("i := 0; while x > 0 do i := i + 1", true, state);
+        Lanes lanes = new Lanes(state.symbols(), 2);
+        lanes.set("x", new int[]{1, 2});
+        lanes.limit(new Limits(1000, 0));
+        try {
+            lanes.eval(program);
+            fail("lanes ran to the end");
+        } catch (LimitExceededException e) {
+            assertEquals(LimitExceededException.Reason.FUEL, e.reason());
+            assertEquals(1000, e.state().iterations);
+        }
+        lanes = new Lanes(state.symbols(), 2);
+        lanes.set("x", new int[]{1, 2});
+        lanes.limit(new Limits(Long.MAX_VALUE, 50));
+        try {
+            lanes.eval(program);
+            fail("lanes ran to the end");
+        } catch (LimitExceededException e) {
+            assertEquals(LimitExceededException.Reason.DEADLINE, e.reason());
+        }
+    }
+
+    public void testExactFuelIsEnough() {
+        for (Engine engine : Engine.values()) {
+            State state = new State();
+            ProgramStatement program = parse("i := 0; while i <= 99 do i := i + 1", true, state);
+            state.limit(new Limits(100, 0));
+            engine.eval(program, state);
+            assertEquals(engine.toString(), Integer.valueOf(100), state.lookup("i"));
+        }
+    }
+
+    public void testDeadline() {
+        for (Engine engine : Engine.values()) {
+            State state = new State();
+            ProgramStatement program = parse("i := 0; while true do i := i + 1", true, state);
+            state.limit(new Limits(Long.MAX_VALUE, 50));
+            assertEquals(LimitExceededException.Reason.DEADLINE, stop(engine, program, state).reason());
+            assertEquals(Integer.valueOf((int) state.iterations), state.lookup("i"));
+        }
+    }
+
+    public void testCancelFromAnotherThread() throws InterruptedException {
+        for (Engine engine : Engine.values()) {
+            State state = new State();
+            ProgramStatement program = parse("i := 0; while true do i := i + 1", true, state);
+            Limits limits = new Limits(Long.MAX_VALUE, 0);
+            state.limit(limits);
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                limits.cancel();
+            });
+            canceller.start();
+            assertEquals(LimitExceededException.Reason.CANCELLED, stop(engine, program, state).reason());
+            canceller.join();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class LivenessTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    private static String eliminate(String source, Set<String> live, List<ProgramStatement> removed) {
+        return Liveness.eliminate(parse(source), live, removed).toString();
+    }
+
+    public void testDeadAssignments() {
+        List<ProgramStatement> removed = new ArrayList<>();
+        assertEquals("(block: (assign: a, (num: 2)), (assign: result, (add: (var: a), (num: 1))))",
+                eliminate("a := 1; b := a; a := 2; result := a + 1; c := result", Set.of("result"), removed));
+        assertEquals("[(assign: a, (num: 1)), (assign: b, (var: a)), (assign: c, (var: result))]",
+                removed.toString());
+    }
+
+    public void testLiveVariablesAreConfigurable() {
+        List<ProgramStatement> removed = new ArrayList<>();
+        assertEquals("(block: (assign: a, (num: 1)), (assign: b, (var: a)))",
+                eliminate("a := 1; b := a; result := 3", Set.of("b"), removed));
+        assertEquals("(skip)", eliminate("a := 1; b := a", Set.of("result"), removed));
+    }
+
+    public void testIfs() {
+        List<ProgramStatement> removed = new ArrayList<>();
+        assertEquals("(assign: result, (num: 1))",
+                eliminate("if x <= 1 then (a := 1; b := 2) else (a := 3); result := 1", Set.of("result"), removed));
+        assertEquals("[(if: (leq: (var: x), (num: 1)), (block: (assign: a, (num: 1)), (assign: b, (num: 2))), " +
+                "(assign: a, (num: 3)))]", removed.toString());
+        assertEquals("(if: (not: (leq: (var: x), (num: 1))), (assign: result, (num: 2)), (skip))",
+                eliminate("if x <= 1 then a := 1 else result := 2", Set.of("result"), removed));
+    }
+
+    public void testLoopsReachAFixedPoint() {
+        List<ProgramStatement> removed = new ArrayList<>();
+        // b feeds a only on the next iteration, and a feeds result after the loop
+        assertEquals("(block: (while: (leq: (var: i), (num: 3)), (block: (assign: a, (var: b)), " +
+                        "(assign: b, (var: i)), (assign: i, (add: (var: i), (num: 1))))), (assign: result, (var: a)))",
+                eliminate("while i <= 3 do (t := i * i; a := b; b := i; i := i + 1); result := a", Set.of("result"),
+                        removed));
+        assertEquals("[(assign: t, (prod: (var: i), (var: i)))]", removed.toString());
+        removed.clear();
+        assertEquals("(while: (leq: (var: i), (num: 3)), (skip))",
+                eliminate("while i <= 3 do (a := a + 1)", Set.of("result"), removed));
+        assertEquals(1, removed.size());
+    }
+
+    public void testParallelBranches() {
+        List<ProgramStatement> removed = new ArrayList<>();
+        assertEquals("(block: (assign: a, (num: 1)), (assign: result, (var: a)))",
+                eliminate("(a := 1 || b := 2); result := a", Set.of("result"), removed));
+    }
+
+    public void testSameResult() {
+        String source = "i := 0; s := 0; p := 1; while i <= 20 do (s := s + i; p := p * 2; q := s - p; " +
+                "if s > 50 then r := q else (r := 0 - q); i := i + 1); " +
+                "(x := s * 3 || y := p - 1); result := x + r";
+        State expected = parse(source).eval(new State());
+        State actual = Liveness.eliminate(parse(source), Set.of("result"), new ArrayList<>()).eval(new State());
+        assertEquals(expected.lookup("result"), actual.lookup("result"));
+        assertFalse(actual.contains("y"));
+    }
+
+    public void testCompiledWithoutDeadVariables() throws Exception {
+        Options options = new Options();
+        assertTrue(options.apply("live"));
+        assertTrue(options.consistent());
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = App.prepare("test", TokenStream.of(new Lexer("t := 4; result := 3").scanTokens()),
+                new State(symbols), options, System.out);
+        StringBuilder out = new StringBuilder();
+        App.writeC(program, symbols, out);
+        assertEquals("#include <stdio.h>\nint main() {\nint result;\n" +
+                "result = 3;\n printf(\"result := %d\\n\", result);}", out.toString());
+        assertTrue(options.apply("precompile"));
+        assertFalse(options.consistent());
+    }
+}
@@ -0,0 +1,51 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class NodeTest extends TestCase {
+
+    private static ProgramStatement parse(String source, State state) {
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(state.symbols());
+        return program;
+    }
+
+    public void testSpecializesAfterWarmup() {
+        State state = new State();
+        StmtNode.RootNode root = Node.build(parse("i := 0; while i <= 5000 do (i := i + 1; a := i * 2)", state));
+        StmtNode.WhileNode loop = (StmtNode.WhileNode) ((StmtNode.BlockNode) root.body).statements[1];
+        assertTrue(loop.condition instanceof BoolNode.LeqNode);
+
+        root.exec(state);
+
+        assertTrue(loop.condition instanceof BoolNode.LeqVarConstNode);
+        StmtNode.BlockNode body = (StmtNode.BlockNode) loop.body;
+        assertTrue(((StmtNode.AssignNode) body.statements[0]).value instanceof IntNode.AddVarConstNode);
+        assertTrue(((StmtNode.AssignNode) body.statements[1]).value instanceof IntNode.MulConstNode);
+        assertEquals(Integer.valueOf(10002), state.lookup("a"));
+    }
+
+    public void testOrShortCircuits() {
+        State state = new State();
+        String source = "i := 0; a := 0; while i <= 3000 do (if i <= 2000 || a = a then a := a + 1 else (skip); i := i + 1)";
+        StmtNode.RootNode root = Node.build(parse(source, state));
+        root.exec(state);
+        assertEquals(Integer.valueOf(3001), state.lookup("a"));
+
+        State expected = new State();
+        parse(source, expected).eval(expected);
+        assertEquals(expected.lookup("a"), state.lookup("a"));
+        assertEquals(expected.lookup("i"), state.lookup("i"));
+    }
+
+    public void testSameResult() {
+        String source = "n := 30; i := 2; r2 := 0; r1 := 1; result := r2 + r1; " +
+                "while i <= n - 1 do (r2 := r1; r1 := result; result := r2 + r1; i := i + 1); " +
+                "j := 0; while 5000 > j do (result := 3 + result - 1; j := 1 + j)";
+        State expected = new State();
+        parse(source, expected).eval(expected);
+        State actual = new State();
+        Engine.SPECIALIZING.eval(parse(source, actual), actual);
+        assertEquals(expected.lookup("result"), actual.lookup("result"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+public class ParallelStmtTest extends TestCase {
+
+    private static final String SUMS = "n := 2000; (" +
+            "i := 0; a := 0; while i <= n do (a := a + i * i; i := i + 1) || " +
+            "j := 0; b := 1; while j <= n do (if j = 7 then b := b * 3 else (b := b + j); j := j + 1) || " +
+            "c := n * 2); result := a - b + c";
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    public void testParses() {
+        ProgramStatement program = parse("(x := 1 || y := 2; z := 3 || skip); w := x");
+        assertEquals("(block: (par: (assign: x, (num: 1)), (block: (assign: y, (num: 2)), " +
+                "(assign: z, (num: 3))), (skip)), (assign: w, (var: x)))", program.toString());
+        assertEquals("(block: (assign: x, (num: 1)))", parse("(x := 1)").toString());
+        assertEquals("(assign: x, (num: 1))", parse("(x := 1 || skip)").fold().toString());
+    }
+
+    public void testRejectsConflicts() {
+        for (String source : new String[] {"(a := 1 || b := a)", "(a := 1 || a := 2)",
+                "(while i <= 3 do i := i + 1 || j := i)"}) {
+            try {
+                parse(source);
+                fail(source);
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("parallel branches conflict on "));
+            }
+        }
+        parse("(a := x || b := x)");
+    }
+
+    public void testSameResultOnEveryEngine() {
+        State expected = new State();
+        String sequential = SUMS.replace(" || ", "; ");
+        ProgramStatement reference = parse(sequential);
+        reference.resolve(expected.symbols());
+        reference.eval(expected);
+
+        for (boolean optimize : new boolean[] {false, true}) {
+            for (Engine engine : Engine.values()) {
+                State state = new State();
+                ProgramStatement program = optimize ? parse(SUMS).fold() : parse(SUMS);
+                program.resolve(state.symbols());
+                engine.eval(program, state);
+                for (String name : expected.keys())
+                    assertEquals(engine + " " + name, expected.lookup(name), state.lookup(name));
+                assertEquals(engine.toString(), expected.iterations, state.iterations);
+            }
+        }
+    }
+
+    public void testForksInAPoolWithSeveralThreads() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            pool.submit(() -> {
+                testSameResultOnEveryEngine();
+                testFailureLeavesTheStateOfRunningInOrder();
+            }).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testFailureLeavesTheStateOfRunningInOrder() {
+        String source = "(i := 0; while i <= 999 do i := i + 1 || " +
+                "j := 0; while j <= 99 do (j := j + 1; k := k + 1) || " +
+                "m := 0; while m <= 9 do m := m + 1)";
+        State state = new State();
+        ProgramStatement program = parse(source);
+        program.resolve(state.symbols());
+        try {
+            program.eval(state);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("undefined variable: k.", e.getMessage());
+        }
+        assertEquals(Integer.valueOf(1000), state.lookup("i"));
+        assertEquals(Integer.valueOf(1), state.lookup("j"));
+        assertNull(state.lookup("m"));
+    }
+
+    public void testRoundTripsThroughImage() throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = parse(SUMS).fold();
+        program.resolve(symbols);
+        Path image = Files.createTempFile("simpl", ProgramImage.EXTENSION);
+        try {
+            ProgramImage.write(image, program, symbols, new byte[32], true);
+            State state = new State();
+            ProgramStatement loaded = ProgramImage.read(image, state.symbols()).program;
+            assertEquals(program.toString(), loaded.toString());
+            State expected = new State(symbols);
+            assertEquals(program.eval(expected).lookup("result"), loaded.eval(state).lookup("result"));
+        } finally {
+            Files.delete(image);
+        }
+    }
+}
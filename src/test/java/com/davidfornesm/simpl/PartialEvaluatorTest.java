@@ -0,0 +1,121 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class PartialEvaluatorTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    private static String residual(String source, Map<String, Integer> known) {
+        return PartialEvaluator.specialize(parse(source), known).toString();
+    }
+
+    public void testKnownAssignmentsMoveToTheEnd() {
+        assertEquals("(block: (assign: b, (add: (var: seed), (num: 4))), (assign: n, (num: 3)), (assign: a, (num: 4)))",
+                residual("a := n + 1; b := seed + a", Map.of("n", 3)));
+        assertEquals("(block: (assign: a, (var: seed)), (assign: b, (add: (var: a), (num: 1))))",
+                residual("a := 2; a := seed; b := a + 1", Map.of()));
+    }
+
+    public void testKnownConditionsKeepOneBranch() {
+        assertEquals("(block: (assign: a, (var: seed)), (assign: n, (num: 1)))",
+                residual("if n = 1 then a := seed else a := 0", Map.of("n", 1)));
+    }
+
+    public void testBranchesAssignWhatTheyDisagreeOn() {
+        assertEquals("(block: (if: (leq: (var: seed), (num: 0)), (assign: a, (num: 1)), (assign: a, (num: 2))), " +
+                        "(assign: b, (num: 5)))",
+                residual("b := 5; if seed <= 0 then a := 1 else a := 2", Map.of()));
+        assertEquals("(block: (if: (not: (leq: (var: seed), (num: 0))), (assign: a, (var: seed)), (skip)), " +
+                        "(assign: b, (num: 5)))",
+                residual("b := 5; if seed <= 0 then b := 5 else a := seed", Map.of()));
+    }
+
+    public void testLoopsWithKnownConditionsUnroll() {
+        assertEquals("(block: (assign: s, (var: seed)), (assign: s, (add: (var: s), (num: 1))), " +
+                        "(assign: s, (add: (var: s), (num: 2))), (assign: n, (num: 2)), (assign: i, (num: 3)))",
+                residual("s := seed + 0; i := 1; while i <= n do (s := s + i; i := i + 1)", Map.of("n", 2)));
+    }
+
+    public void testLoopsWithUnknownConditionsKeepTheirWrites() {
+        assertEquals("(block: (assign: i, (num: 0)), (while: (leq: (var: i), (var: seed)), " +
+                        "(block: (assign: a, (prod: (var: i), (num: 4))), (assign: i, (add: (var: i), (num: 1))))), " +
+                        "(assign: k, (num: 4)))",
+                residual("i := 0; k := 4; while i <= seed do (a := i * k; i := i + 1)", Map.of()));
+    }
+
+    public void testUnboundedLoopsStopUnrolling() {
+        String residual = residual("i := 0; while true do i := i + 1", Map.of());
+        assertTrue(residual, residual.startsWith("(block: (assign: i, (num: " + PartialEvaluator.MAX_UNROLLED_ITERATIONS));
+        assertTrue(residual, residual.endsWith("(while: (true), (assign: i, (add: (var: i), (num: 1)))))"));
+    }
+
+    public void testNestedLoopsShareOneBudget() {
+        String source = "i := 0; while i <= 99 do (j := 0; while j <= 99 do (k := 0; " +
+                "while k <= 99 do k := k + 1; j := j + 1); i := i + 1); result := i + j + k";
+        State state = new State();
+        ProgramStatement residual = PartialEvaluator.specialize(parse(source), Map.of(), state);
+        assertEquals(PartialEvaluator.MAX_UNROLLED_ITERATIONS, state.iterations);
+        residual.eval(state);
+        assertEquals(Integer.valueOf(300), state.lookup("result"));
+    }
+
+    public void testUnrollingStopsAtTheLimits() {
+        State state = new State();
+        state.limit(new Limits(100, 0));
+        try {
+            PartialEvaluator.specialize(parse("i := 0; while i <= 1000 do i := i + 1"), Map.of(), state);
+            fail();
+        } catch (LimitExceededException e) {
+            assertEquals(LimitExceededException.Reason.FUEL, e.reason());
+        }
+        Limits limits = new Limits(Long.MAX_VALUE, 0);
+        limits.cancel();
+        state = new State();
+        state.limit(limits);
+        try {
+            PartialEvaluator.specialize(parse("i := 0; while i <= 1000 do i := i + 1"), Map.of(), state);
+            fail();
+        } catch (LimitExceededException e) {
+            assertEquals(LimitExceededException.Reason.CANCELLED, e.reason());
+        }
+    }
+
+    public void testSameResult() {
+        String source = "i := 0; j := 0; acc := seed; " +
+                "while i <= n do (if i = 2 then acc := acc * 3 else (acc := acc + i); i := i + 1); " +
+                "(k := 5 || m := n * 2); while acc > 100 do (acc := acc - k; j := j + 1); " +
+                "if j = 0 then z := m else (z := 0 - m); result := acc + j + z";
+        ProgramStatement residual = PartialEvaluator.specialize(parse(source), Map.of("n", 4));
+        for (int seed = -5; seed <= 200; seed += 5) {
+            State expected = new State();
+            expected.setNewBinding("n", 4);
+            expected.setNewBinding("seed", seed);
+            parse(source).eval(expected);
+            State actual = new State();
+            actual.setNewBinding("seed", seed);
+            residual.eval(actual);
+            for (String name : expected.keys())
+                assertEquals(name + " for seed " + seed, expected.lookup(name), actual.lookup(name));
+        }
+    }
+
+    public void testResidualIsCompiled() throws Exception {
+        Options options = new Options();
+        assertTrue(options.apply("known=n:3,seed:2"));
+        assertTrue(options.consistent());
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = App.prepare("test", TokenStream.of(new Lexer("result := n * seed").scanTokens()),
+                new State(symbols), options, System.out);
+        StringBuilder out = new StringBuilder();
+        App.writeC(program, symbols, out);
+        assertEquals("#include <stdio.h>\nint main() {\nint n;\nint seed;\nint result;\n" +
+                "n = 3;\n seed = 2;\n result = 6;\n printf(\"result := %d\\n\", result);}", out.toString());
+        assertTrue(options.apply("exact"));
+        assertFalse(options.consistent());
+    }
+}
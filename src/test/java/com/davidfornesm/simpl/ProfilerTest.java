@@ -0,0 +1,50 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class ProfilerTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    private static Profiler.Entry find(Profiler profiler, int line, String kind) {
+        for (Profiler.Entry entry : profiler.entries())
+            if (entry.line == line && entry.kind.equals(kind)) return entry;
+        throw new AssertionError("no " + kind + " on line " + line);
+    }
+
+    public void testCountsLoopsAndBranches() {
+        ProgramStatement program = parse("n := 10;\nresult := 0;\nwhile n > 0 do (\n" +
+                "  if n <= 3 then result := result + n else (skip);\n  n := n - 1\n)");
+        Profiler profiler = new Profiler();
+        State state = profiler.eval(program, new State());
+
+        assertEquals(Integer.valueOf(6), state.lookup("result"));
+        assertEquals(1, find(profiler, 1, "assign").count);
+        Profiler.Entry loop = find(profiler, 3, "while");
+        assertEquals(1, loop.count);
+        assertEquals(10, loop.condition.trueCount);
+        assertEquals(11, loop.condition.count);
+        Profiler.Entry branch = find(profiler, 4, "if");
+        assertEquals(10, branch.count);
+        assertEquals(3, branch.condition.trueCount);
+        assertEquals(3, find(profiler, 4, "assign").count);
+        assertEquals(10, find(profiler, 5, "assign").count);
+        assertTrue(loop.nanos >= branch.nanos);
+    }
+
+    public void testLeavesProgramUntouched() throws IOException {
+        ProgramStatement program = parse("n := 3; while n > 0 do n := n - 1").fold();
+        String before = program.toString();
+        Profiler profiler = new Profiler();
+        profiler.eval(program, new State());
+        assertEquals(before, program.toString());
+
+        StringBuilder dump = new StringBuilder();
+        profiler.dump(dump);
+        assertTrue(dump.toString().startsWith("line\tnode\tcount\tnanos\ttrue\tsource\n1\tassign\t1\t"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class ProgramCacheTest extends TestCase {
+
+    private static ProgramStatement parse(String source) {
+        return new Parser(new Lexer(source).scanTokens()).parse();
+    }
+
+    public void testHitsAndMisses() {
+        ProgramCache cache = new ProgramCache(8);
+        ProgramStatement first = cache.get("a := 1", ProgramCacheTest::parse);
+        ProgramStatement second = cache.get("a := 1", ProgramCacheTest::parse);
+        cache.get("a := 2", ProgramCacheTest::parse);
+
+        assertSame(first, second);
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals("cache: 1 hits, 2 misses, 2 entries", cache.toString());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        ProgramCache cache = new ProgramCache(2);
+        ProgramStatement a = cache.get("a := 1", ProgramCacheTest::parse);
+        cache.get("b := 1", ProgramCacheTest::parse);
+        cache.get("a := 1", ProgramCacheTest::parse);
+        cache.get("c := 1", ProgramCacheTest::parse);
+
+        assertEquals(2, cache.size());
+        assertSame(a, cache.get("a := 1", ProgramCacheTest::parse));
+        cache.get("b := 1", ProgramCacheTest::parse);
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+    }
+
+    public void testRemovedSourceIsCompiledAgain() {
+        ProgramCache cache = new ProgramCache(8);
+        ProgramStatement first = cache.get("a := 1", ProgramCacheTest::parse);
+        cache.remove("a := 1");
+
+        assertNotSame(first, cache.get("a := 1", ProgramCacheTest::parse));
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.size());
+    }
+}
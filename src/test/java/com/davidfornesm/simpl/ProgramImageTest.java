@@ -0,0 +1,63 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ProgramImageTest extends TestCase {
+    private Path image;
+
+    @Override
+    protected void setUp() throws IOException {
+        image = Files.createTempFile("simpl", ProgramImage.EXTENSION);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    private static byte[] hash(String source) {
+        return ProgramImage.hash(ByteBuffer.wrap(source.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private ProgramStatement roundTrip(String source, State state) throws IOException {
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(symbols);
+        ProgramImage.write(image, program, symbols, hash(source), true);
+        ProgramStatement loaded = ProgramImage.load(image, hash(source), true, state.symbols());
+        assertNotNull(loaded);
+        assertEquals(program.toString(), loaded.toString());
+        return loaded;
+    }
+
+    public void testRoundTrip() throws IOException {
+        String source = "n := 10; r := 1; while n > 0 || !n = 0 do (r := r * n; n := n - 1); " +
+                "if r <= 3628800 then result := r else (skip)";
+        State state = new State();
+        roundTrip(source, state).eval(state);
+        assertEquals(Integer.valueOf(3628800), state.lookup("result"));
+    }
+
+    public void testLongSequence() throws IOException {
+        StringBuilder source = new StringBuilder("a := 0");
+        for (int i = 0; i < 2000; i++)
+            source.append("; a := a + 1");
+        State state = new State();
+        roundTrip(source.toString(), state).eval(state);
+        assertEquals(Integer.valueOf(2000), state.lookup("a"));
+    }
+
+    public void testStaleImage() throws IOException {
+        roundTrip("a := 1", new State());
+        assertNull(ProgramImage.load(image, hash("a := 2"), true, new SymbolTable()));
+        assertNull(ProgramImage.load(image, hash("a := 1"), false, new SymbolTable()));
+        Files.write(image, new byte[] {1, 2, 3});
+        assertNull(ProgramImage.load(image, hash("a := 1"), true, new SymbolTable()));
+    }
+}
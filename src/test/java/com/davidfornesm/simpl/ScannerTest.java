@@ -2,6 +2,8 @@ package com.davidfornesm.simpl;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -42,4 +44,61 @@ public class ScannerTest extends TestCase {
 
         assertEquals(expected_tokens, tokens);
     }
-}
\ No newline at end of file
+
+    public void testScanPacked() {
+        String source = "result := 1;\nwhile result <= 1000 do (\n  result := result * 2 + 1 - x\n); skip";
+        List<Token> expected = new Lexer(source).scanTokens();
+        ByteSource bytes = new ByteSource(ByteBuffer.wrap(source.getBytes(StandardCharsets.US_ASCII)));
+        PackedTokens packed = new Lexer(bytes).scanPacked();
+
+        assertEquals(expected.size(), packed.size());
+        for (int i = 0; i < packed.size(); i++)
+            assertEquals(expected.get(i), packed.token(i));
+        assertEquals(1000, packed.intLiteral(7));
+        assertEquals("x", packed.lexeme(packed.size() - 5));
+    }
+
+    public void testKeywordsOnlyMatchWholeWords() {
+        String source = "if do end then true else skip while false iff d ends Then truex elsewhere skip_ whilst falsy";
+        List<Token> tokens = new Lexer(source).scanTokens();
+        Token.TokenType[] expected = {IF, DO, END, THEN, TRUE, ELSE, SKIP, WHILE, FALSE};
+        for (int i = 0; i < tokens.size() - 1; i++)
+            assertEquals(tokens.get(i).lexeme, i < expected.length ? expected[i] : IDENTIFIER, tokens.get(i).type);
+    }
+
+    public void testInternsIdentifiers() {
+        String source = "total := 0; i := 0; while i <= 9 do (total := total + i; i := i + 1)";
+        Lexer lexer = new Lexer(source);
+        PackedTokens packed = lexer.scanPacked();
+        assertEquals(2, lexer.symbols().size());
+        String total = null;
+        for (int i = 0; i < packed.size(); i++) {
+            if (packed.type(i) != IDENTIFIER) {
+                assertEquals(-1, packed.symbol(i));
+                continue;
+            }
+            String name = packed.lexeme(i);
+            assertSame(lexer.symbols().name(packed.symbol(i)), name);
+            if (name.equals("total")) {
+                if (total == null) total = name;
+                assertSame(total, name);
+            }
+        }
+        List<Token> tokens = new Lexer(source).scanTokens();
+        assertSame(tokens.get(0).lexeme, tokens.get(14).lexeme);
+    }
+
+    public void testSymbolTableGrows() {
+        SymbolTable symbols = new SymbolTable();
+        String source = "v0 v1";
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, symbols.slot("v" + i));
+        assertEquals(0, symbols.intern(source, 0, 2));
+        assertEquals(1, symbols.intern(source, 3, 5));
+        assertEquals(1000, symbols.intern("v1000", 0, 5));
+        assertEquals(1000, symbols.find("v1000"));
+        assertEquals(-1, symbols.find("v1001"));
+        assertEquals(7, symbols.slot(symbols.name(7), 7));
+        assertEquals(7, symbols.slot("v7", 3));
+    }
+}
@@ -0,0 +1,203 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ServerTest extends TestCase {
+
+    private static final String TRIANGLE = "result := 0; while n > 0 do (result := result + n; n := n - 1)";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Server server;
+
+    @Override
+    protected void tearDown() {
+        if (server != null) server.stop();
+    }
+
+    private HttpResponse<String> post(String query, String flags, HttpRequest.BodyPublisher body, String type)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(
+                URI.create("http://127.0.0.1:" + server.port() + "/run" + query)).POST(body);
+        if (flags != null) request.header(Server.FLAGS_HEADER, flags);
+        if (type != null) request.header("Content-Type", type);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> post(String query, String flags, String source)
+            throws IOException, InterruptedException {
+        return post(query, flags, HttpRequest.BodyPublishers.ofString(source), null);
+    }
+
+    public void testRunsSourceWithBindings() throws Exception {
+        server = Server.start(0, 2, 4, List.of());
+        HttpResponse<String> response = post("?n=4", "vm", TRIANGLE);
+        assertEquals(200, response.statusCode());
+        assertEquals("result := 10\nn := 0\n", response.body());
+        assertEquals("result := null\nx := 3\n", post("?x=3", null, "skip").body());
+    }
+
+    public void testRepeatedRequestsShareTheirProgram() throws Exception {
+        server = Server.start(0, 2, 4, List.of("jit"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("result := 10\nn := 0\n", post("?n=4", null, TRIANGLE).body());
+            assertEquals("result := -1\na := 1\nb := 2\n", post("?a=1&b=2", null, "result := a - b").body());
+            assertEquals("result := -1\nb := 2\na := 1\n", post("?b=2&a=1", null, "result := a - b").body());
+        }
+    }
+
+    public void testRunsImage() throws Exception {
+        server = Server.start(0, 2, 4, List.of());
+        SymbolTable symbols = new SymbolTable();
+        ProgramStatement program = new Parser(new Lexer(TRIANGLE).scanTokens()).parse().fold();
+        program.resolve(symbols);
+        Path image = Files.createTempFile("simpl", ProgramImage.EXTENSION);
+        try {
+            ProgramImage.write(image, program, symbols, new byte[32], true);
+            HttpResponse<String> response = post("?n=100", null,
+                    HttpRequest.BodyPublishers.ofFile(image), Server.IMAGE_TYPE);
+            assertEquals("result := 5050\nn := 0\n", response.body());
+        } finally {
+            Files.delete(image);
+        }
+    }
+
+    public void testRejectsForgedImages() throws Exception {
+        server = Server.start(0, 2, 4, List.of());
+        ByteBuffer names = ByteBuffer.allocate(12).putInt(ProgramImage.MAGIC).putShort((short) ProgramImage.VERSION)
+                .put((byte) 0).put((byte) 0).putInt(Integer.MAX_VALUE);
+        HttpResponse<String> forged = post("", null, HttpRequest.BodyPublishers.ofByteArray(names.array()),
+                Server.IMAGE_TYPE);
+        assertEquals(422, forged.statusCode());
+        assertEquals("Error: corrupt precompiled program: <request>\n", forged.body());
+        ByteBuffer block = ByteBuffer.allocate(17).putInt(ProgramImage.MAGIC).putShort((short) ProgramImage.VERSION)
+                .put((byte) 0).put((byte) 0).putInt(0).put((byte) 2).putInt(Integer.MAX_VALUE);
+        forged = post("", null, HttpRequest.BodyPublishers.ofByteArray(block.array()), Server.IMAGE_TYPE);
+        assertEquals(422, forged.statusCode());
+        ByteBuffer deep = ByteBuffer.allocate(12 + 6 * (ProgramImage.MAX_DEPTH + 1)).putInt(ProgramImage.MAGIC)
+                .putShort((short) ProgramImage.VERSION).put((byte) 0).put((byte) 0).putInt(0);
+        while (deep.remaining() >= 6)
+            deep.put((byte) 4).putInt(1).put((byte) 22);
+        forged = post("", null, HttpRequest.BodyPublishers.ofByteArray(deep.array()), Server.IMAGE_TYPE);
+        assertEquals(422, forged.statusCode());
+        assertEquals(200, post("", null, "result := 1").statusCode());
+    }
+
+    public void testErrors() throws Exception {
+        server = Server.start(0, 2, 4, List.of("fuel=1000"));
+        assertEquals(400, post("?n=x", null, TRIANGLE).statusCode());
+        assertEquals(400, post("", "compile", TRIANGLE).statusCode());
+        HttpResponse<String> undefined = post("", null, TRIANGLE);
+        assertEquals(422, undefined.statusCode());
+        assertEquals("Error: undefined variable: n.\n", undefined.body());
+        HttpResponse<String> stopped = post("?i=0", "noopt", "while true do i := i + 1");
+        assertEquals(422, stopped.statusCode());
+        assertEquals("Error: out of fuel after 1000 loop iterations.\nresult := null\ni := 1000\n", stopped.body());
+    }
+
+    public void testRejectsLargeBodies() throws Exception {
+        server = Server.start(0, 2, 4, 16, List.of());
+        assertEquals(200, post("", null, "result := 1").statusCode());
+        HttpResponse<String> large = post("", null, "result := 1; result := 2");
+        assertEquals(413, large.statusCode());
+        assertEquals("Error: body larger than 16 bytes.\n", large.body());
+    }
+
+    public void testRequestsCannotLoosenLimits() throws Exception {
+        server = Server.start(0, 2, 4, List.of("fuel=1000"));
+        HttpResponse<String> stopped = post("?i=0", "noopt fuel=9223372036854775807", "while true do i := i + 1");
+        assertEquals("Error: out of fuel after 1000 loop iterations.\nresult := null\ni := 1000\n", stopped.body());
+        HttpResponse<String> tighter = post("?i=0", "noopt fuel=10", "while true do i := i + 1");
+        assertEquals("Error: out of fuel after 10 loop iterations.\nresult := null\ni := 10\n", tighter.body());
+    }
+
+    public void testSpecializationIsWithinLimits() throws Exception {
+        server = Server.start(0, 2, 4, List.of("fuel=1000"));
+        HttpResponse<String> stopped = post("", "noopt known=z:0",
+                "i := 0; while i <= 9998 do (j := 0; while j <= 9998 do j := j + 1; i := i + 1)");
+        assertEquals(422, stopped.statusCode());
+        assertTrue(stopped.body(), stopped.body().startsWith("Error: out of fuel after 1000 loop iterations.\n"));
+    }
+
+    public void testStopCancelsRunsInFlight() throws Exception {
+        server = Server.start(0, 1, 0, List.of());
+        Thread client = new Thread(() -> {
+            try {
+                post("?i=0", "noopt", "while true do i := i + 1");
+            } catch (Exception e) {
+                // the connection goes away with the server
+            }
+        });
+        client.start();
+        while (server.pending() == 0)
+            Thread.sleep(1);
+        server.stop();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (server.pending() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, server.pending());
+        server = null;
+        client.join(5000);
+    }
+
+    public void testTurnsAwayWorkBeyondCapacity() throws Exception {
+        server = Server.start(0, 1, 0, List.of());
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        try {
+            Future<HttpResponse<String>> slow = background.submit(() -> post("", "timeout=1000", "while true do skip"));
+            while (server.pending() == 0)
+                Thread.sleep(1);
+            HttpResponse<String> busy = post("?n=3", null, TRIANGLE);
+            assertEquals(503, busy.statusCode());
+            assertEquals("1", busy.headers().firstValue("Retry-After").orElse(null));
+            assertEquals(422, slow.get().statusCode());
+            assertEquals(1, server.stats().rejected.get());
+        } finally {
+            background.shutdown();
+        }
+    }
+
+    /** Load generator: many clients at once, every answer checked, throughput and latency printed. */
+    public void testUnderLoad() throws Exception {
+        int clients = 16;
+        int requests = 100;
+        server = Server.start(0, 4, clients, List.of());
+        ExecutorService load = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int client = 0; client < clients; client++) {
+                int seed = client;
+                results.add(load.submit(() -> {
+                    int failures = 0;
+                    for (int i = 0; i < requests; i++) {
+                        int n = seed * requests + i;
+                        HttpResponse<String> response = post("?n=" + n, i % 2 == 0 ? "jit" : null, TRIANGLE);
+                        if (!response.body().startsWith("result := " + n * (n + 1) / 2 + "\n")) failures++;
+                    }
+                    return failures;
+                }));
+            }
+            for (Future<Integer> result : results)
+                assertEquals(Integer.valueOf(0), result.get());
+        } finally {
+            load.shutdown();
+        }
+        assertEquals(clients * requests, server.stats().requests.get());
+        assertEquals(0, server.stats().errors.get());
+        assertEquals(0, server.stats().rejected.get());
+        System.out.print(server.stats());
+    }
+}
@@ -0,0 +1,45 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class StateTest extends TestCase {
+
+    public void testBindings() {
+        State state = new State();
+        assertNull(state.lookup("a"));
+        assertFalse(state.contains("a"));
+
+        for (int i = 0; i < 100; i++)
+            state.setNewBinding("v" + i, i);
+        state.setNewBinding("a", 7);
+
+        assertEquals(Integer.valueOf(7), state.lookup("a"));
+        assertEquals(Integer.valueOf(99), state.lookup("v99"));
+        assertEquals(101, state.keys().size());
+        assertEquals(7, state.get(state.symbols().find("a")));
+    }
+
+    public void testUndefinedSlot() {
+        SymbolTable symbols = new SymbolTable();
+        int slot = symbols.slot("x");
+        State state = new State(symbols);
+        assertFalse(state.isDefined(slot));
+        assertTrue(state.keys().isEmpty());
+        try {
+            state.get(slot);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("undefined variable: x.", e.getMessage());
+        }
+    }
+
+    public void testResolvedProgram() {
+        String source = "i := 0; result := 0; while i <= 10 do (result := result + i; i := i + 1)";
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        State state = new State();
+        program.resolve(state.symbols());
+        program.eval(state);
+        assertEquals(Integer.valueOf(55), state.lookup("result"));
+        assertEquals(Integer.valueOf(11), state.lookup("i"));
+    }
+}
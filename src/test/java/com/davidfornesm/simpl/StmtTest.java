@@ -0,0 +1,38 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+public class StmtTest extends TestCase {
+
+    public void testLongLoop() {
+        String source = "i := 0; while i <= 999999 do i := i + 1; result := i";
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        State root = program.eval(new State());
+        assertEquals(Integer.valueOf(1000000), root.lookup("result"));
+    }
+
+    public void testLongSequence() {
+        StringBuilder source = new StringBuilder("result := 0");
+        for (int i = 0; i < 200000; i++)
+            source.append("; result := result + 1");
+        ProgramStatement program = new Parser(new Lexer(source.toString()).scanTokens()).parse();
+        assertEquals(200001, ((ProgramStatement.BlockStmt) program).statements.length);
+        State root = program.eval(new State());
+        assertEquals(Integer.valueOf(200000), root.lookup("result"));
+        State folded = new State();
+        ProgramStatement optimized = program.fold();
+        optimized.resolve(folded.symbols());
+        assertEquals(Integer.valueOf(200000), optimized.eval(folded).lookup("result"));
+    }
+
+    public void testBlocksFollowNesting() {
+        ProgramStatement program = new Parser(new Lexer(
+                "a := 1; (b := 2; c := 3); while a <= 2 do (a := a + 1; skip); d := a").scanTokens()).parse();
+        assertEquals("(block: (assign: a, (num: 1)), (assign: b, (num: 2)), (assign: c, (num: 3)), " +
+                "(while: (leq: (var: a), (num: 2)), (block: (assign: a, (add: (var: a), (num: 1))), (skip))), " +
+                "(assign: d, (var: a)))", program.toString());
+        assertEquals("(block: (assign: a, (num: 1)), (assign: b, (num: 2)), (assign: c, (num: 3)), " +
+                "(while: (leq: (var: a), (num: 2)), (assign: a, (add: (var: a), (num: 1)))), " +
+                "(assign: d, (var: a)))", program.fold().toString());
+    }
+}
@@ -0,0 +1,57 @@
+package com.davidfornesm.simpl;
+
+import junit.framework.TestCase;
+
+import static com.davidfornesm.simpl.Vm.*;
+
+public class VmTest extends TestCase {
+
+    private static ProgramStatement parse(String source, State state) {
+        ProgramStatement program = new Parser(new Lexer(source).scanTokens()).parse();
+        program.resolve(state.symbols());
+        return program;
+    }
+
+    private static void assertSameResult(String source) {
+        State expected = new State();
+        parse(source, expected).eval(expected);
+        State actual = new State();
+        Engine.VM.eval(parse(source, actual), actual);
+        assertEquals(expected.keys(), actual.keys());
+        for (String name : expected.keys())
+            assertEquals(name, expected.lookup(name), actual.lookup(name));
+    }
+
+    public void testLowering() {
+        State state = new State();
+        int[] code = Vm.compile(parse("while i <= 3 do i := i + 1", state)).code();
+        int[] expected = {
+                LOAD, 0, PUSH, 3, LEQ, LOOP, 16,
+                LOAD, 0, PUSH, 1, ADD, STORE, 0, JUMP, 0,
+                HALT
+        };
+        assertEquals(expected.length, code.length);
+        for (int i = 0; i < code.length; i++)
+            assertEquals("word " + i, expected[i], code[i]);
+    }
+
+    public void testPrograms() {
+        assertSameResult("n := 10; i := 2; r2 := 0; r1 := 1; result := r2 + r1; " +
+                "while i <= n - 1 do (r2 := r1; r1 := result; result := r2 + r1; i := i + 1)");
+        assertSameResult("n := 6; i := n; result := 0; while 0 <= i do (result := result + i; i := i - 1)");
+        assertSameResult("n := 6; if n = 4 || 4 + 3 = 8 || !false then result := 100 else (skip); " +
+                "while result <= 200 do (result := result + 20; if 150 <= result then result := 1500 else ()); " +
+                "if false || 3 = 1 + 2 then result := 123 else (); if 3 * 20 > 1 then result := result + 1 else ()");
+        assertSameResult("a := 1; if a = 1 || b = 2 then result := 1 else result := 2");
+    }
+
+    public void testUndefinedVariable() {
+        State state = new State();
+        try {
+            Engine.VM.eval(parse("a := 1; if a = 2 || b = 2 then result := 1 else skip", state), state);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("undefined variable: b.", e.getMessage());
+        }
+    }
+}